@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package w.redis;
+
+import lombok.val;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарки записи команд в буффер и отправки их в {@link LoopbackTransport}.
+ * <p>
+ * Запускать с {@code -prof gc}, чтобы видеть количество байтов, выделенных на операцию.
+ *
+ * @author whilein
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBenchmark {
+
+    private static final CommandTemplate GET = CommandTemplate.of("GET", 1);
+
+    private static final CommandTemplate HGET = CommandTemplate.of("HGET", 2);
+
+    @Param({"false", "true"})
+    boolean direct;
+
+    Redis redis;
+
+    String[] keys;
+
+    byte[] largeValue;
+
+    int[] ints;
+
+    long[] longs;
+
+    double[] scores;
+
+    int index;
+
+    @Setup
+    public void setup() {
+        redis = LoopbackTransport.redis(new byte[0], direct);
+
+        keys = new String[100];
+
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key:" + i;
+        }
+
+        largeValue = new byte[16384];
+        Arrays.fill(largeValue, (byte) 'x');
+
+        val random = ThreadLocalRandom.current();
+
+        ints = new int[1024];
+        longs = new long[1024];
+
+        scores = new double[1024];
+
+        for (int i = 0; i < ints.length; i++) {
+            // числа разной длины, чтобы getIntLength/getLongLength не упирались в одну ветку
+            ints[i] = random.nextInt() >> random.nextInt(32);
+            longs[i] = random.nextLong() >> random.nextInt(64);
+            scores[i] = random.nextDouble() * Math.pow(10, random.nextInt(12));
+        }
+    }
+
+    @Benchmark
+    public Redis get() {
+        redis.writeCommand("GET", 1).writeAscii("key:1");
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis getTemplate() {
+        redis.writeCommand(GET).writeAscii("key:1");
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis hget() {
+        redis.writeCommand("HGET", 2).writeAscii("hash").writeAscii("field");
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis hgetTemplate() {
+        redis.writeCommand(HGET).writeAscii("hash").writeAscii("field");
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis set() {
+        redis.writeCommand("SET", 2).writeAscii("key:1").writeAscii("value");
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis setUtf() {
+        redis.writeCommand("SET", 2).writeUTF("user:1:name").writeUTF("Иван Петров");
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis mset100() {
+        redis.writeCommand("MSET", keys.length * 2);
+
+        for (final String key : keys) {
+            redis.writeAscii(key).writeAscii(key);
+        }
+
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis hsetLarge() {
+        redis.writeCommand("HSET", 3).writeAscii("hash").writeAscii("field").writeBytes(largeValue);
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis incrby() {
+        val i = index++ & (ints.length - 1);
+
+        redis.writeCommand("INCRBY", 2).writeAscii("counter").writeInt(ints[i]);
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis incrbyLong() {
+        val i = index++ & (longs.length - 1);
+
+        redis.writeCommand("INCRBY", 2).writeAscii("counter").writeLong(longs[i]);
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis zadd() {
+        val i = index++ & (scores.length - 1);
+
+        redis.writeCommand("ZADD", 3).writeAscii("leaderboard").writeDouble(scores[i]).writeAscii("member");
+        redis.flush();
+
+        return redis;
+    }
+
+    @Benchmark
+    public Redis zaddString() {
+        val i = index++ & (scores.length - 1);
+
+        redis.writeCommand("ZADD", 3).writeAscii("leaderboard").writeAscii(String.valueOf(scores[i]))
+                .writeAscii("member");
+        redis.flush();
+
+        return redis;
+    }
+
+}
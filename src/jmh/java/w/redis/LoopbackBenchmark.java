@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарки клиента против {@link RespServer} через loopback.
+ * <p>
+ * Одна операция - пачка из {@code depth} команд, отправленная одним {@code flush}. Режим
+ * {@link Mode#SampleTime} показывает задержку пачки (p50, p99, p999), а счётчик {@link Commands#commands}
+ * - количество команд в секунду. {@code depth=1} - это работа без пайплайна.
+ *
+ * @author whilein
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoopbackBenchmark {
+
+    @Param({"1", "16", "128"})
+    int depth;
+
+    @Param({"16", "1024", "16384"})
+    int valueSize;
+
+    @Param({"SOCKET", "NIO"})
+    Redis.Transport transport;
+
+    Redis redis;
+
+    byte[] value;
+
+    @Setup
+    public void setup(final Server server) throws IOException {
+        redis = new Redis(server.server.config()
+                .transport(transport)
+                .build());
+
+        value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+
+        redis.writeCommand("SET", 2).writeAscii("loopback").writeBytes(value);
+        redis.flushAndRead();
+        redis.skip();
+    }
+
+    @TearDown
+    public void shutdown() {
+        redis.close();
+    }
+
+    @Benchmark
+    public void set(final Commands commands) {
+        for (int i = 0; i < depth; i++) {
+            redis.writeCommand("SET", 2).writeAscii("loopback").writeBytes(value);
+        }
+
+        redis.flushAndRead();
+        redis.skip(depth);
+
+        commands.commands += depth;
+    }
+
+    @Benchmark
+    public void get(final Commands commands, final Blackhole blackhole) {
+        for (int i = 0; i < depth; i++) {
+            redis.writeCommand("GET", 1).writeAscii("loopback");
+        }
+
+        redis.flushAndRead();
+
+        for (int i = 0; i < depth; i++) {
+            blackhole.consume(redis.nextBytes());
+        }
+
+        commands.commands += depth;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        RespServer server;
+
+        @Setup
+        public void setup() throws IOException {
+            server = RespServer.start();
+        }
+
+        @TearDown
+        public void shutdown() throws IOException {
+            server.close();
+        }
+
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Commands {
+
+        public long commands;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            commands = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package w.redis;
+
+import lombok.val;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Транспорт для бенчмарков, который работает только с памятью.
+ * <p>
+ * Записанные байты отбрасываются, а при чтении снова и снова отдаётся один и тот же заготовленный ответ.
+ *
+ * @author whilein
+ */
+final class LoopbackTransport implements RedisTransport {
+
+    final byte[] reply;
+
+    int position;
+
+    long written;
+
+    LoopbackTransport(final byte[] reply) {
+        this.reply = reply;
+    }
+
+    static Redis redis(final byte[] reply, final boolean direct) {
+        return redis(reply, direct, null);
+    }
+
+    static Redis redis(final byte[] reply, final boolean direct, final RedisStringCache stringCache) {
+        return new Redis(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                .directBuffers(direct)
+                .stringCache(stringCache)
+                .build(), new LoopbackTransport(reply));
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length) {
+        written += length;
+    }
+
+    @Override
+    public int read(final byte[] array, final int offset, final int length) {
+        if (position == reply.length) {
+            // предыдущий ответ прочитан целиком, отдаём его заново
+            position = 0;
+        }
+
+        val count = Math.min(length, reply.length - position);
+        System.arraycopy(reply, position, array, offset, count);
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,254 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package w.redis;
+
+import lombok.val;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарки чтения ответов, которые {@link LoopbackTransport} отдаёт из памяти.
+ * <p>
+ * Запускать с {@code -prof gc}, чтобы видеть количество байтов, выделенных на операцию.
+ *
+ * @author whilein
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+
+    @Param({"false", "true"})
+    boolean direct;
+
+    Redis integer;
+
+    Redis longInteger;
+
+    Redis bulkString;
+
+    Redis largeBulkString;
+
+    Redis score;
+
+    Redis array;
+
+    Redis numbers;
+
+    Redis statuses;
+
+    Redis cachedStatuses;
+
+    long[] longs;
+
+    @Setup
+    public void setup() {
+        integer = _redis(":1234567\r\n");
+        longInteger = _redis(":-1234567890123456\r\n");
+        bulkString = _redis("$11\r\nhello world\r\n");
+        // ZSCORE в RESP2, 17 значащих цифр не проходят быстрый путь Клингера
+        score = _redis("$18\r\n1234.5678901234567\r\n");
+
+        val large = new char[16384];
+        Arrays.fill(large, 'x');
+
+        largeBulkString = _redis("$" + large.length + "\r\n" + new String(large) + "\r\n");
+
+        val reply = new StringBuilder("*100\r\n");
+
+        for (int i = 0; i < 100; i++) {
+            val value = "value:" + i;
+            reply.append('$').append(value.length()).append("\r\n").append(value).append("\r\n");
+        }
+
+        array = _redis(reply.toString());
+
+        val numbersReply = new StringBuilder("*10000\r\n");
+
+        for (int i = 0; i < 10000; i++) {
+            val value = Long.toString(i * 7919L);
+            numbersReply.append('$').append(value.length()).append("\r\n").append(value).append("\r\n");
+        }
+
+        numbers = _redis(numbersReply.toString());
+
+        // HGETALL, в котором значения повторяются: статусы заказов
+        val statusesReply = new StringBuilder("*2000\r\n");
+        val values = new String[]{"NEW", "PAID", "SHIPPED", "DELIVERED", "CANCELLED"};
+
+        for (int i = 0; i < 1000; i++) {
+            val field = "order:" + i;
+            val value = values[i % values.length];
+
+            statusesReply.append('$').append(field.length()).append("\r\n").append(field).append("\r\n");
+            statusesReply.append('+').append(value).append("\r\n");
+        }
+
+        val statusesBytes = statusesReply.toString().getBytes(StandardCharsets.US_ASCII);
+        statuses = LoopbackTransport.redis(statusesBytes, direct);
+        cachedStatuses = LoopbackTransport.redis(statusesBytes, direct, new RedisStringCache(64, 16));
+        longs = new long[10000];
+    }
+
+    private Redis _redis(final String reply) {
+        return LoopbackTransport.redis(reply.getBytes(StandardCharsets.US_ASCII), direct);
+    }
+
+    @Benchmark
+    public int nextInt() {
+        integer.read();
+
+        return integer.nextInt();
+    }
+
+    @Benchmark
+    public long nextLong() {
+        longInteger.read();
+
+        return longInteger.nextLong();
+    }
+
+    @Benchmark
+    public double nextDouble() {
+        score.read();
+
+        return score.nextDouble();
+    }
+
+    @Benchmark
+    public double nextDoubleString() {
+        score.read();
+
+        return Double.parseDouble(score.nextString());
+    }
+
+    @Benchmark
+    public String nextString() {
+        bulkString.read();
+
+        return bulkString.nextString();
+    }
+
+    @Benchmark
+    public byte[] nextLargeBytes() {
+        largeBulkString.read();
+
+        return largeBulkString.nextBytes();
+    }
+
+    @Benchmark
+    public void skipLarge() {
+        largeBulkString.read();
+        largeBulkString.skip();
+    }
+
+    @Benchmark
+    public void arrayOfStrings(final Blackhole blackhole) {
+        array.read();
+
+        val size = array.nextArray();
+
+        for (int i = 0; i < size; i++) {
+            blackhole.consume(array.nextString());
+        }
+    }
+
+    @Benchmark
+    public void arrayOfSlices(final Blackhole blackhole) {
+        array.read();
+
+        val size = array.nextArray();
+
+        for (int i = 0; i < size; i++) {
+            blackhole.consume(array.nextSlice().hashCode());
+        }
+    }
+
+    @Benchmark
+    public void arrayVisitor(final Blackhole blackhole) {
+        array.read();
+        array.nextReply(new RespVisitor() {
+            @Override
+            public void onBulk(final byte[] buffer, final int offset, final int length) {
+                blackhole.consume(buffer[offset + length - 1]);
+            }
+        });
+    }
+
+    @Benchmark
+    public String hgetallStatuses() {
+        return _readStatuses(statuses);
+    }
+
+    @Benchmark
+    public String hgetallStatusesCached() {
+        return _readStatuses(cachedStatuses);
+    }
+
+    private static String _readStatuses(final Redis redis) {
+        redis.read();
+
+        val pairs = redis.nextMap();
+        String last = null;
+
+        for (int i = 0; i < pairs; i++) {
+            redis.skip();
+            last = redis.nextString();
+        }
+
+        return last;
+    }
+
+    @Benchmark
+    public long numbersAsStrings() {
+        numbers.read();
+
+        val size = numbers.nextArray();
+        long sum = 0;
+
+        for (int i = 0; i < size; i++) {
+            sum += Long.parseLong(numbers.nextString());
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    public long[] numbersAsLongArray() {
+        numbers.read();
+        numbers.nextLongArray(longs);
+
+        return longs;
+    }
+
+    @Benchmark
+    public void skipArray() {
+        array.read();
+        array.skip();
+    }
+
+}
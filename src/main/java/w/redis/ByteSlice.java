@@ -0,0 +1,286 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Участок массива байтов, например, строка из буффера чтения, которую не стали копировать.
+ * <p>
+ * {@link Redis#nextSlice()} каждый раз возвращает один и тот же экземпляр, который смотрит на буффер чтения.
+ * Такой участок действителен только до следующего чтения из того же клиента: любого {@code next*},
+ * {@link Redis#read()} или {@link Redis#flushAndRead()}. Если значение нужно сохранить, например,
+ * положить в {@link java.util.Map} ключом, используйте {@link #copy()}.
+ * <p>
+ * Как {@link CharSequence} участок читается побайтово, т.е. каждый байт - это символ ISO-8859-1,
+ * что совпадает с текстом для ASCII строк. Для UTF-8 используйте {@link #toString()}.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public final class ByteSlice implements CharSequence {
+
+    byte[] array;
+
+    int offset;
+
+    int length;
+
+    ByteSlice() {
+        this.array = new byte[0];
+    }
+
+    private ByteSlice(final byte[] array, final int offset, final int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Создать участок, который смотрит на весь массив, не копируя его.
+     *
+     * @param array Массив
+     * @return Новый участок
+     */
+    public static ByteSlice wrap(final byte[] array) {
+        return new ByteSlice(array, 0, array.length);
+    }
+
+    /**
+     * Создать участок из байтов строки в UTF-8.
+     *
+     * @param text Строка
+     * @return Новый участок
+     */
+    public static ByteSlice of(final String text) {
+        return wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // навести участок на новые байты
+    void set(final byte[] array, final int offset, final int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        return (char) (getByte(index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+
+        return new ByteSlice(array, offset + start, end - start);
+    }
+
+    /**
+     * Получить байт участка.
+     *
+     * @param index Индекс в участке
+     * @return Байт
+     */
+    public byte getByte(final int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+
+        return array[offset + index];
+    }
+
+    /**
+     * Скопировать байты участка в новый участок, который не зависит от буффера чтения.
+     *
+     * @return Новый участок
+     */
+    public ByteSlice copy() {
+        return wrap(toByteArray());
+    }
+
+    /**
+     * Скопировать байты участка в новый массив.
+     *
+     * @return Новый массив
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(array, offset, offset + length);
+    }
+
+    /**
+     * Проверить, совпадают ли байты участка с байтами массива.
+     *
+     * @param bytes Массив
+     * @return {@code true}, если байты совпадают
+     */
+    public boolean contentEquals(final byte[] bytes) {
+        return Arrays.equals(array, offset, offset + length, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Проверить, совпадает ли участок, прочитанный как UTF-8, с текстом.
+     * <p>
+     * Для ASCII текста сравнение идёт без декодирования и выделения памяти.
+     *
+     * @param text Текст
+     * @return {@code true}, если текст совпадает
+     */
+    public boolean contentEquals(final CharSequence text) {
+        val textLength = text.length();
+
+        // в UTF-8 каждый символ занимает хотя бы один байт
+        if (textLength > length) {
+            return false;
+        }
+
+        for (int i = 0; i < textLength; i++) {
+            val ch = text.charAt(i);
+
+            if (ch >= 0x80) {
+                return toString().contentEquals(text);
+            }
+
+            if (array[offset + i] != (byte) ch) {
+                return false;
+            }
+        }
+
+        return textLength == length;
+    }
+
+    /**
+     * Прочитать участок как десятичное число.
+     *
+     * @return Число
+     * @throws NumberFormatException Выбрасывается, если участок не является числом типа {@code long}
+     */
+    public long parseLong() {
+        if (length == 0) {
+            throw new NumberFormatException("Empty slice");
+        }
+
+        int i = offset;
+        val end = offset + length;
+
+        val negative = array[i] == '-';
+
+        if (negative || array[i] == '+') {
+            if (++i == end) {
+                throw new NumberFormatException("For input: " + toAsciiString());
+            }
+        }
+
+        // считаем в отрицательных числах, чтобы поместился Long.MIN_VALUE
+        long result = 0;
+
+        for (; i < end; i++) {
+            val digit = array[i] - '0';
+
+            if (digit < 0 || digit > 9 || result < Long.MIN_VALUE / 10) {
+                throw new NumberFormatException("For input: " + toAsciiString());
+            }
+
+            result = result * 10 - digit;
+
+            if (result > 0) {
+                throw new NumberFormatException("For input: " + toAsciiString());
+            }
+        }
+
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new NumberFormatException("For input: " + toAsciiString());
+            }
+
+            return -result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Прочитать участок как ASCII строку.
+     *
+     * @return Новая строка
+     */
+    public String toAsciiString() {
+        return new String(array, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Прочитать участок как UTF-8 строку.
+     *
+     * @return Новая строка
+     */
+    @Override
+    public String toString() {
+        return new String(array, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Сравнить байты участков.
+     *
+     * @param obj Другой объект
+     * @return {@code true}, если {@code obj} - это {@link ByteSlice} с теми же байтами
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this) {
+            return true;
+        }
+
+        if (!(obj instanceof ByteSlice)) {
+            return false;
+        }
+
+        val other = (ByteSlice) obj;
+
+        return Arrays.equals(array, offset, offset + length, other.array, other.offset, other.offset + other.length);
+    }
+
+    /**
+     * Посчитать хэш байтов участка.
+     * <p>
+     * Хэш меняется вместе с байтами, поэтому ключами в {@link java.util.Map} можно хранить только
+     * результат {@link #copy()}, а искать по ним - любым участком.
+     *
+     * @return Хэш
+     */
+    @Override
+    public int hashCode() {
+        int hash = 1;
+
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + array[i];
+        }
+
+        return hash;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Заранее закодированное начало команды: количество аргументов и название.
+ * <p>
+ * {@link Redis#writeCommand(String, int)} каждый раз кодирует {@code *N\r\n$len\r\nNAME\r\n} заново, а шаблон
+ * делает это один раз при создании, после чего {@link Redis#writeCommand(CommandTemplate)} просто копирует
+ * готовые байты. Шаблоны неизменяемы, поэтому их удобно хранить в {@code static final} полях:
+ * <pre>{@code
+ * static final CommandTemplate HGET = CommandTemplate.of("HGET", 2);
+ *
+ * redis.writeCommand(HGET).writeAscii(key).writeAscii(field);
+ * }</pre>
+ *
+ * @author whilein
+ */
+@Getter
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class CommandTemplate {
+
+    /**
+     * Название команды.
+     */
+    String name;
+
+    /**
+     * Количество аргументов, которые нужно записать после шаблона.
+     */
+    int arguments;
+
+    @Getter(AccessLevel.NONE)
+    byte[] header;
+
+    // сколько байтов в начале header занимает количество элементов *N\r\n
+    @Getter(AccessLevel.NONE)
+    int countLength;
+
+    // сколько элементов в шаблоне: название и аргументы, которые уже в нём закодированы
+    @Getter(AccessLevel.NONE)
+    int elements;
+
+    private CommandTemplate(final String name, final int arguments, final byte[] header, final int elements) {
+        this.name = name;
+        this.arguments = arguments;
+        this.header = header;
+        this.countLength = String.valueOf(elements + arguments).length() + 3;
+        this.elements = elements;
+    }
+
+    /**
+     * Создать шаблон команды, после которого нужно записать аргументы.
+     *
+     * @param name      Название команды, например, {@code HGET}
+     * @param arguments Количество аргументов, которые будут записаны после шаблона
+     * @return Новый шаблон
+     */
+    public static CommandTemplate of(final String name, final int arguments) {
+        if (arguments < 0) {
+            throw new IllegalArgumentException("Illegal arguments count: " + arguments);
+        }
+
+        val header = new StringBuilder();
+        header.append('*').append(arguments + 1).append("\r\n");
+        _appendBulk(header, name);
+
+        return new CommandTemplate(name, arguments, header.toString().getBytes(StandardCharsets.UTF_8), 1);
+    }
+
+    /**
+     * Создать шаблон команды вместе со всеми аргументами, например, {@code PING}, {@code MULTI}
+     * или {@code CLIENT TRACKING ON}.
+     *
+     * @param name      Название команды
+     * @param arguments Аргументы команды
+     * @return Новый шаблон, после которого ничего записывать не нужно
+     */
+    public static CommandTemplate of(final String name, final String... arguments) {
+        val header = new StringBuilder();
+        header.append('*').append(arguments.length + 1).append("\r\n");
+        _appendBulk(header, name);
+
+        for (val argument : arguments) {
+            _appendBulk(header, argument);
+        }
+
+        return new CommandTemplate(name, 0, header.toString().getBytes(StandardCharsets.UTF_8),
+                arguments.length + 1);
+    }
+
+    private static void _appendBulk(final StringBuilder builder, final String value) {
+        builder.append('$').append(value.getBytes(StandardCharsets.UTF_8).length).append("\r\n")
+                .append(value).append("\r\n");
+    }
+
+    // закодированные аргументы без количества элементов, например, EX для SET. Их можно записать
+    // в середине команды, их нельзя менять
+    static byte[] encode(final String... arguments) {
+        val encoded = new StringBuilder();
+
+        for (val argument : arguments) {
+            _appendBulk(encoded, argument);
+        }
+
+        return encoded.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // закодированные байты шаблона, их нельзя менять
+    byte[] header() {
+        return header;
+    }
+
+    int countLength() {
+        return countLength;
+    }
+
+    int elements() {
+        return elements;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandTemplate[name=" + name + ", arguments=" + arguments + "]";
+    }
+
+}
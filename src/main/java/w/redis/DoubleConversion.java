@@ -0,0 +1,417 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package w.redis;
+
+import lombok.val;
+
+import java.math.BigInteger;
+
+/**
+ * Перевод {@code double} в текст и обратно без создания строк.
+ * <p>
+ * Запись - алгоритм Schubfach (Raffaello Giulietti), который выдаёт самое короткое десятичное представление,
+ * из которого читается то же самое число. Чтение - алгоритм Eisel-Lemire, которому достаточно мантиссы
+ * до 19 цифр и десятичной экспоненты.
+ *
+ * @author whilein
+ */
+final class DoubleConversion {
+
+    /**
+     * Максимальное количество байтов, которое может занять число в {@link #write(double, byte[], int)}.
+     */
+    static final int MAX_LENGTH = 32;
+
+    // region Schubfach
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final long T_MASK = C_MIN - 1;
+    private static final int BQ_MASK = 0x7ff;
+
+    // значения, меньше которых мантисса слишком короткая, чтобы найти самое короткое представление
+    private static final int C_TINY = 3;
+
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+
+    private static final long MASK_63 = 0x7fff_ffff_ffff_ffffL;
+
+    // g1 и g0 - старшие и младшие 63 бита floor(10^-k * 2^(125 - floor(log2(10^-k)))) + 1
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+    // endregion
+
+    // region Eisel-Lemire
+    private static final int POW10_MIN = -348;
+    private static final int POW10_MAX = 347;
+
+    // старшие и младшие 64 бита нормализованной 10^q, округлённой вниз
+    private static final long[] POW10 = new long[2 * (POW10_MAX - POW10_MIN + 1)];
+    // endregion
+
+    static {
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            val r = _flog2pow10(-k) - 125;
+            val power = BigInteger.TEN.pow(Math.abs(k));
+
+            BigInteger g;
+
+            if (k > 0) {
+                // r всегда отрицательный
+                g = BigInteger.ONE.shiftLeft(-r).divide(power);
+            } else {
+                g = r >= 0 ? power.shiftRight(r) : power.shiftLeft(-r);
+            }
+
+            g = g.add(BigInteger.ONE);
+
+            val index = 2 * (k - K_MIN);
+
+            G[index] = g.shiftRight(63).longValue();
+            G[index + 1] = g.longValue() & MASK_63;
+        }
+
+        for (int q = POW10_MIN; q <= POW10_MAX; q++) {
+            BigInteger value;
+
+            if (q >= 0) {
+                value = BigInteger.valueOf(5).pow(q);
+                val shift = value.bitLength() - 128;
+
+                value = shift >= 0 ? value.shiftRight(shift) : value.shiftLeft(-shift);
+            } else {
+                val power = BigInteger.valueOf(5).pow(-q);
+
+                // 5^-q не степень двойки, поэтому частное занимает ровно 128 бит
+                value = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power);
+            }
+
+            val index = 2 * (q - POW10_MIN);
+
+            POW10[index] = value.shiftRight(64).longValue();
+            POW10[index + 1] = value.longValue();
+        }
+    }
+
+    private DoubleConversion() {
+    }
+
+    private static int _flog10pow2(final int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    private static int _flog10threeQuartersPow2(final int e) {
+        return (int) (e * 661_971_961_083L - 274_743_187_321L >> 41);
+    }
+
+    private static int _flog2pow10(final int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    private static long _unsignedMultiplyHigh(final long x, final long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    /**
+     * Записать самое короткое десятичное представление конечного числа.
+     *
+     * @param value  Конечное число
+     * @param dst    Массив, в который записывается число, должен вмещать {@link #MAX_LENGTH} байтов после {@code offset}
+     * @param offset Позиция, с которой записывается число
+     * @return Позиция после последнего записанного байта
+     */
+    static int write(final double value, final byte[] dst, int offset) {
+        val bits = Double.doubleToRawLongBits(value);
+        val t = bits & T_MASK;
+        val bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+
+        if (bits < 0) {
+            dst[offset++] = '-';
+        }
+
+        if (bq != 0) {
+            val mq = -Q_MIN + 1 - bq;
+            val c = C_MIN | t;
+
+            // целые числа меньше 2^53 записываются как есть
+            if (0 < mq && mq < P) {
+                val f = c >> mq;
+
+                if (f << mq == c) {
+                    return _writeDecimal(f, 0, dst, offset);
+                }
+            }
+
+            return _toDecimal(-mq, c, 0, dst, offset);
+        }
+
+        if (t != 0) {
+            return t < C_TINY
+                    ? _toDecimal(Q_MIN, 10 * t, -1, dst, offset)
+                    : _toDecimal(Q_MIN, t, 0, dst, offset);
+        }
+
+        dst[offset++] = '0';
+
+        return offset;
+    }
+
+    private static int _toDecimal(final int q, final long c, final int dk, final byte[] dst, final int offset) {
+        val out = (int) c & 0x1;
+        val cb = c << 2;
+        val cbr = cb + 2;
+
+        final long cbl;
+        final int k;
+
+        if (c != C_MIN | q == Q_MIN) {
+            cbl = cb - 2;
+            k = _flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = _flog10threeQuartersPow2(q);
+        }
+
+        val h = q + _flog2pow10(-k) + 2;
+
+        val index = 2 * (k - K_MIN);
+        val g1 = G[index];
+        val g0 = G[index + 1];
+
+        val vb = _rop(g1, g0, cb << h);
+        val vbl = _rop(g1, g0, cbl << h);
+        val vbr = _rop(g1, g0, cbr << h);
+
+        val s = vb >> 2;
+
+        if (s >= 100) {
+            // s / 10 * 10 без деления
+            val sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            val tp10 = sp10 + 10;
+            val upin = vbl + out <= sp10 << 2;
+            val wpin = (tp10 << 2) + out <= vbr;
+
+            if (upin != wpin) {
+                return _writeDecimal(upin ? sp10 : tp10, k, dst, offset);
+            }
+        }
+
+        val t = s + 1;
+        val uin = vbl + out <= s << 2;
+        val win = (t << 2) + out <= vbr;
+
+        if (uin != win) {
+            return _writeDecimal(uin ? s : t, k + dk, dst, offset);
+        }
+
+        val cmp = vb - (s + t << 1);
+
+        return _writeDecimal(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk, dst, offset);
+    }
+
+    // округлённое вверх до нечётного произведение g и cp, сдвинутое на 127 бит
+    private static long _rop(final long g1, final long g0, final long cp) {
+        val x1 = Math.multiplyHigh(g0, cp);
+        val y0 = g1 * cp;
+        val y1 = Math.multiplyHigh(g1, cp);
+        val z = (y0 >>> 1) + x1;
+        val vbp = y1 + (z >>> 63);
+
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    // записать f * 10^e так же, как записывает число Redis: без экспоненты, если число не слишком
+    // большое или маленькое
+    private static int _writeDecimal(long f, int e, final byte[] dst, int offset) {
+        while (f % 10 == 0 && f != 0) {
+            f /= 10;
+            e++;
+        }
+
+        val length = _length(f);
+
+        // позиция точки относительно первой цифры
+        val point = length + e;
+
+        if (e >= 0 && point <= 21) {
+            offset = _writeDigits(f, length, dst, offset);
+
+            for (int i = 0; i < e; i++) {
+                dst[offset++] = '0';
+            }
+
+            return offset;
+        }
+
+        if (0 < point && point <= 21) {
+            // точка внутри числа: пишем цифры со сдвигом и вставляем точку
+            _writeDigits(f, length, dst, offset + 1);
+            System.arraycopy(dst, offset + 1, dst, offset, point);
+            dst[offset + point] = '.';
+
+            return offset + length + 1;
+        }
+
+        if (-6 < point && point <= 0) {
+            dst[offset++] = '0';
+            dst[offset++] = '.';
+
+            for (int i = point; i < 0; i++) {
+                dst[offset++] = '0';
+            }
+
+            return _writeDigits(f, length, dst, offset);
+        }
+
+        // d.ddde-x
+        _writeDigits(f, length, dst, offset + 1);
+        dst[offset] = dst[offset + 1];
+
+        if (length > 1) {
+            dst[offset + 1] = '.';
+            offset += length + 1;
+        } else {
+            offset++;
+        }
+
+        dst[offset++] = 'e';
+
+        int exponent = point - 1;
+
+        if (exponent < 0) {
+            dst[offset++] = '-';
+            exponent = -exponent;
+        } else {
+            dst[offset++] = '+';
+        }
+
+        if (exponent >= 100) {
+            dst[offset++] = (byte) ('0' + exponent / 100);
+            exponent %= 100;
+            dst[offset++] = (byte) ('0' + exponent / 10);
+        } else if (exponent >= 10) {
+            dst[offset++] = (byte) ('0' + exponent / 10);
+        }
+
+        dst[offset++] = (byte) ('0' + exponent % 10);
+
+        return offset;
+    }
+
+    private static int _writeDigits(long value, final int length, final byte[] dst, final int offset) {
+        val end = offset + length;
+
+        for (int i = end - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+
+        return end;
+    }
+
+    private static int _length(final long value) {
+        int length = 1;
+
+        for (long bound = 10; length < 19 && value >= bound; bound *= 10) {
+            length++;
+        }
+
+        return length;
+    }
+
+    /**
+     * Получить ближайший к {@code mantissa * 10^exponent} {@code double}.
+     *
+     * @param mantissa Мантисса, которая воспринимается как беззнаковое число
+     * @param exponent Десятичная экспонента
+     * @param negative Отрицательное ли число
+     * @return Число или {@link Double#NaN}, если алгоритм не может гарантировать правильное округление
+     * и нужно воспользоваться {@link Double#parseDouble(String)}
+     */
+    static double parse(long mantissa, final int exponent, final boolean negative) {
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+
+        if (exponent < POW10_MIN || exponent > POW10_MAX) {
+            return Double.NaN;
+        }
+
+        val clz = Long.numberOfLeadingZeros(mantissa);
+        mantissa <<= clz;
+
+        long exponent2 = (217706 * exponent >> 16) + 64 + 1023 - clz;
+
+        val index = 2 * (exponent - POW10_MIN);
+
+        long high = _unsignedMultiplyHigh(mantissa, POW10[index]);
+        long low = mantissa * POW10[index];
+
+        // младших битов не хватает, чтобы понять, как округлять, уточним произведение
+        if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + mantissa, mantissa) < 0) {
+            val lowHigh = _unsignedMultiplyHigh(mantissa, POW10[index + 1]);
+            val lowLow = mantissa * POW10[index + 1];
+
+            long mergedHigh = high;
+            val mergedLow = low + lowHigh;
+
+            if (Long.compareUnsigned(mergedLow, low) < 0) {
+                mergedHigh++;
+            }
+
+            if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow + 1 == 0
+                    && Long.compareUnsigned(lowLow + mantissa, mantissa) < 0) {
+                return Double.NaN;
+            }
+
+            high = mergedHigh;
+            low = mergedLow;
+        }
+
+        val msb = high >>> 63;
+        long result = high >>> (msb + 9);
+        exponent2 -= 1 ^ msb;
+
+        // ровно посередине между двумя double
+        if (low == 0 && (high & 0x1FF) == 0 && (result & 3) == 1) {
+            return Double.NaN;
+        }
+
+        result += result & 1;
+        result >>>= 1;
+
+        if (result >>> 53 > 0) {
+            result >>>= 1;
+            exponent2++;
+        }
+
+        // денормализованные числа и бесконечности
+        if (exponent2 <= 0 || exponent2 >= 0x7FF) {
+            return Double.NaN;
+        }
+
+        long bits = exponent2 << 52 | result & T_MASK;
+
+        if (negative) {
+            bits |= Long.MIN_VALUE;
+        }
+
+        return Double.longBitsToDouble(bits);
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Гистограмма неотрицательных значений, например, задержек в наносекундах.
+ * <p>
+ * Корзины устроены как в HdrHistogram: каждая степень двойки делится на {@value #SUB_BUCKETS} равных частей,
+ * поэтому погрешность значения не больше {@code 1/32} от него самого при любом масштабе. Все счётчики лежат
+ * в одном {@code long[]} и увеличиваются атомарно, без блокировок и выделения памяти.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // значения меньше SUB_BUCKETS хранятся точно, дальше по SUB_BUCKETS корзин на каждую степень двойки до 2^62
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private static final VarHandle VH__COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    long[] counts;
+
+    public LatencyHistogram() {
+        this.counts = new long[BUCKETS];
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        val exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        val shift = exponent - SUB_BUCKET_BITS;
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        val shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        val subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+
+        return (1L << (shift + SUB_BUCKET_BITS)) | ((long) subBucket << shift);
+    }
+
+    static long highestValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        val shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+
+    /**
+     * Добавить значение в гистограмму.
+     *
+     * @param value Значение, отрицательные считаются нулём
+     */
+    public void record(final long value) {
+        VH__COUNTS.getAndAdd(counts, index(Math.max(0, value)), 1L);
+    }
+
+    /**
+     * Получить количество значений в гистограмме.
+     *
+     * @return Количество значений
+     */
+    public long getCount() {
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            count += (long) VH__COUNTS.getOpaque(counts, i);
+        }
+
+        return count;
+    }
+
+    /**
+     * Получить значение, меньше или равно которому {@code percentile} процентов значений.
+     *
+     * @param percentile Процентиль от {@code 0} до {@code 100}, например, {@code 99.9}
+     * @return Верхняя граница корзины, в которую попал процентиль, или {@code 0}, если значений нет
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Illegal percentile: " + percentile);
+        }
+
+        val snapshot = _snapshot();
+
+        long count = 0;
+
+        for (val bucket : snapshot) {
+            count += bucket;
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        val target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+
+            if (seen >= target) {
+                return highestValue(i);
+            }
+        }
+
+        return highestValue(BUCKETS - 1);
+    }
+
+    /**
+     * Получить наибольшее значение в гистограмме.
+     *
+     * @return Верхняя граница самой последней непустой корзины или {@code 0}, если значений нет
+     */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if ((long) VH__COUNTS.getOpaque(counts, i) != 0) {
+                return highestValue(i);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Получить среднее значение.
+     *
+     * @return Среднее по серединам корзин или {@code 0}, если значений нет
+     */
+    public double getMean() {
+        val snapshot = _snapshot();
+
+        long count = 0;
+        double total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] != 0) {
+                count += snapshot[i];
+                total += snapshot[i] * ((lowestValue(i) + highestValue(i)) / 2.0);
+            }
+        }
+
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Очистить гистограмму.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            VH__COUNTS.setOpaque(counts, i, 0L);
+        }
+    }
+
+    private long[] _snapshot() {
+        val snapshot = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = (long) VH__COUNTS.getOpaque(counts, i);
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram[count=" + getCount()
+                + ", p50=" + getValueAtPercentile(50)
+                + ", p99=" + getValueAtPercentile(99)
+                + ", p999=" + getValueAtPercentile(99.9)
+                + ", max=" + getMax() + "]";
+    }
+
+}
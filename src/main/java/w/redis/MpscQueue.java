@@ -0,0 +1,86 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Неблокирующая очередь для нескольких производителей и одного потребителя.
+ * <p>
+ * Производители добавляют элементы одним {@code getAndSet} хвоста, поэтому они никогда не
+ * повторяют операцию. Методы {@link #poll()} и {@link #isEmpty()} может вызывать только один
+ * поток в один момент времени.
+ *
+ * @param <E> Тип элементов
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+final class MpscQueue<E> {
+
+    AtomicReference<Node<E>> tail;
+
+    @NonFinal
+    Node<E> head;
+
+    MpscQueue() {
+        val stub = new Node<E>(null);
+
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    void offer(final E value) {
+        val node = new Node<>(value);
+        tail.getAndSet(node).next = node;
+    }
+
+    E poll() {
+        val next = head.next;
+
+        if (next == null) {
+            return null;
+        }
+
+        val value = next.value;
+        next.value = null;
+
+        head = next;
+
+        return value;
+    }
+
+    boolean isEmpty() {
+        return head.next == null;
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    private static final class Node<E> {
+        E value;
+
+        volatile Node<E> next;
+
+        Node(final E value) {
+            this.value = value;
+        }
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Транспорт на основе неблокирующего {@link SocketChannel}.
+ * <p>
+ * Вместо блокировки в системном вызове поток паркуется, а цикл событий {@link RedisEventLoop}
+ * будит его, когда канал становится готов к чтению или записи. Ожидающий поток при этом всё равно
+ * занят, т.е. каждый одновременный блокирующий вызов держит свой поток. Без потоков на вызов
+ * работает только чтение через {@link #listen(Runnable)}, которым пользуется {@link RedisMultiplexer}.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+final class NioRedisTransport implements RedisTransport, RedisEventLoop.Handler {
+
+    InetSocketAddress address;
+
+    int soSndBuf;
+    int soRcvBuf;
+
+    long timeout;
+
+    long readTimeout;
+
+    boolean tcpNoDelay;
+
+    RedisEventLoop eventLoop;
+
+    Runnable updateInterest;
+
+    ByteBuffer[] gather;
+
+    @NonFinal
+    RedisEventLoop currentEventLoop;
+
+    // меняются и в потоке пользователя, и в потоке цикла событий, который закрывает канал
+    @NonFinal
+    volatile SocketChannel channel;
+
+    @NonFinal
+    volatile SelectionKey key;
+
+    @NonFinal
+    volatile Thread waiter;
+
+    @NonFinal
+    volatile int waitOps;
+
+    @NonFinal
+    volatile Runnable listener;
+
+    @NonFinal
+    ByteBuffer writeBuffer;
+
+    @NonFinal
+    ByteBuffer readBuffer;
+
+    NioRedisTransport(final Redis.Config config) {
+        this.address = config.getAddress();
+        this.soSndBuf = config.getSoSndBuf();
+        this.soRcvBuf = config.getSoRcvBuf();
+        this.timeout = config.getConnectTimeoutMillis();
+        this.readTimeout = config.getReadTimeoutMillis();
+        this.tcpNoDelay = config.isTcpNoDelay();
+        this.eventLoop = config.getEventLoop();
+        this.updateInterest = this::_updateInterest;
+        this.gather = new ByteBuffer[2];
+    }
+
+    @Override
+    public boolean isConnected() {
+        val channel = this.channel;
+
+        return channel != null && channel.isConnected();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        val channel = SocketChannel.open();
+        this.channel = channel;
+
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, soSndBuf);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, soRcvBuf);
+
+            val eventLoop = currentEventLoop = this.eventLoop != null ? this.eventLoop : RedisEventLoop.shared();
+            key = eventLoop.register(channel, this);
+
+            if (!channel.connect(address)) {
+                val deadline = timeout == 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+                while (!channel.finishConnect()) {
+                    _await(SelectionKey.OP_CONNECT, deadline);
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            close();
+
+            throw e;
+        }
+    }
+
+    private static ByteBuffer _wrap(final ByteBuffer buffer, final byte[] array, final int offset, final int length) {
+        val result = buffer == null || buffer.array() != array
+                ? ByteBuffer.wrap(array)
+                : buffer;
+
+        result.limit(offset + length).position(offset);
+
+        return result;
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length) throws IOException {
+        write(writeBuffer = _wrap(writeBuffer, array, offset, length));
+    }
+
+    @Override
+    public void write(final ByteBuffer buffer) throws IOException {
+        val channel = _channel();
+
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                _await(SelectionKey.OP_WRITE, 0);
+            }
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer header, final ByteBuffer payload) throws IOException {
+        val channel = _channel();
+        val gather = this.gather;
+
+        gather[0] = header;
+        gather[1] = payload;
+
+        try {
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                if (channel.write(gather) == 0) {
+                    _await(SelectionKey.OP_WRITE, 0);
+                }
+            }
+        } finally {
+            gather[0] = gather[1] = null;
+        }
+    }
+
+    @Override
+    public void transfer(final FileChannel file, long position, long count) throws IOException {
+        val channel = _channel();
+
+        while (count > 0) {
+            val transferred = file.transferTo(position, count, channel);
+
+            if (transferred == 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("File ended at " + position + ", " + count + " bytes left");
+                }
+
+                _await(SelectionKey.OP_WRITE, 0);
+                continue;
+            }
+
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    @Override
+    public int read(final byte[] array, final int offset, final int length) throws IOException {
+        return read(readBuffer = _wrap(readBuffer, array, offset, length));
+    }
+
+    @Override
+    public int read(final ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+
+        val channel = _channel();
+
+        int read;
+
+        if ((read = channel.read(buffer)) != 0) {
+            return read;
+        }
+
+        // как SO_TIMEOUT у блокирующего сокета: ограничено ожидание данных, а не чтение всего ответа
+        val deadline = readTimeout == 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeout);
+
+        do {
+            _await(SelectionKey.OP_READ, deadline);
+        } while ((read = channel.read(buffer)) == 0);
+
+        return read;
+    }
+
+    @Override
+    public int readNow(final byte[] array, final int offset, final int length) throws IOException {
+        return readNow(readBuffer = _wrap(readBuffer, array, offset, length));
+    }
+
+    @Override
+    public int readNow(final ByteBuffer buffer) throws IOException {
+        return _channel().read(buffer);
+    }
+
+    @Override
+    public boolean listen(final Runnable listener) {
+        this.listener = listener;
+        currentEventLoop.execute(updateInterest);
+
+        return true;
+    }
+
+    private SocketChannel _channel() throws IOException {
+        val channel = this.channel;
+
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+
+        return channel;
+    }
+
+    private void _await(final int ops, final long deadline) throws IOException {
+        val eventLoop = currentEventLoop;
+
+        if (key == null) {
+            throw new ClosedChannelException();
+        }
+
+        if (eventLoop.inEventLoop()) {
+            // поток цикла событий нельзя парковать, иначе его некому будет разбудить, а ждать в цикле
+            // значит остановить все остальные каналы этого цикла событий
+            throw new IllegalStateException("Blocking I/O is not allowed in the event loop thread");
+        }
+
+        val thread = Thread.currentThread();
+
+        waiter = thread;
+        waitOps = ops;
+
+        try {
+            try {
+                // interestOps меняется только в потоке цикла событий, чтобы ожидание не перетёрло слушателя
+                eventLoop.execute(updateInterest);
+            } catch (final IllegalStateException e) {
+                // цикл событий закрыли до того, как мы поставили задачу, это увидит проверка ниже
+            }
+
+            while (waiter == thread) {
+                if (eventLoop.isClosed()) {
+                    // цикл событий закроет канал и разбудит нас, но мог успеть это сделать до того, как мы встали в очередь
+                    break;
+                }
+
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    val remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException(ops == SelectionKey.OP_CONNECT
+                                ? "Connect timed out"
+                                : "Read timed out");
+                    }
+
+                    LockSupport.parkNanos(this, remaining);
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+
+        if (eventLoop.isClosed()) {
+            throw new AsynchronousCloseException();
+        }
+    }
+
+    private void _updateInterest() {
+        val key = this.key;
+
+        if (key == null) {
+            _wakeUp();
+            return;
+        }
+
+        try {
+            key.interestOps(waitOps | (listener != null ? SelectionKey.OP_READ : 0));
+        } catch (final CancelledKeyException e) {
+            _wakeUp();
+        }
+    }
+
+    @Override
+    public void ready(final SelectionKey key) {
+        val readyOps = key.readyOps();
+        val listener = this.listener;
+
+        if (listener != null && (readyOps & SelectionKey.OP_READ) != 0) {
+            listener.run();
+        }
+
+        if ((readyOps & waitOps) != 0) {
+            waitOps = 0;
+
+            _updateInterest();
+            _wakeUp();
+        }
+    }
+
+    @Override
+    public void closed() {
+        val listener = this.listener;
+
+        try {
+            close();
+        } catch (final IOException ignored) {
+        }
+
+        if (listener != null) {
+            // слушатель прочитает из закрытого канала и завершит команды, которые ждут ответа
+            listener.run();
+        }
+    }
+
+    private void _wakeUp() {
+        val thread = waiter;
+
+        if (thread != null) {
+            waiter = null;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // закрыть может и пользователь, и цикл событий через closed(), но канал закрывается только один раз
+    @Override
+    public synchronized void close() throws IOException {
+        val channel = this.channel;
+
+        if (channel != null) {
+            this.channel = null;
+
+            val key = this.key;
+
+            if (key != null) {
+                this.key = null;
+                key.cancel();
+            }
+
+            listener = null;
+
+            try {
+                channel.close();
+            } finally {
+                _wakeUp();
+            }
+        }
+    }
+
+}
@@ -17,7 +17,6 @@
 package w.redis;
 
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
@@ -27,17 +26,25 @@ import lombok.experimental.NonFinal;
 import lombok.val;
 import sun.misc.Unsafe;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.lang.ref.Reference;
 import java.lang.reflect.Modifier;
+import java.math.BigInteger;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.charset.Charset;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -46,6 +53,15 @@ import java.util.concurrent.TimeUnit;
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public final class Redis implements AutoCloseable {
 
+    private static final int STATE_PUSH = 14;
+    private static final int STATE_VERBATIM = 13;
+    private static final int STATE_BIG_NUMBER = 12;
+    private static final int STATE_BOOLEAN = 11;
+    private static final int STATE_NULL = 10;
+    private static final int STATE_DOUBLE = 9;
+    private static final int STATE_BLOB_ERR = 8;
+    private static final int STATE_SET = 7;
+    private static final int STATE_MAP = 6;
     private static final int STATE_ARRAY = 5;
     private static final int STATE_NUMBER = 4;
     private static final int STATE_STRING = 3;
@@ -53,7 +69,53 @@ public final class Redis implements AutoCloseable {
     private static final int STATE_ERR = 1;
     private static final int STATE_UNKNOWN = 0;
 
+    /**
+     * Значение, которым {@link #nextLongArray(long[])} заменяет пустые элементы.
+     */
+    public static final long NULL_LONG = Long.MIN_VALUE;
+
+    /**
+     * Значение, которым {@link #nextIntArray(int[])} заменяет пустые элементы.
+     */
+    public static final int NULL_INT = Integer.MIN_VALUE;
+
+    // степени десяти, которые представимы в double без потери точности
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // степени десяти для склеивания чисел по 8 цифр
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+    };
+
+    // константы SWAR: каждый байт слова обрабатывается отдельно одной операцией над long
+    private static final long SWAR_ONES = 0x0101010101010101L;
+    private static final long SWAR_HIGHS = 0x8080808080808080L;
+    private static final long SWAR_CR = 0x0D0D0D0D0D0D0D0DL;
+    private static final long SWAR_ZEROS = 0x3030303030303030L;
+    private static final long SWAR_DIGIT_LIMIT = 0x7676767676767676L;
+
+    // слова для SWAR читаются через публичные VarHandle: первый байт всегда младший, а границы проверяются
+    private static final VarHandle VH__ARRAY_WORD = MethodHandles.byteArrayViewVarHandle(
+            long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle VH__BUFFER_WORD = MethodHandles.byteBufferViewVarHandle(
+            long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final CommandTemplate CLIENT_TRACKING_ON = CommandTemplate.of("CLIENT", "TRACKING", "ON");
+
+    // байты меньше этого размера дешевле скопировать в буффер записи, чем отправлять отдельно
+    private static final int MIN_SEGMENT_LENGTH = 8192;
+
+    private static final Unsafe UNSAFE;
+
     private static final VarHandle VH__STRING_VALUE;
+    private static final VarHandle VH__STRING_CODER;
+    private static final VarHandle VH__BUFFER_ADDRESS;
+
+    // String.coder строки, символы которой хранятся по одному байту
+    private static final byte LATIN1 = 0;
 
     static {
         final MethodHandles.Lookup implLookup;
@@ -63,7 +125,7 @@ public final class Redis implements AutoCloseable {
             val theUnsafeField = Unsafe.class.getDeclaredField("theUnsafe");
             theUnsafeField.setAccessible(true);
 
-            val theUnsafe = (Unsafe) theUnsafeField.get(null);
+            val theUnsafe = UNSAFE = (Unsafe) theUnsafeField.get(null);
 
             val implLookupField = MethodHandles.Lookup.class.getDeclaredField("IMPL_LOOKUP");
 
@@ -73,6 +135,8 @@ public final class Redis implements AutoCloseable {
             );
 
             VH__STRING_VALUE = implLookup.findVarHandle(String.class, "value", byte[].class);
+            VH__STRING_CODER = implLookup.findVarHandle(String.class, "coder", byte.class);
+            VH__BUFFER_ADDRESS = implLookup.findVarHandle(Buffer.class, "address", long.class);
         } catch (final Exception e) {
             throw new RuntimeException(e);
         }
@@ -213,31 +277,62 @@ public final class Redis implements AutoCloseable {
     String username;
     String password;
 
-    int soSndBuf;
-    int soRcvBuf;
+    int protocol;
+
+    boolean clientTracking;
+
+    RedisPushListener pushListener;
+
+    // null, если метрики выключены
+    RedisMetrics metrics;
+
+    // null, если кэша строк нет
+    RedisStringCache stringCache;
+
+    // команды, ответ на которые ещё не пришёл, для замера их задержки. null, если метрики выключены
+    PendingCommands pending;
 
     WriteRedisBuffer write;
 
     ReadRedisBuffer read;
 
-    long timeout;
-
-    boolean tcpNoDelay;
+    RedisTransport transport;
 
     @NonFinal
     boolean closed;
 
     @NonFinal
-    Socket socket;
+    int state;
 
+    // ответ читается через readFrame, выходить за его границы нельзя
     @NonFinal
-    InputStream input;
+    boolean framed;
 
+    // докуда frameEnd уже разобрал незаконченный ответ, относительно позиции буффера чтения
     @NonFinal
-    OutputStream output;
+    int frameOffset;
 
     @NonFinal
-    int state;
+    long framePending;
+
+    // слушатель сейчас читает push сообщение, поэтому его нужно отдавать как обычный ответ
+    @NonFinal
+    boolean pushing;
+
+    // начало строки, прочитанной через nextBulkSlice
+    @NonFinal
+    int sliceOffset;
+
+    // последний элемент, прочитанный через _nextLongElement или _nextDoubleElement, был пустым
+    @NonFinal
+    boolean nullElement;
+
+    // участок, который возвращает nextSlice
+    ByteSlice slice;
+
+    // копия ответа для frameArray, если буффер чтения находится вне кучи
+    @NonFinal
+    byte[] frameScratch;
 
     /**
      * Конструктор редис клиента.
@@ -245,15 +340,86 @@ public final class Redis implements AutoCloseable {
      * @param config Конфиг редис клиента
      */
     public Redis(final Config config) {
+        this(config, _createTransport(config));
+    }
+
+    Redis(final Config config, final RedisTransport transport) {
         this.address = config.getAddress();
         this.username = config.getUsername();
         this.password = config.getPassword();
-        this.soSndBuf = config.getSoSndBuf();
-        this.soRcvBuf = config.getSoRcvBuf();
-        this.write = new WriteRedisBuffer(new byte[config.getWriteBufferCapacity()], 0);
-        this.read = new ReadRedisBuffer(new byte[config.getReadBufferCapacity()], 0);
-        this.timeout = config.getConnectTimeoutMillis();
-        this.tcpNoDelay = config.isTcpNoDelay();
+        this.protocol = config.getProtocol();
+        this.clientTracking = config.isClientTracking();
+        this.pushListener = config.getPushListener();
+        this.metrics = config.getMetrics();
+        this.stringCache = config.getStringCache();
+        this.pending = metrics != null ? new PendingCommands() : null;
+        this.write = new WriteRedisBuffer(config.getWriteBufferCapacity(), config.isDirectBuffers());
+        this.read = new ReadRedisBuffer(config.getReadBufferCapacity(), config.isDirectBuffers());
+        this.transport = transport;
+
+        write.metrics = metrics;
+        read.metrics = metrics;
+
+        this.slice = new ByteSlice();
+    }
+
+    private static RedisTransport _createTransport(final Config config) {
+        switch (config.getTransport()) {
+            case NIO:
+                return new NioRedisTransport(config);
+            case SOCKET:
+            default:
+                return new SocketRedisTransport(config);
+        }
+    }
+
+    private void _hello() throws IOException {
+        // буффер увеличится сам, если username и password окажутся длинными
+        val helloBuffer = new WriteRedisBuffer(64, false);
+
+        if (password != null) {
+            helloBuffer.writeCommand("HELLO", 4);
+            helloBuffer.writeAscii("3");
+            helloBuffer.writeAscii("AUTH");
+            helloBuffer.writeUTF(username != null ? username : "default");
+            helloBuffer.writeUTF(password);
+        } else {
+            helloBuffer.writeCommand("HELLO", 1);
+            helloBuffer.writeAscii("3");
+        }
+
+        _flush(helloBuffer);
+        _read();
+
+        if (isError()) {
+            val message = nextString();
+            transport.close();
+
+            if (password != null && (message.startsWith("WRONGPASS") || message.startsWith("NOAUTH"))) {
+                throw new AuthException(message);
+            }
+
+            throw new ProtocolException("Can't switch to RESP3: " + message);
+        }
+
+        skip(); // информация о сервере
+    }
+
+    private void _enableTracking() throws IOException {
+        val trackingBuffer = new WriteRedisBuffer(64, false);
+        trackingBuffer.writeHeader(CLIENT_TRACKING_ON.header());
+
+        _flush(trackingBuffer);
+        _read();
+
+        // текст ошибки тоже прочитается как строка. После любого ответа, кроме +OK, подключение закрывается
+        val message = nextString();
+
+        if (!"OK".equals(message)) {
+            transport.close();
+
+            throw new ProtocolException("Can't enable client tracking: " + message);
+        }
     }
 
     private void _resetState() {
@@ -261,22 +427,35 @@ public final class Redis implements AutoCloseable {
     }
 
     private void _connect() throws SocketException, AuthException {
-        if (socket == null || !socket.isConnected()) {
+        if (!transport.isConnected()) {
             if (closed) {
                 throw new IllegalStateException("Redis instance was closed");
             }
 
             try {
-                socket = new Socket();
-                socket.setTcpNoDelay(tcpNoDelay);
-                socket.setSendBufferSize(soSndBuf);
-                socket.setReceiveBufferSize(soRcvBuf);
-                socket.connect(address, (int) timeout);
+                long startTime = metrics != null ? System.nanoTime() : 0;
+
+                transport.connect();
+
+                if (metrics != null) {
+                    val now = System.nanoTime();
+                    metrics.onConnect(address, now - startTime);
+
+                    startTime = now;
 
-                output = socket.getOutputStream();
-                input = socket.getInputStream();
+                    // ответы на отправленные команды в новое подключение уже не придут
+                    pending.dropFlushed();
+                }
+
+                // всё, что осталось от прошлого подключения, уже не имеет смысла
+                read.setPosition(0);
+                read.setLength(0);
+                frameOffset = 0;
+                _resetState();
 
-                if (password != null) {
+                if (protocol == 3) {
+                    _hello();
+                } else if (password != null) {
                     // Может произойти такая ситуация, что кто-то уже записал что-то в буффер до коннекта
                     // поэтому нужно создать отдельный буффер..
 
@@ -285,15 +464,14 @@ public final class Redis implements AutoCloseable {
                     if (username != null) {
                         // магические цифры.. я просто чекнул position и вычел username.length и password.length =)
                         // а ещё будем надеяться, что username и password в US_ASCII
-                        authBuffer = new WriteRedisBuffer(new byte[27 + username.length() + password.length()],
-                                0);
+                        authBuffer = new WriteRedisBuffer(27 + username.length() + password.length(), false);
                         authBuffer.writeCommand("AUTH", 2);
 
                         // я бы сделал ascii, но кто знает, мб у людей юзер/пароль на русском
                         authBuffer.writeUTF(username);
                         authBuffer.writeUTF(password);
                     } else {
-                        authBuffer = new WriteRedisBuffer(new byte[21 + password.length()], 0);
+                        authBuffer = new WriteRedisBuffer(21 + password.length(), false);
                         authBuffer.writeCommand("AUTH", 1);
                         authBuffer.writeUTF(password);
                     }
@@ -302,12 +480,26 @@ public final class Redis implements AutoCloseable {
                     _read();
 
                     if (isError()) {
-                        socket = null;
-                        output = null;
-                        input = null;
+                        val message = nextString();
+                        transport.close();
 
-                        throw new AuthException(nextString());
+                        throw new AuthException(message);
                     }
+
+                    skip(); // +OK
+                }
+
+                if (metrics != null && (protocol == 3 || password != null)) {
+                    metrics.onAuth(address, System.nanoTime() - startTime);
+                }
+
+                if (clientTracking) {
+                    _enableTracking();
+                }
+
+                if (pushListener != null) {
+                    // push сообщения, которые не успели прийти в старое подключение, потеряны
+                    pushListener.onConnect(this);
                 }
             } catch (final IOException e) {
                 throw new SocketException("Can't connect to " + address, e);
@@ -329,6 +521,61 @@ public final class Redis implements AutoCloseable {
         _connect();
     }
 
+    /**
+     * Проверить, открыто ли подключение к Redis серверу.
+     *
+     * @return {@code true}, если подключение открыто
+     */
+    public boolean isConnected() {
+        return transport.isConnected();
+    }
+
+    /**
+     * Проверить, был ли клиент закрыт через {@link #close()}.
+     *
+     * @return {@code true}, если клиент закрыт
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // в буффере записи есть неотправленные команды или в буффере чтения остались непрочитанные ответы
+    boolean isDirty() {
+        return write.getPosition() != 0 || read.hasRemaining();
+    }
+
+    // позиция в буффере записи, к которой можно откатиться, если команду не удалось записать целиком
+    int mark() {
+        return write.getPosition();
+    }
+
+    void rewind(final int mark) {
+        write.truncate(mark);
+
+        if (pending != null) {
+            pending.truncate(mark);
+        }
+    }
+
+    // закрыть подключение, но не сам клиент, т.е. следующая команда подключится заново
+    void disconnect() {
+        write.truncate(0);
+
+        if (pending != null) {
+            pending.clear();
+        }
+
+        read.setPosition(0);
+        read.setLength(0);
+        frameOffset = 0;
+        _resetState();
+
+        try {
+            transport.close();
+        } catch (final IOException ignored) {
+        }
+    }
+
     /**
      * Записать 32-битное число в буффер записи.
      * <p>
@@ -359,14 +606,34 @@ public final class Redis implements AutoCloseable {
         return this;
     }
 
+    /**
+     * Записать число с плавающей точкой в буффер записи.
+     * <p>
+     * Число записывается самым коротким текстом, из которого Redis сервер прочитает то же самое число,
+     * например, {@code 0.1} вместо {@code 0.1000000000000000055511151231257827}. Бесконечности записываются
+     * как {@code inf} и {@code -inf}, их понимают {@code ZADD} и {@code ZRANGEBYSCORE}.
+     * <p>
+     * Это не спровоцирует подключение к Redis серверу, чтобы отправить данные,
+     * воспользуйтесь методом {@link #flush()} или {@link #flushAndRead()}
+     *
+     * @param number Число
+     * @return Текущий экземпляр редис клиента, проще - {@code this}
+     * @throws IllegalArgumentException Выбрасывается, если число - {@link Double#NaN}, Redis сервер его не примет
+     */
+    public Redis writeDouble(final double number) {
+        write.writeDouble(number);
+
+        return this;
+    }
+
     /**
      * Записать {@code UTF} в буффер записи.
      * <p>
-     * Этот метод получает из строки байты через метод {@link String#getBytes(Charset)} и записывает
-     * их в буффер записи.
+     * Этот метод сначала считает длину строки в {@code UTF-8}, а потом кодирует её сразу в буффер записи,
+     * не создавая временный массив байтов. Строки из {@code US_ASCII} копируются как есть.
      * <p>
      * Если вы уверены в том, что в строке используются только символы из {@code US_ASCII}, вы
-     * можете воспользоваться методом {@link #writeAscii(String)}, поскольку он не создаёт временный массив байтов.
+     * можете воспользоваться методом {@link #writeAscii(String)}, поскольку он не проходит по строке дважды.
      *
      * @param text Текст
      * @return Текущий экземпляр редис клиента, проще - {@code this}
@@ -406,6 +673,40 @@ public final class Redis implements AutoCloseable {
         return this;
     }
 
+    /**
+     * Записать байты из {@link ByteBuffer} в буффер записи.
+     * <p>
+     * Большие буфферы не копируются в буффер записи, туда попадает только заголовок, а сами байты
+     * отправляются прямо из {@code bytes} при {@link #flush()}, поэтому буффер записи не увеличивается.
+     * Позиция {@code bytes} не меняется, но его содержимое нельзя менять до отправки.
+     *
+     * @param bytes Буффер, байты от {@link ByteBuffer#position()} до {@link ByteBuffer#limit()} будут записаны
+     * @return Текущий экземпляр редис клиента, проще - {@code this}
+     */
+    public Redis writeBytes(final ByteBuffer bytes) {
+        write.writeBytes(bytes);
+
+        return this;
+    }
+
+    /**
+     * Записать часть файла в буффер записи.
+     * <p>
+     * Файл не копируется в буффер записи, туда попадает только заголовок, а сами байты отправляются
+     * при {@link #flush()} через {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     * Файл нельзя закрывать до отправки.
+     *
+     * @param file     Файл
+     * @param position Позиция в файле, с которой начинаются байты
+     * @param length   Количество байтов
+     * @return Текущий экземпляр редис клиента, проще - {@code this}
+     */
+    public Redis writeFile(final FileChannel file, final long position, final int length) {
+        write.writeFile(file, position, length);
+
+        return this;
+    }
+
     /**
      * Записать команду в буффер записи.
      *
@@ -414,664 +715,2812 @@ public final class Redis implements AutoCloseable {
      * @return Текущий экземпляр редис клиента, проще - {@code this}
      */
     public Redis writeCommand(final String name, final int arguments) {
+        if (pending != null) {
+            pending.add(name, write.getPosition());
+        }
+
         write.writeCommand(name, arguments);
 
         return this;
     }
 
-    private void _flush() throws IOException {
-        _flush(write);
-    }
-
-    private void _flush(final WriteRedisBuffer buffer) throws IOException {
-        output.write(buffer.getArray(), 0, buffer.getPosition());
-        buffer.setPosition(0);
-    }
-
     /**
-     * Отправить буффер записи на Redis сервер.
+     * Записать заранее закодированную команду в буффер записи.
      * <p>
-     * Если подключение не открыто, это откроет новое подключение.
+     * Работает так же, как {@link #writeCommand(String, int)}, но не кодирует количество аргументов
+     * и название команды каждый раз заново.
+     *
+     * @param template Шаблон команды
+     * @return Текущий экземпляр редис клиента, проще - {@code this}
      */
-    @SneakyThrows
-    public void flush() {
-        _connect();
-        _flush();
+    public Redis writeCommand(final CommandTemplate template) {
+        if (pending != null) {
+            pending.add(template.getName(), write.getPosition());
+        }
+
+        write.writeHeader(template.header());
+
+        return this;
     }
 
     /**
-     * Отправить буффер записи на Redis сервер и прочитать ответ в буффер чтения.
-     * <p>
-     * Если подключение не открыто, это откроет новое подключение.
+     * Записать заранее закодированную команду с переменным количеством аргументов, например, {@code MGET}.
      * <p>
-     * Буффером чтения вы можете воспользоваться при помощи методов {@link #nextInt()}, {@link #nextLong()},
-     * {@link #nextArray()}, {@link #nextString()} и т.д.
+     * Количество элементов кодируется заново, а название команды и аргументы из шаблона просто
+     * копируются. Количество аргументов из шаблона при этом не используется.
+     *
+     * @param template  Шаблон команды
+     * @param arguments Количество аргументов, которые будут записаны после шаблона
+     * @return Текущий экземпляр редис клиента, проще - {@code this}
      */
-    @SneakyThrows
-    public void flushAndRead() {
-        _connect();
+    public Redis writeCommand(final CommandTemplate template, final int arguments) {
+        if (arguments < 0) {
+            throw new IllegalArgumentException("Illegal arguments count: " + arguments);
+        }
 
-        _flush();
-        _read();
-    }
+        if (pending != null) {
+            pending.add(template.getName(), write.getPosition());
+        }
 
-    private void _read() throws IOException {
-        val readBuffer = read;
-        readBuffer.setPosition(0);
-        readBuffer.setLength(0);
+        write.writeHeader(template.header(), template.countLength(), template.elements() + arguments);
 
-        val array = readBuffer.getArray();
+        return this;
+    }
 
-        final int read;
+    // записать аргументы, закодированные через CommandTemplate.encode
+    Redis writeEncoded(final byte[] encoded) {
+        write.writeHeader(encoded);
+
+        return this;
+    }
 
-        if ((read = input.read(array, 0, array.length)) == readBuffer.getCapacity()) {
-            readBuffer.resize();
+    private void _flush() throws IOException {
+        if (metrics == null) {
+            _flush(write);
+            return;
         }
 
-        readBuffer.setLength(read);
-        state = STATE_UNKNOWN;
+        // отмечаем команды до записи: с RedisMultiplexer ответ может прочитать другой поток
+        // раньше, чем writeTo вернёт управление
+        val commands = pending.flush(System.nanoTime());
+        val bytes = _flush(write);
+
+        metrics.onFlush(commands, bytes);
     }
 
-    /**
-     * Прочитать ответ Redis сервера в буффер чтения.
-     * <p>
-     * Если подключение не открыто, это откроет новое подключение.
-     * <p>
-     * Буффером чтения вы можете воспользоваться при помощи методов {@link #nextInt()}, {@link #nextLong()},
-     * {@link #nextArray()}, {@link #nextString()} и т.д.
-     */
-    @SneakyThrows
-    public void read() {
-        _connect();
-        _read();
+    private long _flush(final WriteRedisBuffer buffer) throws IOException {
+        return buffer.writeTo(transport);
     }
 
-    /**
-     * Закрыть Redis клиент.
-     * <p>
-     * Это полностью закроет Redis клиент без возможности открыть подключение заново.
-     */
-    @Override
-    @SneakyThrows
-    public void close() {
-        if (socket != null) {
-            closed = true;
+    // начать асинхронное чтение, если транспорт это умеет. listener вызывается, когда можно сделать fill(false)
+    boolean listen(final Runnable listener) {
+        return transport.listen(listener);
+    }
+
+    // дочитать данные в конец буффера чтения, сохранив непрочитанные данные
+    int fill(final boolean blocking) throws IOException {
+        val buffer = read;
+
+        int length = buffer.getLength();
+        val position = buffer.getPosition();
 
-            socket.close();
-            socket = null;
+        if (position != 0) {
+            buffer.move(position, 0, length - position);
 
-            output = null;
-            input = null;
+            buffer.setPosition(0);
+            buffer.setLength(length -= position);
         }
-    }
 
-    private static int digit(final char value) {
-        return value >= '0' && value <= '9' ? value & 0xF : -1;
-    }
+        if (length == buffer.getCapacity()) {
+            // ответ не помещается в буффер целиком
+            buffer.resize();
+        }
 
-    @SneakyThrows
-    private int _readState() {
-        if (state == STATE_UNKNOWN) {
-            final ReadRedisBuffer buffer;
+        val memory = buffer.slice(length, buffer.getCapacity() - length);
 
-            if (!(buffer = this.read).hasRemaining()) {
-                _read();
-            }
+        val count = blocking
+                ? transport.read(memory)
+                : transport.readNow(memory);
 
-            final byte value;
+        if (count > 0) {
+            buffer.setLength(length + count);
 
-            switch ((value = buffer.getNext())) {
-                case '*':
-                    return state = STATE_ARRAY;
-                case ':':
-                    return state = STATE_NUMBER;
-                case '$':
-                    return state = STATE_STRING;
-                case '+':
-                    return state = STATE_OK;
-                case '-':
-                    return state = STATE_ERR;
-                default:
-                    throw new IllegalArgumentException("Illegal token: " + (char) value + " (bin: " + value + ")");
+            if (metrics != null) {
+                metrics.onRead(count);
             }
         }
 
-        return state;
-    }
-
-    @Override
-    public String toString() {
-        return "Redis[address=" + address + "]";
+        return count;
     }
 
-    public boolean isError() {
-        return _readState() == STATE_ERR;
-    }
+    // длина из заголовка между from и \r на позиции to. Цифры читаются по 8 за раз, как в _readLong
+    private static int _parseFrameInt(final ReadRedisBuffer buffer, final int from, final int to, final int limit) {
+        int i = from;
 
-    /**
-     * Прочитать из буффера чтения массив.
-     * <p>
-     * Вы получаете размер массива, далее в цикле вы можете сделать
-     * {@link #nextString()}, {@link #nextInt()} и т.д
-     *
-     * @return Размер массива.
-     */
-    public int nextArray() {
-        val state = _readState();
+        val negative = i < to && buffer.get(i) == '-';
 
-        if (state != STATE_ARRAY) {
-            throw new IllegalStateException("Cannot read array at " + getStateName(state));
+        if (negative) {
+            i++;
         }
 
-        _resetState();
+        long result = 0;
 
-        return _readInt();
-    }
+        // больше 10 цифр в int не поместится, а длинный заголовок мог бы переполнить и long
+        val valid = i != to && to - i <= 10;
 
-    /**
-     * Прочитать строку из буффера чтения.
-     *
-     * @return Строка
-     */
-    @SneakyThrows
-    public String nextString() {
-        val state = _readState();
+        if (valid) {
+            while (i < to) {
+                int digits;
 
-        val buffer = this.read;
+                if (i + Long.BYTES <= limit) {
+                    val word = buffer.getWord(i);
 
-        try {
-            if (state == STATE_STRING) {
-                val number = _readInt();
-                val offset = buffer.getPosition();
+                    // на позиции to стоит \r, поэтому дальше него цифры не посчитаются
+                    if ((digits = _countDigits(word)) == 0) {
+                        break;
+                    }
 
-                val remaining = buffer.remaining();
+                    result = result * POWERS_OF_TEN[digits] + _parseDigits(word, digits);
+                } else {
+                    val digit = buffer.get(i) - '0';
 
-                if ((number + 2) > remaining) {
-                    _read();
+                    if (digit < 0 || digit > 9) {
+                        break;
+                    }
+
+                    result = result * 10 + digit;
+                    digits = 1;
                 }
 
-                try {
-                    return new String(buffer.getArray(), offset, number);
-                } finally {
-                    buffer.setPosition(offset + number + 2); // skip string with crlf
+                i += digits;
+            }
+        }
+
+        if (!valid || i != to || result > Integer.MAX_VALUE) {
+            throw new ProtocolException("Illegal length: " + buffer.toString(from, to - from));
+        }
+
+        return (int) (negative ? -result : result);
+    }
+
+    // конец первого целого ответа в буффере чтения или -1, если ответ ещё не дочитан
+    int frameEnd() {
+        val buffer = read;
+        val limit = buffer.getLength();
+        val start = buffer.getPosition();
+
+        int position = start + frameOffset;
+        long pending = frameOffset == 0 ? 1 : framePending;
+
+        while (pending != 0) {
+            val elementStart = position;
+
+            val crlf = _scanCrlf(buffer, position + 1, limit);
+
+            if (crlf == -1) {
+                frameOffset = elementStart - start;
+                framePending = pending;
+
+                return -1;
+            }
+
+            val type = buffer.get(position);
+            pending--;
+
+            switch (type) {
+                case '+':
+                case '-':
+                case ':':
+                case ',':
+                case '_':
+                case '#':
+                case '(':
+                    position = crlf + 2;
+                    break;
+                case '$':
+                case '!':
+                case '=': {
+                    val length = _parseFrameInt(buffer, position + 1, crlf, limit);
+
+                    // длина может быть почти Integer.MAX_VALUE, поэтому конец считается в long
+                    val end = length < 0 ? crlf + 2L : crlf + 2L + length + 2;
+
+                    if (end > limit) {
+                        frameOffset = elementStart - start;
+                        framePending = pending + 1;
+
+                        return -1;
+                    }
+
+                    position = (int) end;
+                    break;
                 }
-            } else {
+                case '*':
+                case '~':
+                case '>': {
+                    val length = _parseFrameInt(buffer, position + 1, crlf, limit);
+
+                    if (length > 0) {
+                        pending += length;
+                    }
+
+                    position = crlf + 2;
+                    break;
+                }
+                case '%': {
+                    val length = _parseFrameInt(buffer, position + 1, crlf, limit);
+
+                    if (length > 0) {
+                        pending += 2L * length;
+                    }
+
+                    position = crlf + 2;
+                    break;
+                }
+                case '|': {
+                    // атрибуты и значение, к которому они относятся
+                    pending += 2L * _parseFrameInt(buffer, position + 1, crlf, limit) + 1;
+
+                    position = crlf + 2;
+                    break;
+                }
+                default:
+                    throw new ProtocolException("Illegal token: " + (char) type + " (bin: " + type + ")");
+            }
+        }
+
+        frameOffset = 0;
+
+        return position;
+    }
+
+    // прочитать один целый ответ, который заканчивается на end. Даже если reply прочитал не всё, после
+    // него буффер будет стоять на следующем ответе
+    <T> T readFrame(final int end, final RedisReply<T> reply) {
+        if (pending != null) {
+            pending.complete(metrics, System.nanoTime());
+        }
+
+        return _readFrame(end, reply);
+    }
+
+    private <T> T _readFrame(final int end, final RedisReply<T> reply) {
+        val buffer = read;
+        val length = buffer.getLength();
+
+        buffer.setLength(end);
+        framed = true;
+
+        try {
+            return reply.read(this);
+        } finally {
+            framed = false;
+
+            buffer.setLength(length);
+            buffer.setPosition(end);
+            _resetState();
+        }
+    }
+
+    // массив, в котором лежат байты текущего ответа с теми же индексами, что и в буффере чтения.
+    // Вызывается внутри readFrame, пока ответ ещё не начали читать
+    byte[] frameArray() {
+        val buffer = read;
+
+        if (!buffer.isDirect()) {
+            return buffer.getArray();
+        }
+
+        byte[] scratch = frameScratch;
+
+        if (scratch == null || scratch.length < buffer.getCapacity()) {
+            frameScratch = scratch = new byte[buffer.getCapacity()];
+        }
+
+        val position = buffer.getPosition();
+        buffer.copyTo(position, scratch, position, buffer.getLength() - position);
+
+        return scratch;
+    }
+
+    // массив, в котором байты буффера чтения от offset до offset + length лежат с теми же индексами
+    private byte[] _arrayOf(final int offset, final int length) {
+        val buffer = read;
+
+        if (!buffer.isDirect()) {
+            return buffer.getArray();
+        }
+
+        byte[] scratch = frameScratch;
+
+        if (scratch == null || scratch.length < offset + length) {
+            frameScratch = scratch = new byte[Math.max(buffer.getCapacity(), offset + length)];
+        }
+
+        buffer.copyTo(offset, scratch, offset, length);
+
+        return scratch;
+    }
+
+    /**
+     * Прочитать следующий ответ целиком, передавая его элементы в {@code visitor}.
+     * <p>
+     * Элементы вложенных массивов и карт передаются по порядку между вызовами {@code on*Start} и
+     * {@code on*End}. Строки не копируются, а передаются участком буффера чтения, который можно
+     * использовать только внутри вызова.
+     *
+     * @param visitor Обработчик элементов ответа
+     */
+    @SneakyThrows
+    public void nextReply(final RespVisitor visitor) {
+        _visit(visitor);
+    }
+
+    private void _visit(final RespVisitor visitor) throws IOException {
+        val state = _readState();
+        _resetState();
+
+        val buffer = this.read;
+
+        switch (state) {
+            case STATE_ARRAY:
+            case STATE_SET:
+            case STATE_PUSH:
+            case STATE_MAP: {
+                val length = _readInt();
+
+                if (length < 0) {
+                    visitor.onNull();
+                    return;
+                }
+
+                switch (state) {
+                    case STATE_ARRAY:
+                        visitor.onArrayStart(length);
+                        break;
+                    case STATE_SET:
+                        visitor.onSetStart(length);
+                        break;
+                    case STATE_PUSH:
+                        visitor.onPushStart(length);
+                        break;
+                    default:
+                        visitor.onMapStart(length);
+                        break;
+                }
+
+                val elements = state == STATE_MAP ? 2L * length : length;
+
+                for (long i = 0; i < elements; i++) {
+                    _visit(visitor);
+                }
+
+                switch (state) {
+                    case STATE_ARRAY:
+                        visitor.onArrayEnd();
+                        break;
+                    case STATE_SET:
+                        visitor.onSetEnd();
+                        break;
+                    case STATE_PUSH:
+                        visitor.onPushEnd();
+                        break;
+                    default:
+                        visitor.onMapEnd();
+                        break;
+                }
+
+                return;
+            }
+            case STATE_STRING:
+            case STATE_BLOB_ERR:
+            case STATE_VERBATIM: {
+                // формат verbatim строки тоже передаётся в visitor, поэтому длина читается целиком
+                val length = _readInt();
+
+                if (length < 0) {
+                    visitor.onNull();
+                    return;
+                }
+
+                _require(length + 2);
+
+                val offset = buffer.getPosition();
+                val array = _arrayOf(offset, length);
+
+                // позицию сдвигаем заранее, чтобы исключение в visitor не оставило буффер посреди строки
+                buffer.setPosition(offset + length + 2);
+
+                if (state == STATE_BLOB_ERR) {
+                    visitor.onError(array, offset, length);
+                } else if (state == STATE_VERBATIM && length >= 4) {
+                    visitor.onVerbatim(array, offset, offset + 4, length - 4);
+                } else {
+                    visitor.onBulk(array, offset, length);
+                }
+
+                return;
+            }
+            case STATE_OK:
+            case STATE_ERR:
+            case STATE_BIG_NUMBER: {
+                val end = _findCrlf();
+                val start = buffer.getPosition();
+                val array = _arrayOf(start, end - start);
+
+                buffer.setPosition(end + 2);
+
+                if (state == STATE_OK) {
+                    visitor.onSimple(array, start, end - start);
+                } else if (state == STATE_ERR) {
+                    visitor.onError(array, start, end - start);
+                } else {
+                    visitor.onBigNumber(array, start, end - start);
+                }
+
+                return;
+            }
+            case STATE_NUMBER:
+                visitor.onInteger(_readLong());
+                return;
+            case STATE_DOUBLE: {
+                val end = _findCrlf();
                 val start = buffer.getPosition();
+
+                buffer.setPosition(end + 2);
+                visitor.onDouble(_parseDouble(buffer, start, end));
+
+                return;
+            }
+            case STATE_BOOLEAN: {
+                _require(3);
+
+                val value = buffer.getNext() == 't';
+                buffer.setPosition(buffer.getPosition() + 2); // crlf
+
+                visitor.onBoolean(value);
+                return;
+            }
+            case STATE_NULL:
                 _skipUntilCrlf();
+                visitor.onNull();
+                return;
+            default:
+                throw new IllegalStateException("Cannot read reply at " + getStateName(state));
+        }
+    }
+
+    // прочитать строку, не копируя её. Возвращает длину строки или -1, если Redis сервер ответил пустым
+    // значением, а начало строки можно узнать через sliceOffset()
+    @SneakyThrows
+    int nextBulkSlice() {
+        val state = _readState();
+        _resetState();
+
+        if (state == STATE_NULL) {
+            _skipUntilCrlf();
+
+            return -1;
+        }
+
+        if (!_isBulk(state)) {
+            throw new IllegalStateException("Cannot read bulk string at " + getStateName(state));
+        }
+
+        val length = _readBulkLength(state);
+
+        if (length < 0) {
+            return -1;
+        }
+
+        _require(length + 2);
+
+        val buffer = this.read;
+        val offset = sliceOffset = buffer.getPosition();
+        buffer.setPosition(offset + length + 2);
+
+        return length;
+    }
+
+    int sliceOffset() {
+        return sliceOffset;
+    }
+
+    /**
+     * Прочитать строку из буффера чтения, не копируя её.
+     * <p>
+     * Возвращается один и тот же {@link ByteSlice}, который смотрит на буффер чтения и действителен только
+     * до следующего чтения из этого клиента. Так можно сравнить ответ с константой или найти его в
+     * {@link java.util.Map}, не создавая {@link String}.
+     *
+     * @return Участок буффера или {@code null}, если Redis сервер ответил пустым значением
+     */
+    @SneakyThrows
+    public ByteSlice nextSlice() {
+        val state = _readState();
+        _resetState();
+
+        final int offset;
+        final int length;
+
+        val buffer = this.read;
+
+        if (state == STATE_NULL) {
+            _skipUntilCrlf();
+
+            return null;
+        } else if (_isBulk(state)) {
+            length = _readBulkLength(state);
+
+            if (length < 0) {
+                return null;
+            }
+
+            _require(length + 2);
+
+            offset = buffer.getPosition();
+            buffer.setPosition(offset + length + 2);
+        } else {
+            val end = _findCrlf();
+
+            offset = buffer.getPosition();
+            length = end - offset;
+
+            buffer.setPosition(end + 2);
+        }
+
+        slice.set(_arrayOf(offset, length), offset, length);
+
+        return slice;
+    }
+
+    /**
+     * Отправить буффер записи на Redis сервер.
+     * <p>
+     * Если подключение не открыто, это откроет новое подключение.
+     */
+    @SneakyThrows
+    public void flush() {
+        _connect();
+        _flush();
+    }
+
+    /**
+     * Отправить буффер записи на Redis сервер и прочитать ответ в буффер чтения.
+     * <p>
+     * Если подключение не открыто, это откроет новое подключение.
+     * <p>
+     * Буффером чтения вы можете воспользоваться при помощи методов {@link #nextInt()}, {@link #nextLong()},
+     * {@link #nextArray()}, {@link #nextString()} и т.д.
+     */
+    @SneakyThrows
+    public void flushAndRead() {
+        _connect();
+
+        _flush();
+        _readReply();
+    }
+
+    // прочитать ответ, если его ещё нет в буффере чтения. Сервер может прислать несколько ответов
+    // или push сообщений за раз, тогда следующий ответ уже лежит в буффере, и транспорт может
+    // больше ничего не прислать
+    private void _readReply() throws IOException {
+        if (!framed && state == STATE_UNKNOWN && read.hasRemaining()) {
+            val end = frameEnd();
+
+            // недочитанный ответ сканируется заново после следующего чтения
+            frameOffset = 0;
+
+            if (end != -1) {
+                if (pending != null) {
+                    pending.completeAll(metrics, System.nanoTime());
+                }
+
+                return;
+            }
+        }
+
+        _read();
+    }
+
+    private void _read() throws IOException {
+        if (framed) {
+            throw new IllegalStateException("Reply reader tried to read past the end of its reply");
+        }
+
+        final int count;
+
+        try {
+            count = fill(true);
+        } catch (final SocketTimeoutException e) {
+            // ответ ещё может прийти, и тогда его прочитали бы как ответ на следующую команду
+            disconnect();
+
+            throw e;
+        }
+
+        if (count < 0) {
+            throw new EOFException("Connection closed by server");
+        }
+
+        if (pending != null) {
+            // без readFrame границ ответов не видно, поэтому все отправленные команды получают время до первых
+            // байтов ответа, т.е. задержку всего пайплайна. Так и написано в RedisMetrics#onCommand
+            pending.completeAll(metrics, System.nanoTime());
+        }
+    }
+
+    // дочитывать, пока в буффере чтения не будет хотя бы length непрочитанных байтов
+    private void _require(final int length) throws IOException {
+        while (read.remaining() < length) {
+            _read();
+        }
+    }
+
+    // найти конец строки, дочитывая данные при необходимости. Возвращает позицию \r
+    private int _findCrlf() throws IOException {
+        val buffer = read;
+
+        int scanned = 0;
+
+        while (true) {
+            val position = buffer.getPosition();
+            val limit = buffer.getLength();
+
+            val end = _scanCrlf(buffer, position + scanned, limit);
+
+            if (end != -1) {
+                return end;
+            }
+
+            // последний байт может оказаться \r, поэтому его проверим ещё раз
+            scanned = Math.max(0, limit - position - 1);
+
+            _read();
+        }
+    }
+
+    // найти \r\n между from и limit по 8 байтов за раз. Возвращает позицию \r или -1
+    private static int _scanCrlf(final ReadRedisBuffer buffer, final int from, final int limit) {
+        int i = from;
+
+        while (i + Long.BYTES <= limit) {
+            val cr = _indexOfCr(buffer.getWord(i));
+
+            if (cr == Long.BYTES) {
+                i += Long.BYTES;
+                continue;
+            }
+
+            i += cr;
+
+            if (i + 1 < limit && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+
+            i++;
+        }
+
+        for (; i + 1 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // индекс первого \r в слове или 8, если его там нет. Байты после первого \r могут
+    // дать ложное срабатывание из-за заёма, но они и не нужны
+    private static int _indexOfCr(final long word) {
+        val x = word ^ SWAR_CR;
+
+        return Long.numberOfTrailingZeros((x - SWAR_ONES) & ~x & SWAR_HIGHS) >>> 3;
+    }
+
+    // количество цифр в начале слова, от 0 до 8
+    private static int _countDigits(final long word) {
+        // цифры превращаются в байты 0..9, всё остальное - в байты больше 9
+        val x = word ^ SWAR_ZEROS;
+
+        return Long.numberOfTrailingZeros((x | (x + SWAR_DIGIT_LIMIT)) & SWAR_HIGHS) >>> 3;
+    }
+
+    // значение первых count цифр слова, count от 1 до 8
+    private static long _parseDigits(final long word, final int count) {
+        // сдвигаем цифры в старшие байты, младшие становятся ведущими нулями
+        long value = (word & 0x0F0F0F0F0F0F0F0FL) << ((Long.BYTES - count) << 3);
+
+        value = (value * 10 + (value >>> 8)) & 0x00FF00FF00FF00FFL;
+        value = (value * 100 + (value >>> 16)) & 0x0000FFFF0000FFFFL;
+
+        return (value * 10000 + (value >>> 32)) & 0xFFFFFFFFL;
+    }
+
+    // пропустить length байтов, не увеличивая буффер чтения
+    private void _skipBytes(int length) throws IOException {
+        val buffer = read;
+
+        while (true) {
+            val remaining = buffer.remaining();
+
+            if (remaining >= length) {
+                buffer.setPosition(buffer.getPosition() + length);
+                return;
+            }
+
+            length -= remaining;
+            buffer.setPosition(buffer.getLength());
+
+            _read();
+        }
+    }
+
+    /**
+     * Прочитать ответ Redis сервера в буффер чтения.
+     * <p>
+     * Если подключение не открыто, это откроет новое подключение.
+     * <p>
+     * Буффером чтения вы можете воспользоваться при помощи методов {@link #nextInt()}, {@link #nextLong()},
+     * {@link #nextArray()}, {@link #nextString()} и т.д.
+     */
+    @SneakyThrows
+    public void read() {
+        _connect();
+        _readReply();
+    }
+
+    /**
+     * Закрыть Redis клиент.
+     * <p>
+     * Это полностью закроет Redis клиент без возможности открыть подключение заново.
+     */
+    @Override
+    @SneakyThrows
+    public void close() {
+        if (transport.isConnected()) {
+            closed = true;
+
+            transport.close();
+        }
+    }
+
+    private static int digit(final char value) {
+        return value >= '0' && value <= '9' ? value & 0xF : -1;
+    }
+
+    @SneakyThrows
+    private int _readState() {
+        if (state == STATE_UNKNOWN) {
+            final ReadRedisBuffer buffer;
+
+            if (!(buffer = this.read).hasRemaining()) {
+                _read();
+            }
+
+            final byte value;
+
+            switch ((value = buffer.getNext())) {
+                case '*':
+                    return state = STATE_ARRAY;
+                case ':':
+                    return state = STATE_NUMBER;
+                case '$':
+                    return state = STATE_STRING;
+                case '+':
+                    return state = STATE_OK;
+                case '-':
+                    return state = STATE_ERR;
+                case '%':
+                    return state = STATE_MAP;
+                case '~':
+                    return state = STATE_SET;
+                case '!':
+                    return state = STATE_BLOB_ERR;
+                case ',':
+                    return state = STATE_DOUBLE;
+                case '_':
+                    return state = STATE_NULL;
+                case '#':
+                    return state = STATE_BOOLEAN;
+                case '(':
+                    return state = STATE_BIG_NUMBER;
+                case '=':
+                    return state = STATE_VERBATIM;
+                case '>':
+                    state = STATE_PUSH;
+
+                    if (pushListener == null || pushing) {
+                        return state;
+                    }
+
+                    _dispatchPush();
+
+                    return _readState();
+                case '|':
+                    // атрибуты относятся к следующему значению, и нам они не нужны
+                    skip(2 * _readInt());
+
+                    return _readState();
+                default:
+                    throw new IllegalArgumentException("Illegal token: " + (char) value + " (bin: " + value + ")");
+            }
+        }
+
+        return state;
+    }
+
+    // отдать слушателю push сообщение, тип которого уже прочитан
+    private void _dispatchPush() {
+        pushing = true;
+
+        try {
+            pushListener.onPush(this);
+        } finally {
+            pushing = false;
+        }
+
+        if (state == STATE_PUSH) {
+            // слушателю сообщение не интересно
+            skip();
+        }
+    }
+
+    // следующий ответ в буффере чтения - push сообщение
+    boolean isPushFrame() {
+        val buffer = read;
+
+        return state == STATE_UNKNOWN && buffer.hasRemaining() && buffer.get(buffer.getPosition()) == '>';
+    }
+
+    // прочитать push сообщение, которое заканчивается на end, и отдать его слушателю
+    void readPushFrame(final int end) {
+        _readFrame(end, redis -> {
+            redis.read.getNext();
+            redis.state = STATE_PUSH;
+
+            if (redis.pushListener != null) {
+                redis._dispatchPush();
+            } else {
+                redis.skip();
+            }
+
+            return null;
+        });
+    }
+
+    private static boolean _isBulk(final int state) {
+        return state == STATE_STRING || state == STATE_BLOB_ERR || state == STATE_VERBATIM;
+    }
+
+    // длина строки с известной длиной. У verbatim строк пропускается формат, например "txt:"
+    private int _readBulkLength(final int state) throws IOException {
+        val length = _readInt();
+
+        if (state == STATE_VERBATIM && length >= 4) {
+            _skipBytes(4);
+
+            return length - 4;
+        }
+
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "Redis[address=" + address + "]";
+    }
+
+    // текст ошибки, если следующий ответ - ошибка, или null. Сам ответ остаётся непрочитанным
+    @SneakyThrows
+    String peekError() {
+        val state = _readState();
+
+        if (state != STATE_ERR) {
+            return null;
+        }
+
+        val buffer = this.read;
+        val end = _findCrlf();
+        val start = buffer.getPosition();
+
+        return buffer.toString(start, end - start);
+    }
+
+    public boolean isError() {
+        val state = _readState();
+
+        return state == STATE_ERR || state == STATE_BLOB_ERR;
+    }
+
+    /**
+     * Проверить, является ли следующий элемент пустым значением RESP3 ({@code _}).
+     *
+     * @return {@code true}, если следующий элемент - пустое значение
+     */
+    public boolean isNull() {
+        return _readState() == STATE_NULL;
+    }
+
+    /**
+     * Проверить, является ли следующий элемент push сообщением RESP3 ({@code >}).
+     * <p>
+     * Push сообщение читается так же, как и массив, через {@link #nextArray()}.
+     *
+     * @return {@code true}, если следующий элемент - push сообщение
+     */
+    public boolean isPush() {
+        return _readState() == STATE_PUSH;
+    }
+
+    /**
+     * Прочитать из буффера чтения массив.
+     * <p>
+     * Вы получаете размер массива, далее в цикле вы можете сделать
+     * {@link #nextString()}, {@link #nextInt()} и т.д
+     * <p>
+     * Множества и push сообщения RESP3 читаются так же, как и массивы.
+     *
+     * @return Размер массива или {@code -1}, если Redis сервер ответил пустым значением
+     */
+    public int nextArray() {
+        val state = _readState();
+
+        if (state == STATE_NULL) {
+            _resetState();
+            _skipUntilCrlf();
+
+            return -1;
+        }
+
+        if (state != STATE_ARRAY && state != STATE_SET && state != STATE_PUSH) {
+            throw new IllegalStateException("Cannot read array at " + getStateName(state));
+        }
+
+        _resetState();
+
+        return _readInt();
+    }
+
+    /**
+     * Прочитать из буффера чтения карту.
+     * <p>
+     * Вы получаете количество пар, далее в цикле вы читаете ключ и значение каждой пары.
+     * <p>
+     * В RESP2 Redis сервер отвечает на такие команды, как {@code HGETALL}, массивом из ключей и значений
+     * вперемешку, поэтому он тоже читается как карта. Так код чтения не зависит от протокола.
+     *
+     * @return Количество пар или {@code -1}, если Redis сервер ответил пустым значением
+     */
+    public int nextMap() {
+        val state = _readState();
+        _resetState();
+
+        switch (state) {
+            case STATE_MAP:
+                return _readInt();
+            case STATE_ARRAY: {
+                val length = _readInt();
+
+                return length < 0 ? -1 : length / 2;
+            }
+            case STATE_NULL:
+                _skipUntilCrlf();
+
+                return -1;
+            default:
+                throw new IllegalStateException("Cannot read map at " + getStateName(state));
+        }
+    }
+
+    /**
+     * Прочитать логическое значение из буффера чтения.
+     * <p>
+     * В RESP2 логические значения приходят числами, {@code 0} считается {@code false}.
+     *
+     * @return логическое значение
+     */
+    @SneakyThrows
+    public boolean nextBoolean() {
+        val state = _readState();
+        _resetState();
+
+        switch (state) {
+            case STATE_BOOLEAN: {
+                _require(3);
+
+                val buffer = this.read;
+                val value = buffer.getNext() == 't';
+                buffer.setPosition(buffer.getPosition() + 2); // crlf
+
+                return value;
+            }
+            case STATE_NUMBER:
+                return _readLong() != 0;
+            default:
+                throw new IllegalStateException("Cannot read boolean at " + getStateName(state));
+        }
+    }
+
+    /**
+     * Прочитать число с плавающей точкой из буффера чтения.
+     * <p>
+     * Помимо {@code ,} из RESP3 читаются числа и строки, потому что в RESP2 Redis сервер отвечает
+     * строками на такие команды, как {@code ZSCORE}.
+     *
+     * @return число или {@link Double#NaN}, если Redis сервер ответил пустым значением
+     */
+    @SneakyThrows
+    public double nextDouble() {
+        val state = _readState();
+        _resetState();
+
+        val buffer = this.read;
+
+        switch (state) {
+            case STATE_DOUBLE:
+            case STATE_NUMBER:
+            case STATE_BIG_NUMBER:
+            case STATE_OK: {
+                val end = _findCrlf();
+                val start = buffer.getPosition();
+
+                buffer.setPosition(end + 2);
+
+                return _parseDouble(buffer, start, end);
+            }
+            case STATE_STRING: {
+                val length = _readInt();
+
+                if (length < 0) {
+                    return Double.NaN;
+                }
+
+                _require(length + 2);
+
+                val start = buffer.getPosition();
+                buffer.setPosition(start + length + 2);
+
+                return _parseDouble(buffer, start, start + length);
+            }
+            case STATE_NULL:
+                _skipUntilCrlf();
+
+                return Double.NaN;
+            default:
+                throw new IllegalStateException("Cannot read double at " + getStateName(state));
+        }
+    }
+
+    private static double _parseDouble(final ReadRedisBuffer buffer, final int from, final int to) {
+        int i = from;
+
+        boolean negative = false;
+
+        if (i < to) {
+            val sign = buffer.get(i);
+
+            if (sign == '-') {
+                negative = true;
+                i++;
+            } else if (sign == '+') {
+                i++;
+            }
+        }
+
+        if (i < to) {
+            switch (buffer.get(i)) {
+                case 'i':
+                    return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+                case 'n':
+                    return Double.NaN;
+            }
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+
+        boolean dot = false;
+        boolean empty = true;
+
+        for (; i < to; i++) {
+            val value = buffer.get(i);
+
+            if (value == '.' && !dot) {
+                dot = true;
+                continue;
+            }
+
+            if (value < '0' || value > '9') {
+                break;
+            }
+
+            empty = false;
+
+            if (digits < 19) {
+                mantissa = mantissa * 10 + (value - '0');
+
+                if (mantissa != 0) {
+                    digits++;
+                }
+
+                if (dot) {
+                    exponent--;
+                }
+            } else {
+                // цифры, которые уже не влезают в long, быстрый путь всё равно не обработает
+                digits++;
+
+                if (!dot) {
+                    exponent++;
+                }
+            }
+        }
+
+        if (!empty && i < to && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+
+            boolean negativeExponent = false;
+
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i++) == '-';
+            }
+
+            int explicitExponent = 0;
+
+            for (; i < to; i++) {
+                val value = buffer.get(i);
+
+                if (value < '0' || value > '9') {
+                    break;
+                }
+
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (value - '0');
+                }
+            }
+
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        if (!empty && i == to) {
+            // быстрый путь Клингера: мантисса и степень десяти точно представимы в double,
+            // поэтому одно умножение или деление даёт правильно округлённый результат
+            if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+                final double value = exponent < 0
+                        ? mantissa / EXACT_POWERS_OF_TEN[-exponent]
+                        : mantissa * EXACT_POWERS_OF_TEN[exponent];
+
+                return negative ? -value : value;
+            }
+
+            // мантисса поместилась в long целиком, остальное разберёт Eisel-Lemire
+            if (digits <= 19) {
+                val value = DoubleConversion.parse(mantissa, exponent, negative);
+
+                if (!Double.isNaN(value)) {
+                    return value;
+                }
+            }
+        }
+
+        // денормализованные числа, больше 19 цифр или неправильный формат
+        return Double.parseDouble(buffer.toString(from, to - from));
+    }
+
+    /**
+     * Прочитать целое число произвольной длины из буффера чтения.
+     *
+     * @return число или {@code null}, если Redis сервер ответил пустым значением
+     */
+    public BigInteger nextBigInteger() {
+        val value = nextString();
+
+        return value == null ? null : new BigInteger(value);
+    }
+
+    /**
+     * Прочитать строку из буффера чтения.
+     *
+     * @return Строка или {@code null}, если Redis сервер ответил пустым значением
+     */
+    @SneakyThrows
+    public String nextString() {
+        val state = _readState();
+
+        val buffer = this.read;
+
+        try {
+            if (state == STATE_NULL) {
+                _skipUntilCrlf();
+
+                return null;
+            } else if (_isBulk(state)) {
+                val number = _readBulkLength(state);
+
+                if (number < 0) {
+                    return null;
+                }
+
+                _require(number + 2);
+
+                val offset = buffer.getPosition();
+
+                try {
+                    return _toString(offset, number);
+                } finally {
+                    buffer.setPosition(offset + number + 2); // skip string with crlf
+                }
+            } else {
+                val end = _findCrlf();
+                val start = buffer.getPosition();
+
+                buffer.setPosition(end + 2);
+
+                return _toString(start, end - start);
+            }
+        } finally {
+            _resetState();
+        }
+    }
+
+    // строка из буффера чтения, короткие строки берутся из кэша, если он есть
+    private String _toString(final int offset, final int length) {
+        val stringCache = this.stringCache;
+
+        if (stringCache == null || length > stringCache.getMaxLength()) {
+            return read.toString(offset, length);
+        }
+
+        slice.set(_arrayOf(offset, length), offset, length);
+
+        return stringCache.intern(slice);
+    }
+
+    @SneakyThrows
+    private long _readLong() {
+        val buffer = this.read;
+
+        val position = buffer.getPosition();
+        val limit = buffer.getLength();
+
+        // быстрый путь: число целиком в буффере, цифры читаются по 8 за раз
+        int i = position;
+
+        val negative = i < limit && buffer.get(i) == '-';
+
+        if (negative) {
+            i++;
+        }
+
+        long result = 0;
+        int digits = Long.BYTES;
+
+        while (digits == Long.BYTES && i + Long.BYTES <= limit) {
+            val word = buffer.getWord(i);
+            digits = _countDigits(word);
+
+            if (digits != 0) {
+                result = result * POWERS_OF_TEN[digits] + _parseDigits(word, digits);
+                i += digits;
+            }
+        }
+
+        if (digits != Long.BYTES && i + 1 < limit && buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+            buffer.setPosition(i + 2);
+
+            return negative ? -result : result;
+        }
+
+        return _readLongSlow();
+    }
+
+    // побайтовое чтение числа, которое дочитывает данные, если число не пришло целиком
+    @SneakyThrows
+    private long _readLongSlow() {
+        byte prev = 0, value;
+
+        boolean negative = false;
+        long result = 0;
+
+        val buffer = this.read;
+
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                _read();
+            }
+
+            value = buffer.getNext();
+
+            if (prev == 0 && value == '-') {
+                negative = true;
+            } else if (value == '\n' && prev == '\r') {
+                return negative ? -result : result;
+            }
+
+            prev = value;
+
+            val digit = digit((char) value);
+
+            if (digit != -1) {
+                result = result * 10 + digit;
+            }
+        }
+    }
+
+    private int _readInt() {
+        // переполнение int даёт то же самое, что и отбрасывание старших битов long
+        return (int) _readLong();
+    }
+
+    @SneakyThrows
+    private void _skipUntilCrlf() {
+        val buffer = this.read;
+
+        while (true) {
+            val position = buffer.getPosition();
+            val limit = buffer.getLength();
+
+            val end = _scanCrlf(buffer, position, limit);
+
+            if (end != -1) {
+                buffer.setPosition(end + 2);
+                return;
+            }
+
+            // прочитанное не нужно, оставим только последний байт, он может оказаться \r
+            buffer.setPosition(Math.max(position, limit - 1));
+
+            _read();
+        }
+    }
+
+    /**
+     * Пропустить следующие {@code count} элементов из буффера чтения.
+     *
+     * @param count Количество элементов, которые нужно пропустить
+     */
+    public void skip(final int count) {
+        for (int i = 0; i < count; i++) {
+            skip();
+        }
+    }
+
+    /**
+     * Пропустить следующий элемент из буффера чтения.
+     * <p>
+     * Если элемент - массив, то он будет пропущен вместе со всеми своими элементами.
+     */
+    @SneakyThrows
+    public void skip() {
+        val state = _readState();
+        _resetState();
+
+        switch (state) {
+            case STATE_STRING:
+            case STATE_BLOB_ERR:
+            case STATE_VERBATIM: {
+                val length = _readInt();
+
+                if (length >= 0) {
+                    _skipBytes(length + 2); // skip string with crlf
+                }
+
+                break;
+            }
+            case STATE_ARRAY:
+            case STATE_SET:
+            case STATE_PUSH: {
+                skip(_readInt());
+                break;
+            }
+            case STATE_MAP: {
+                skip(2 * _readInt());
+                break;
+            }
+            default:
+                _skipUntilCrlf();
+                break;
+        }
+    }
+
+    /**
+     * Прочитать массив байт из буффера чтения.
+     *
+     * @return Массив байт или {@code null}, если Redis сервер ответил пустым значением
+     */
+    @SneakyThrows
+    public byte[] nextBytes() {
+        val state = _readState();
+        _resetState();
+
+        final ReadRedisBuffer buffer = this.read;
+
+        if (state == STATE_NULL) {
+            _skipUntilCrlf();
+
+            return null;
+        }
+
+        if (_isBulk(state)) {
+            val length = _readBulkLength(state);
+
+            if (length < 0) {
+                return null;
+            }
+
+            _require(length + 2);
+
+            val start = buffer.getPosition();
+            buffer.setPosition(start + length + 2);
+
+            return buffer.toByteArray(start, length);
+        }
+
+        val end = _findCrlf();
+        val start = buffer.getPosition();
+
+        buffer.setPosition(end + 2);
+
+        return buffer.toByteArray(start, end - start);
+    }
+
+    /**
+     * Прочитать массив байт из буффера чтения.
+     * <p>
+     * Если строка длиннее {@code len}, то оставшиеся байты будут пропущены.
+     *
+     * @param bytes Вывод
+     * @param off   Сдвиг вывода
+     * @param len   Размер вывода
+     * @return Байт прочитано или {@code -1}, если Redis сервер ответил пустым значением
+     */
+    @SneakyThrows
+    public int nextBytes(final byte[] bytes, final int off, final int len) {
+        Objects.checkFromIndexSize(off, len, bytes.length);
+
+        val state = _readState();
+        _resetState();
+
+        final ReadRedisBuffer buffer = this.read;
+
+        if (state == STATE_NULL) {
+            _skipUntilCrlf();
+
+            return -1;
+        }
+
+        if (_isBulk(state)) {
+            val length = _readBulkLength(state);
+
+            if (length < 0) {
+                return -1;
+            }
+
+            val count = Math.min(length, len);
+            _require(count);
+
+            val start = buffer.getPosition();
+            buffer.copyTo(start, bytes, off, count);
+            buffer.setPosition(start + count);
+
+            _skipBytes(length - count + 2);
+
+            return count;
+        }
+
+        val end = _findCrlf();
+        val start = buffer.getPosition();
+        val count = Math.min(end - start, len);
+
+        buffer.copyTo(start, bytes, off, count);
+        buffer.setPosition(end + 2);
+
+        return count;
+    }
+
+    /**
+     * Прочитать массив байт из буффера чтения.
+     *
+     * @param bytes Вывод
+     * @return Байт прочитано или {@code -1}, если Redis сервер ответил пустым значением
+     */
+    public int nextBytes(final byte[] bytes) {
+        return nextBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Прочитать строку из буффера чтения и записать её в канал.
+     * <p>
+     * В отличие от {@link #nextBytes()}, строка не собирается в буффере чтения целиком, а передаётся
+     * в канал по частям размером с буффер чтения, поэтому буффер чтения не увеличивается даже для очень
+     * больших значений.
+     * <p>
+     * Канал должен быть блокирующим, т.е. записывать все переданные ему байты.
+     *
+     * @param channel Канал, в который будет записана строка
+     * @return Длина строки или {@code -1}, если Redis сервер ответил пустым значением
+     */
+    @SneakyThrows
+    public int nextBulkTo(final WritableByteChannel channel) {
+        return _nextBulkTo(channel, null);
+    }
+
+    /**
+     * Прочитать строку из буффера чтения и записать её в поток.
+     * <p>
+     * В отличие от {@link #nextBytes()}, строка не собирается в буффере чтения целиком, а передаётся
+     * в поток по частям размером с буффер чтения, поэтому буффер чтения не увеличивается даже для очень
+     * больших значений.
+     *
+     * @param stream Поток, в который будет записана строка
+     * @return Длина строки или {@code -1}, если Redis сервер ответил пустым значением
+     */
+    @SneakyThrows
+    public int nextBulkTo(final OutputStream stream) {
+        return _nextBulkTo(null, stream);
+    }
+
+    private int _nextBulkTo(final WritableByteChannel channel, final OutputStream stream) throws IOException {
+        val state = _readState();
+
+        if (state == STATE_NULL) {
+            _resetState();
+            _skipUntilCrlf();
+
+            return -1;
+        }
+
+        if (!_isBulk(state)) {
+            throw new IllegalStateException("Cannot read bulk string at " + getStateName(state));
+        }
+
+        _resetState();
+
+        val length = _readBulkLength(state);
+
+        if (length < 0) {
+            return -1;
+        }
+
+        val buffer = this.read;
+
+        // в off-heap режиме байты для потока придётся копировать в массив
+        val scratch = stream != null && buffer.isDirect()
+                ? new byte[Math.min(length, buffer.getCapacity())]
+                : null;
+
+        int left = length;
+
+        while (true) {
+            val count = Math.min(left, buffer.remaining());
+
+            if (count > 0) {
+                val position = buffer.getPosition();
+
+                if (channel != null) {
+                    val chunk = buffer.slice(position, count);
+
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                } else if (scratch == null) {
+                    stream.write(buffer.getArray(), position, count);
+                } else {
+                    for (int written = 0; written < count; ) {
+                        val part = Math.min(count - written, scratch.length);
+                        buffer.copyTo(position + written, scratch, 0, part);
+                        stream.write(scratch, 0, part);
+
+                        written += part;
+                    }
+                }
+
+                buffer.setPosition(position + count);
+                left -= count;
+            }
+
+            if (left == 0) {
+                break;
+            }
+
+            // буффер прочитан целиком, поэтому fill не будет его увеличивать
+            _read();
+        }
+
+        _skipBytes(2); // crlf
+
+        return length;
+    }
+
+    /**
+     * Прочитать 32-битное число из буффера чтения.
+     *
+     * @return число
+     */
+    public int nextInt() {
+        val state = _readState();
+
+        if (state != STATE_NUMBER) {
+            throw new IllegalStateException("Cannot read number at " + getStateName(state));
+        }
+
+        _resetState();
+
+        return _readInt();
+    }
+
+    /**
+     * Прочитать 64-битное число из буффера чтения.
+     *
+     * @return число
+     */
+    public long nextLong() {
+        val state = _readState();
+
+        if (state != STATE_NUMBER && state != STATE_BIG_NUMBER) {
+            throw new IllegalStateException("Cannot read number at " + getStateName(state));
+        }
+
+        _resetState();
+
+        return _readLong();
+    }
+
+    @Getter
+    @FieldDefaults(level = AccessLevel.PROTECTED)
+    private static abstract class RedisBuffer {
+
+        boolean direct;
+
+        // null, если память буффера находится вне кучи
+        byte[] array;
+
+        // память буффера в виде ByteBuffer для транспорта
+        ByteBuffer memory;
+
+        // та же память вне кучи для VH__BUFFER_WORD. VarHandle проверяет индекс по limit, а limit
+        // у memory меняет slice, поэтому у этого буффера он всегда равен capacity. null в куче
+        ByteBuffer words;
+
+        // адрес памяти вне кучи, к ней обращаемся через Unsafe. Память в куче читается и пишется
+        // только через array, чтобы JVM проверяла границы
+        long address;
+
+        int capacity;
+
+        @Setter
+        int position;
+
+        // null, если метрики выключены
+        RedisMetrics metrics;
+
+        protected RedisBuffer(final int capacity, final boolean direct) {
+            this.direct = direct;
+
+            _allocate(capacity);
+        }
+
+        private void _allocate(final int capacity) {
+            if (direct) {
+                memory = ByteBuffer.allocateDirect(capacity);
+                words = memory.duplicate();
+                array = null;
+                address = (long) VH__BUFFER_ADDRESS.get(memory);
+            } else {
+                memory = ByteBuffer.wrap(array = new byte[capacity]);
+                words = null;
+                address = 0;
+            }
+
+            this.capacity = capacity;
+        }
+
+        public void resize() {
+            resize(capacity * 2);
+        }
+
+        protected abstract RedisMetrics.Buffer getType();
+
+        public void resize(final int to) {
+            if (metrics != null) {
+                metrics.onResize(getType(), capacity, to);
+            }
+
+            val oldMemory = memory;
+            val oldArray = array;
+            val oldAddress = address;
+            val count = Math.min(capacity, to);
+
+            _allocate(to);
+
+            if (direct) {
+                _checkRange(0, count);
+                UNSAFE.copyMemory(oldAddress, address, count);
+
+                // старая память вне кучи не должна освободиться, пока мы из неё копируем
+                Reference.reachabilityFence(oldMemory);
+            } else {
+                System.arraycopy(oldArray, 0, array, 0, count);
+            }
+        }
+
+        // Unsafe границы не проверяет, поэтому для памяти вне кучи проверяем их сами
+        private void _checkRange(final int from, final int count) {
+            Objects.checkFromIndexSize(from, count, capacity);
+        }
+
+        public byte get(final int index) {
+            if (direct) {
+                Objects.checkIndex(index, capacity);
+
+                return UNSAFE.getByte(address + index);
+            }
+
+            return array[index];
+        }
+
+        // 8 байтов начиная с index, первый байт - младший
+        public long getWord(final int index) {
+            return direct
+                    ? (long) VH__BUFFER_WORD.get(words, index)
+                    : (long) VH__ARRAY_WORD.get(array, index);
+        }
+
+        public void put(final int index, final byte value) {
+            if (direct) {
+                Objects.checkIndex(index, capacity);
+                UNSAFE.putByte(address + index, value);
+            } else {
+                array[index] = value;
+            }
+        }
+
+        public void move(final int from, final int to, final int count) {
+            if (direct) {
+                _checkRange(from, count);
+                _checkRange(to, count);
+                UNSAFE.copyMemory(address + from, address + to, count);
+            } else {
+                System.arraycopy(array, from, array, to, count);
+            }
+        }
+
+        public void copyTo(final int from, final byte[] bytes, final int off, final int count) {
+            if (direct) {
+                _checkRange(from, count);
+                Objects.checkFromIndexSize(off, count, bytes.length);
+                UNSAFE.copyMemory(null, address + from, bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET + off, count);
+            } else {
+                System.arraycopy(array, from, bytes, off, count);
+            }
+        }
+
+        public void copyFrom(final byte[] bytes, final int off, final int to, final int count) {
+            if (direct) {
+                Objects.checkFromIndexSize(off, count, bytes.length);
+                _checkRange(to, count);
+                UNSAFE.copyMemory(bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET + off, null, address + to, count);
+            } else {
+                System.arraycopy(bytes, off, array, to, count);
+            }
+        }
+
+        public byte[] toByteArray(final int from, final int count) {
+            val bytes = new byte[count];
+            copyTo(from, bytes, 0, count);
+
+            return bytes;
+        }
+
+        public String toString(final int from, final int count) {
+            // ASCII строку можно собрать как LATIN1, это просто копирование байтов
+            val charset = isAscii(from, count) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+
+            return direct
+                    ? new String(toByteArray(from, count), charset)
+                    : new String(array, from, count, charset);
+        }
+
+        // проверить, что все байты меньше 0x80, по 8 байтов за раз
+        public boolean isAscii(final int from, final int count) {
+            val end = from + count;
+            int i = from;
+
+            for (; i + Long.BYTES <= end; i += Long.BYTES) {
+                if ((getWord(i) & SWAR_HIGHS) != 0) {
+                    return false;
+                }
+            }
+
+            for (; i < end; i++) {
+                if (get(i) < 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        // ByteBuffer, который смотрит на count байтов начиная с from
+        public ByteBuffer slice(final int from, final int count) {
+            return memory.limit(from + count).position(from);
+        }
+    }
+
+    private static final class ReadRedisBuffer extends RedisBuffer {
+
+        public ReadRedisBuffer(final int capacity, final boolean direct) {
+            super(capacity, direct);
+        }
+
+        @Override
+        protected RedisMetrics.Buffer getType() {
+            return RedisMetrics.Buffer.READ;
+        }
+
+        @Getter
+        @Setter
+        int length;
+
+        public byte getNext() {
+            return get(position++);
+        }
+
+        public int remaining() {
+            return length - position;
+        }
+
+        public boolean hasRemaining() {
+            return position != length;
+        }
+
+    }
+
+    private static final class WriteRedisBuffer extends RedisBuffer {
+
+        private static final byte[] INF = {'i', 'n', 'f'};
+        private static final byte[] NEGATIVE_INF = {'-', 'i', 'n', 'f'};
+
+        // внешние байты, которые при отправке вставляются между байтами буффера
+        Segment[] segments = new Segment[0];
+        int segmentCount;
+
+        // текст числа из writeDouble, пока неизвестна его длина
+        final byte[] doubleScratch = new byte[DoubleConversion.MAX_LENGTH];
+
+        public WriteRedisBuffer(final int capacity, final boolean direct) {
+            super(capacity, direct);
+        }
+
+        @Override
+        protected RedisMetrics.Buffer getType() {
+            return RedisMetrics.Buffer.WRITE;
+        }
+
+        private void _ensure(final int len) {
+            final int requiredCapacity = position + len;
+            final int currentCapacity = getCapacity();
+
+            if (requiredCapacity > currentCapacity) {
+                resize(Math.max(requiredCapacity, currentCapacity * 2));
+            }
+        }
+
+        public void writeRaw(final byte value) {
+            put(position++, value);
+        }
+
+        public void writeRaw(final byte[] value) {
+            val length = value.length;
+            copyFrom(value, 0, position, length);
+            this.position += length;
+        }
+
+        private void _writeCrlf() {
+            writeRaw((byte) '\r');
+            writeRaw((byte) '\n');
+        }
+
+        public void writeCommand(final String command, final int arguments) {
+            _writeLength('*', arguments + 1);
+            val commandLength = command.length();
+            _writeLength('$', commandLength);
+
+            _ensure(commandLength + 2);
+            _writeAscii(command);
+            _writeCrlf();
+        }
+
+        public void writeHeader(final byte[] header) {
+            _ensure(header.length);
+            writeRaw(header);
+        }
+
+        // заголовок шаблона с другим количеством элементов: первые countLength байтов заменяются на *elements\r\n
+        public void writeHeader(final byte[] header, final int countLength, final int elements) {
+            _writeLength('*', elements);
+
+            val length = header.length - countLength;
+            _ensure(length);
+            copyFrom(header, countLength, position, length);
+            this.position += length;
+        }
+
+        private static boolean _isLatin1(final String text) {
+            return (byte) VH__STRING_CODER.get(text) == LATIN1;
+        }
+
+        private void _writeAscii(final String ascii) {
+            if (_isLatin1(ascii)) {
+                val bytes = (byte[]) VH__STRING_VALUE.get(ascii);
+
+                _ensure(bytes.length);
+                writeRaw(bytes);
+            } else {
+                // UTF16 строка, например, с -XX:-CompactStrings
+                val length = ascii.length();
+
+                _ensure(length);
+
+                for (int i = 0; i < length; i++) {
+                    writeRaw((byte) ascii.charAt(i));
+                }
+            }
+        }
+
+        // количество байтов, которое займёт строка в UTF-8. Как и String#getBytes, непарный
+        // суррогат заменяется на '?'
+        private static int _utfLength(final String text) {
+            val length = text.length();
+
+            if (_isLatin1(text)) {
+                val bytes = (byte[]) VH__STRING_VALUE.get(text);
+
+                int utfLength = length;
+
+                for (val value : bytes) {
+                    // символы от 0x80 до 0xFF занимают два байта
+                    if (value < 0) {
+                        utfLength++;
+                    }
+                }
+
+                return utfLength;
+            }
+
+            int utfLength = 0;
+
+            for (int i = 0; i < length; i++) {
+                val value = text.charAt(i);
+
+                if (value < 0x80) {
+                    utfLength++;
+                } else if (value < 0x800) {
+                    utfLength += 2;
+                } else if (Character.isSurrogate(value)) {
+                    if (Character.isHighSurrogate(value) && i + 1 < length
+                            && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        utfLength += 4;
+                        i++;
+                    } else {
+                        utfLength++;
+                    }
+                } else {
+                    utfLength += 3;
+                }
+            }
+
+            return utfLength;
+        }
+
+        private void _writeUtf(final String text) {
+            val length = text.length();
+
+            if (_isLatin1(text)) {
+                for (val value : (byte[]) VH__STRING_VALUE.get(text)) {
+                    if (value >= 0) {
+                        writeRaw(value);
+                    } else {
+                        writeRaw((byte) (0xC0 | (value & 0xFF) >> 6));
+                        writeRaw((byte) (0x80 | value & 0x3F));
+                    }
+                }
+
+                return;
+            }
+
+            for (int i = 0; i < length; i++) {
+                val value = text.charAt(i);
+
+                if (value < 0x80) {
+                    writeRaw((byte) value);
+                } else if (value < 0x800) {
+                    writeRaw((byte) (0xC0 | value >> 6));
+                    writeRaw((byte) (0x80 | value & 0x3F));
+                } else if (Character.isSurrogate(value)) {
+                    if (Character.isHighSurrogate(value) && i + 1 < length
+                            && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        val codePoint = Character.toCodePoint(value, text.charAt(++i));
+
+                        writeRaw((byte) (0xF0 | codePoint >> 18));
+                        writeRaw((byte) (0x80 | codePoint >> 12 & 0x3F));
+                        writeRaw((byte) (0x80 | codePoint >> 6 & 0x3F));
+                        writeRaw((byte) (0x80 | codePoint & 0x3F));
+                    } else {
+                        writeRaw((byte) '?');
+                    }
+                } else {
+                    writeRaw((byte) (0xE0 | value >> 12));
+                    writeRaw((byte) (0x80 | value >> 6 & 0x3F));
+                    writeRaw((byte) (0x80 | value & 0x3F));
+                }
+            }
+        }
+
+        // записать число так, чтобы оно заканчивалось перед position. Цифры берутся из отрицательного
+        // значения, потому что у Long.MIN_VALUE нет положительной пары
+        private int _writeLong(int position, final long value) {
+            this.position = position;
+
+            long remaining = value > 0 ? -value : value;
+
+            do {
+                put(--position, (byte) ('0' - remaining % 10));
+                remaining /= 10;
+            } while (remaining != 0);
+
+            if (value < 0) {
+                put(--position, (byte) '-');
+            }
+
+            return position;
+        }
+
+        private int _writeInt(int position, final int value) {
+            this.position = position;
+
+            int remaining = value > 0 ? -value : value;
+
+            do {
+                put(--position, (byte) ('0' - remaining % 10));
+                remaining /= 10;
+            } while (remaining != 0);
+
+            if (value < 0) {
+                put(--position, (byte) '-');
+            }
+
+            return position;
+        }
+
+        private void _writeLength(final char prefix, final int length) {
+            if (length < 10) {
+                _ensure(4);
+                writeRaw((byte) prefix);
+                writeRaw((byte) ('0' + length));
+                _writeCrlf();
+                return;
+            }
+
+            val lengthOfNumber = getIntLength(length);
+
+            // 3 байта на префикс и crlf, остальное на число
+            _ensure(3 + lengthOfNumber);
+            writeRaw((byte) prefix);
+
+            val position = this.position + lengthOfNumber;
+            _writeInt(position, length);
+            _writeCrlf();
+        }
+
+        public void writeInt(final int number) {
+            final int length;
+
+            if (number >= 0) {
+                length = getIntLength(number);
+            } else if (number == Integer.MIN_VALUE) {
+                length = 11;
+            } else {
+                length = getIntLength(-number) + 1;
+            }
+
+            _writeLength('$', length);
+
+            _ensure(length + 2);
+            _writeInt(position + length, number);
+            _writeCrlf();
+        }
+
+        public void writeLong(final long number) {
+            final int length;
+
+            if (number >= 0) {
+                length = getLongLength(number);
+            } else if (number == Long.MIN_VALUE) {
+                length = 20;
+            } else {
+                length = getLongLength(-number) + 1;
+            }
+
+            _writeLength('$', length);
+
+            _ensure(length + 2);
+            _writeLong(position + length, number);
+            _writeCrlf();
+        }
+
+        public void writeDouble(final double number) {
+            final int length;
+
+            if (Double.isNaN(number)) {
+                throw new IllegalArgumentException("NaN is not a valid Redis float");
+            } else if (number == Double.POSITIVE_INFINITY) {
+                length = _copyToScratch(INF);
+            } else if (number == Double.NEGATIVE_INFINITY) {
+                length = _copyToScratch(NEGATIVE_INF);
+            } else {
+                length = DoubleConversion.write(number, doubleScratch, 0);
+            }
+
+            _writeLength('$', length);
+
+            _ensure(length + 2);
+            copyFrom(doubleScratch, 0, position, length);
+            this.position += length;
+            _writeCrlf();
+        }
+
+        private int _copyToScratch(final byte[] bytes) {
+            System.arraycopy(bytes, 0, doubleScratch, 0, bytes.length);
+
+            return bytes.length;
+        }
+
+        private void _writeEmptyString() {
+            _ensure(4);
+
+            writeRaw((byte) '$');
+            writeRaw((byte) '0');
+            _writeCrlf();
+        }
+
+        public void writeBytes(final byte[] bytes) {
+            val blobLength = bytes.length;
+
+            if (blobLength == 0) {
+                _writeEmptyString();
+                return;
+            }
+
+            _writeLength('$', blobLength);
+
+            _ensure(blobLength + 2);
+            writeRaw(bytes);
+            _writeCrlf();
+        }
+
+        private void _addSegment(final Segment segment) {
+            if (segmentCount == segments.length) {
+                segments = Arrays.copyOf(segments, Math.max(4, segmentCount * 2));
+            }
+
+            segments[segmentCount++] = segment;
+        }
 
-                val end = buffer.getPosition() - 2;
+        public void truncate(final int position) {
+            this.position = position;
 
-                return new String(buffer.getArray(), start, end - start);
+            while (segmentCount > 0 && segments[segmentCount - 1].offset > position) {
+                segments[--segmentCount] = null;
             }
-        } finally {
-            _resetState();
         }
-    }
 
-    @SneakyThrows
-    private long _readLong() {
-        byte prev = 0, value;
+        // отправить буффер вместе с внешними байтами и вернуть общее количество байтов
+        public long writeTo(final RedisTransport transport) throws IOException {
+            long bytes = position;
+            int from = 0;
 
-        boolean negative = false;
-        long result = 0;
+            for (int i = 0; i < segmentCount; i++) {
+                val segment = segments[i];
 
-        val buffer = this.read;
+                if (segment.buffer != null) {
+                    bytes += segment.buffer.remaining();
+                    transport.write(slice(from, segment.offset - from), segment.buffer);
+                } else {
+                    bytes += segment.fileLength;
+                    transport.write(slice(from, segment.offset - from));
+                    transport.transfer(segment.file, segment.filePosition, segment.fileLength);
+                }
 
-        while (true) {
-            if (!buffer.hasRemaining()) {
-                _read();
+                from = segment.offset;
             }
 
-            value = buffer.getNext();
+            transport.write(slice(from, position - from));
+            truncate(0);
 
-            if (prev == 0 && value == '-') {
-                negative = true;
-            } else if (value == '\n' && prev == '\r') {
-                return negative ? -result : result;
-            }
+            return bytes;
+        }
 
-            prev = value;
+        public void writeBytes(final ByteBuffer bytes) {
+            val blobLength = bytes.remaining();
 
-            val digit = digit((char) value);
+            if (blobLength == 0) {
+                _writeEmptyString();
+                return;
+            }
 
-            if (digit != -1) {
-                result = result * 10 + digit;
+            _writeLength('$', blobLength);
+
+            if (blobLength < MIN_SEGMENT_LENGTH) {
+                _ensure(blobLength + 2);
+                slice(position, blobLength).put(bytes.duplicate());
+                position += blobLength;
+            } else {
+                _addSegment(new Segment(position, bytes.duplicate(), null, 0, 0));
+                _ensure(2);
             }
+
+            _writeCrlf();
         }
-    }
 
-    @SneakyThrows
-    private int _readInt() {
-        byte prev = 0, value;
+        public void writeFile(final FileChannel file, final long filePosition, final int length) {
+            if (length == 0) {
+                _writeEmptyString();
+                return;
+            }
 
-        boolean negative = false;
-        int result = 0;
+            _writeLength('$', length);
+            _addSegment(new Segment(position, null, file, filePosition, length));
 
-        val buffer = this.read;
+            _ensure(2);
+            _writeCrlf();
+        }
 
-        while (true) {
-            if (!buffer.hasRemaining()) {
-                _read();
+        public void writeAscii(final String text) {
+            if (text.length() == 0) {
+                _writeEmptyString();
+                return;
             }
 
-            value = buffer.getNext();
+            val textLength = text.length();
+            _writeLength('$', textLength);
 
-            if (prev == 0 && value == '-') {
-                negative = true;
-            } else if (value == '\n' && prev == '\r') {
-                return negative ? -result : result;
+            _ensure(textLength + 2);
+            _writeAscii(text);
+
+            _writeCrlf();
+        }
+
+        public void writeUTF(final String text) {
+            if (text.length() == 0) {
+                _writeEmptyString();
+                return;
             }
 
-            prev = value;
+            val utfLength = _utfLength(text);
+            _writeLength('$', utfLength);
 
-            val digit = digit((char) value);
+            _ensure(utfLength + 2);
 
-            if (digit != -1) {
-                result = result * 10 + digit;
+            if (utfLength == text.length() && _isLatin1(text)) {
+                // только ASCII, байты строки можно скопировать как есть
+                _writeAscii(text);
+            } else {
+                _writeUtf(text);
             }
+
+            _writeCrlf();
         }
     }
 
-    @SneakyThrows
-    private void _skipUntilCrlf() {
-        byte prev = 0;
+    // очередь команд для замера задержки: записанные, отправленные и ещё не получившие ответ.
+    // С RedisMultiplexer команды добавляет комбайнер, а ответы отмечает поток, который их читает
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    private static final class PendingCommands {
 
-        val buffer = this.read;
+        // больше команд без ответа не ждём, самые старые просто забываются
+        static final int MAX_SIZE = 1024;
 
-        while (true) {
-            if (!buffer.hasRemaining()) {
-                _read();
-            }
+        String[] names = new String[16];
 
-            byte value;
+        // позиция команды в буффере записи, пока она не отправлена, и время отправки после
+        long[] marks = new long[16];
 
-            if ((value = buffer.getNext()) == 10 && prev == 13) {
-                return;
-            }
+        int head;
+        int size;
 
-            prev = value;
-        }
-    }
+        // сколько команд с начала очереди уже отправлено
+        int flushed;
 
-    /**
-     * Пропустить следующие {@code count} элементов из буффера чтения.
-     *
-     * @param count Количество элементов, которые нужно пропустить
-     */
-    public void skip(final int count) {
-        for (int i = 0; i < count; i++) {
-            skip();
+        // сколько забытых команд ещё ждут ответа. Их ответы приходят первыми и не замеряются
+        int forgotten;
+
+        synchronized void add(final String name, final int position) {
+            if (size == names.length) {
+                if (size == MAX_SIZE) {
+                    _poll();
+                    forgotten++;
+                } else {
+                    _grow();
+                }
+            }
+
+            val index = (head + size++) & (names.length - 1);
+            names[index] = name;
+            marks[index] = position;
         }
-    }
 
-    /**
-     * Пропустить следующий элемент из буффера чтения.
-     */
-    public void skip() {
-        val state = _readState();
+        private void _grow() {
+            val newNames = new String[names.length * 2];
+            val newMarks = new long[names.length * 2];
 
-        _skipUntilCrlf();
+            for (int i = 0; i < size; i++) {
+                val index = (head + i) & (names.length - 1);
+                newNames[i] = names[index];
+                newMarks[i] = marks[index];
+            }
 
-        // prefixed with number
-        if (state == STATE_STRING || state == STATE_ARRAY) {
-            _skipUntilCrlf();
+            names = newNames;
+            marks = newMarks;
+            head = 0;
         }
 
-        _resetState();
-    }
-
-    /**
-     * Прочитать массив байт из буффера чтения.
-     *
-     * @return Массив байт
-     */
-    public byte[] nextBytes() {
-        _readState();
+        private String _poll() {
+            val name = names[head];
+            names[head] = null;
 
-        final RedisBuffer buffer;
+            head = (head + 1) & (names.length - 1);
+            size--;
 
-        val start = (buffer = this.read).getPosition();
-        _skipUntilCrlf();
+            if (flushed > 0) {
+                flushed--;
+            }
 
-        val end = buffer.getPosition() - 2;
-        _resetState();
+            return name;
+        }
 
-        return Arrays.copyOfRange(buffer.getArray(), start, end);
-    }
+        // команды, записанные после mark, откатили
+        synchronized void truncate(final int mark) {
+            while (size > flushed && marks[(head + size - 1) & (names.length - 1)] >= mark) {
+                names[(head + --size) & (names.length - 1)] = null;
+            }
+        }
 
-    /**
-     * Прочитать массив байт из буффера чтения.
-     *
-     * @param bytes Вывод
-     * @param off   Сдвиг вывода
-     * @param len   Размер вывода
-     * @return Байт прочитано
-     */
-    @SneakyThrows
-    public int nextBytes(final byte[] bytes, final int off, final int len) {
-        _readState();
+        // все записанные команды отправлены, возвращает их количество
+        synchronized int flush(final long time) {
+            val count = size - flushed;
 
-        final ReadRedisBuffer buffer;
+            for (int i = flushed; i < size; i++) {
+                marks[(head + i) & (names.length - 1)] = time;
+            }
 
-        val start = (buffer = this.read).getPosition();
+            flushed = size;
 
-        byte prev = 0, value;
-        int read = 0;
+            return count;
+        }
 
-        while (true) {
-            if (!buffer.hasRemaining()) {
-                _read();
+        synchronized void complete(final RedisMetrics metrics, final long time) {
+            if (forgotten > 0) {
+                forgotten--;
+                return;
             }
 
-            if (read >= len) {
-                break;
+            if (flushed == 0) {
+                return;
             }
 
-            value = buffer.getNext();
+            val flushTime = marks[head];
+            metrics.onCommand(_poll(), time - flushTime);
+        }
 
-            if (value == '\n' && prev == '\r') {
-                read--; // remove \r from length
-                _resetState();
+        synchronized void completeAll(final RedisMetrics metrics, final long time) {
+            forgotten = 0;
 
-                break;
+            while (flushed > 0) {
+                val flushTime = marks[head];
+                metrics.onCommand(_poll(), time - flushTime);
             }
+        }
 
-            prev = value;
-            read++;
+        synchronized void dropFlushed() {
+            forgotten = 0;
+
+            while (flushed > 0) {
+                _poll();
+            }
         }
 
-        System.arraycopy(buffer.getArray(), start, bytes, off, read);
+        synchronized void clear() {
+            forgotten = 0;
+
+            while (size > 0) {
+                _poll();
+            }
+        }
 
-        return read;
     }
 
-    /**
-     * Прочитать массив байт из буффера чтения.
-     *
-     * @param bytes Вывод
-     * @return Байт прочитано
-     */
-    public int nextBytes(final byte[] bytes) {
-        return nextBytes(bytes, 0, bytes.length);
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    private static final class Segment {
+        int offset;
+
+        ByteBuffer buffer;
+
+        FileChannel file;
+        long filePosition;
+        long fileLength;
     }
 
     /**
-     * Прочитать 32-битное число из буффера чтения.
+     * Прочитать массив чисел в {@code dst}, не создавая строку на каждый элемент.
+     * <p>
+     * Элементы могут быть числами ({@code :}) или строками с числами, как в ответах {@code MGET} и
+     * {@code LRANGE}. Пустые элементы записываются как {@link #NULL_LONG}. Если элементов больше,
+     * чем помещается в {@code dst}, лишние пропускаются.
      *
-     * @return число
+     * @param dst Массив, в который записываются числа
+     * @return Количество элементов в ответе или {@code -1}, если Redis сервер ответил пустым значением
+     * @throws NumberFormatException Выбрасывается, если элемент не является числом. Остальные элементы
+     *                               всё равно читаются, так что следующий ответ можно прочитать как обычно
      */
-    public int nextInt() {
-        val state = _readState();
-
-        if (state != STATE_NUMBER) {
-            throw new IllegalStateException("Cannot read number at " + getStateName(state));
-        }
-
-        _resetState();
-
-        return _readInt();
+    public int nextLongArray(final long[] dst) {
+        return nextLongArray(dst, null);
     }
 
     /**
-     * Прочитать 64-битное число из буффера чтения.
+     * Прочитать массив чисел в {@code dst}, не создавая строку на каждый элемент.
+     * <p>
+     * Пустые элементы записываются как {@code 0}, а их индексы отмечаются в {@code nulls}.
      *
-     * @return число
+     * @param dst   Массив, в который записываются числа
+     * @param nulls Индексы пустых элементов, предыдущее содержимое очищается. Если {@code null},
+     *              пустые элементы записываются как {@link #NULL_LONG}
+     * @return Количество элементов в ответе или {@code -1}, если Redis сервер ответил пустым значением
+     * @throws NumberFormatException Выбрасывается, если элемент не является числом
+     * @see #nextLongArray(long[])
      */
-    public long nextLong() {
-        val state = _readState();
+    public int nextLongArray(final long[] dst, final BitSet nulls) {
+        val length = nextArray();
 
-        if (state != STATE_NUMBER) {
-            throw new IllegalStateException("Cannot read number at " + getStateName(state));
+        if (nulls != null) {
+            nulls.clear();
         }
 
-        _resetState();
+        if (length <= 0) {
+            return length;
+        }
 
-        return _readLong();
-    }
+        val count = Math.min(length, dst.length);
 
-    @Getter
-    @FieldDefaults(level = AccessLevel.PROTECTED)
-    @AllArgsConstructor(access = AccessLevel.PROTECTED)
-    private static abstract class RedisBuffer {
+        NumberFormatException failure = null;
 
-        byte[] array;
+        for (int i = 0; i < count; i++) {
+            final long value;
 
-        @Setter
-        int position;
+            try {
+                value = _nextLongElement();
+            } catch (final NumberFormatException e) {
+                failure = _suppress(failure, e);
+                continue;
+            }
 
-        public int getCapacity() {
-            return array.length;
+            if (nullElement) {
+                if (nulls != null) {
+                    nulls.set(i);
+                    dst[i] = 0;
+                } else {
+                    dst[i] = NULL_LONG;
+                }
+            } else {
+                dst[i] = value;
+            }
         }
 
-        public void resize() {
-            resize(array.length * 2);
-        }
+        skip(length - count);
 
-        public void resize(final int to) {
-            array = Arrays.copyOf(array, to);
+        if (failure != null) {
+            throw failure;
         }
-    }
-
-    private static final class ReadRedisBuffer extends RedisBuffer {
 
-        public ReadRedisBuffer(final byte[] array, final int position) {
-            super(array, position);
-        }
+        return length;
+    }
 
-        @Getter
-        @Setter
-        int length;
+    /**
+     * Прочитать массив 32-битных чисел в {@code dst}, не создавая строку на каждый элемент.
+     * <p>
+     * Работает так же, как {@link #nextLongArray(long[])}, но пустые элементы записываются как {@link #NULL_INT}.
+     *
+     * @param dst Массив, в который записываются числа
+     * @return Количество элементов в ответе или {@code -1}, если Redis сервер ответил пустым значением
+     * @throws NumberFormatException Выбрасывается, если элемент не является 32-битным числом. Остальные
+     *                               элементы всё равно читаются, как и в {@link #nextLongArray(long[])}
+     */
+    public int nextIntArray(final int[] dst) {
+        return nextIntArray(dst, null);
+    }
 
-        public byte getNext() {
-            return array[position++];
-        }
+    /**
+     * Прочитать массив 32-битных чисел в {@code dst}, не создавая строку на каждый элемент.
+     *
+     * @param dst   Массив, в который записываются числа
+     * @param nulls Индексы пустых элементов, предыдущее содержимое очищается. Если {@code null},
+     *              пустые элементы записываются как {@link #NULL_INT}
+     * @return Количество элементов в ответе или {@code -1}, если Redis сервер ответил пустым значением
+     * @throws NumberFormatException Выбрасывается, если элемент не является 32-битным числом
+     * @see #nextLongArray(long[], BitSet)
+     */
+    public int nextIntArray(final int[] dst, final BitSet nulls) {
+        val length = nextArray();
 
-        public int remaining() {
-            return length - position;
+        if (nulls != null) {
+            nulls.clear();
         }
 
-        public boolean hasRemaining() {
-            return position != length;
+        if (length <= 0) {
+            return length;
         }
 
-    }
+        val count = Math.min(length, dst.length);
 
-    private static final class WriteRedisBuffer extends RedisBuffer {
+        NumberFormatException failure = null;
 
-        public WriteRedisBuffer(final byte[] array, final int position) {
-            super(array, position);
-        }
+        for (int i = 0; i < count; i++) {
+            final long value;
 
-        private void _ensure(final int len) {
-            final int requiredCapacity = position + len;
-            final int currentCapacity = getCapacity();
+            try {
+                value = _nextLongElement();
+            } catch (final NumberFormatException e) {
+                failure = _suppress(failure, e);
+                continue;
+            }
 
-            if (requiredCapacity > currentCapacity) {
-                resize(Math.max(requiredCapacity, currentCapacity * 2));
+            if (nullElement) {
+                if (nulls != null) {
+                    nulls.set(i);
+                    dst[i] = 0;
+                } else {
+                    dst[i] = NULL_INT;
+                }
+            } else if ((int) value != value) {
+                failure = _suppress(failure, new NumberFormatException("Value out of int range: " + value));
+            } else {
+                dst[i] = (int) value;
             }
         }
 
-        public void writeRaw(final byte value) {
-            array[position++] = value;
+        skip(length - count);
+
+        if (failure != null) {
+            throw failure;
         }
 
-        public void writeRaw(final byte[] value) {
-            val length = value.length;
-            System.arraycopy(value, 0, array, position, length);
-            this.position += length;
-        }
+        return length;
+    }
+
+    /**
+     * Прочитать массив чисел с плавающей точкой в {@code dst}, не создавая строку на каждый элемент.
+     * <p>
+     * Элементы могут быть числами RESP3 ({@code ,}), целыми числами или строками, как в ответах
+     * {@code ZRANGE ... WITHSCORES} в RESP2. Пустые элементы записываются как {@link Double#NaN}, так же,
+     * как в {@link #nextDouble()}. Если элементов больше, чем помещается в {@code dst}, лишние пропускаются.
+     *
+     * @param dst Массив, в который записываются числа
+     * @return Количество элементов в ответе или {@code -1}, если Redis сервер ответил пустым значением
+     * @throws NumberFormatException Выбрасывается, если элемент не является числом. Остальные элементы
+     *                               всё равно читаются, как и в {@link #nextLongArray(long[])}
+     */
+    public int nextDoubleArray(final double[] dst) {
+        return nextDoubleArray(dst, null);
+    }
+
+    /**
+     * Прочитать массив чисел с плавающей точкой в {@code dst}, не создавая строку на каждый элемент.
+     *
+     * @param dst   Массив, в который записываются числа
+     * @param nulls Индексы пустых элементов, предыдущее содержимое очищается. Если {@code null},
+     *              пустые элементы записываются как {@link Double#NaN}
+     * @return Количество элементов в ответе или {@code -1}, если Redis сервер ответил пустым значением
+     * @throws NumberFormatException Выбрасывается, если элемент не является числом
+     * @see #nextDoubleArray(double[])
+     */
+    public int nextDoubleArray(final double[] dst, final BitSet nulls) {
+        val length = nextArray();
 
-        private void _writeCrlf() {
-            writeRaw((byte) '\r');
-            writeRaw((byte) '\n');
+        if (nulls != null) {
+            nulls.clear();
         }
 
-        public void writeCommand(final String command, final int arguments) {
-            _writeLength('*', arguments + 1);
-            val commandLength = command.length();
-            _writeLength('$', commandLength);
-
-            _ensure(commandLength + 2);
-            _writeAscii(command);
-            _writeCrlf();
+        if (length <= 0) {
+            return length;
         }
 
-        private void _writeAscii(final String ascii) {
-            val bytes = (byte[]) VH__STRING_VALUE.get(ascii);
+        val count = Math.min(length, dst.length);
 
-            _ensure(bytes.length);
-            writeRaw(bytes);
-        }
+        NumberFormatException failure = null;
 
-        private int _writeLong(int position, long value) {
-            this.position = position;
+        for (int i = 0; i < count; i++) {
+            final double value;
 
-            while (value > 0) {
-                array[--position] = (byte) ((byte) (value % 10) + '0');
-                value /= 10;
+            try {
+                value = _nextDoubleElement();
+            } catch (final NumberFormatException e) {
+                failure = _suppress(failure, e);
+                continue;
             }
 
-            return position;
+            if (nullElement && nulls != null) {
+                nulls.set(i);
+                dst[i] = 0;
+            } else {
+                dst[i] = value;
+            }
         }
 
+        skip(length - count);
 
-        private int _writeInt(int position, int value) {
-            this.position = position;
+        if (failure != null) {
+            throw failure;
+        }
 
-            while (value > 0) {
-                array[--position] = (byte) ((byte) (value % 10) + '0');
-                value /= 10;
-            }
+        return length;
+    }
 
-            return position;
+    // ответ с плохим элементом всё равно дочитывается до конца, иначе следующий ответ прочитался бы
+    // с середины этого. Выбрасывается первая ошибка, остальные прикрепляются к ней
+    private static NumberFormatException _suppress(final NumberFormatException failure, final NumberFormatException e) {
+        if (failure == null) {
+            return e;
         }
 
-        private void _writeLength(final char prefix, final int length) {
-            if (length < 10) {
-                _ensure(4);
-                writeRaw((byte) prefix);
-                writeRaw((byte) ('0' + length));
-                _writeCrlf();
-                return;
-            }
+        failure.addSuppressed(e);
 
-            val lengthOfNumber = getIntLength(length);
+        return failure;
+    }
 
-            // 3 байта на префикс и crlf, остальное на число
-            _ensure(3 + lengthOfNumber);
-            writeRaw((byte) prefix);
+    // прочитать целое число из элемента массива. Пустой элемент отмечается в nullElement
+    @SneakyThrows
+    private long _nextLongElement() {
+        val state = _readState();
+        _resetState();
 
-            val position = this.position + lengthOfNumber;
-            _writeInt(position, length);
-            _writeCrlf();
-        }
+        nullElement = false;
 
-        public void writeInt(final int rawNumber) {
-            final int number;
-            final int length;
+        val buffer = this.read;
 
-            final boolean negative;
+        switch (state) {
+            case STATE_NUMBER:
+                return _readLong();
+            case STATE_STRING:
+            case STATE_BIG_NUMBER: {
+                final int start;
+                final int end;
 
-            if ((negative = rawNumber < 0)) {
-                length = getIntLength(number = -rawNumber) + 1;
-            } else {
-                length = getIntLength(number = rawNumber);
-            }
+                if (state == STATE_STRING) {
+                    val length = _readInt();
 
-            _writeLength('$', length);
+                    if (length < 0) {
+                        nullElement = true;
+                        return 0;
+                    }
 
-            _ensure(length + 2);
+                    _require(length + 2);
+
+                    start = buffer.getPosition();
+                    end = start + length;
+                } else {
+                    end = _findCrlf();
+                    start = buffer.getPosition();
+                }
 
-            val position = this.position + length;
-            val lastPosition = _writeInt(position, number);
+                buffer.setPosition(end + 2);
 
-            if (negative) {
-                array[lastPosition - 1] = (byte) '-';
+                return _parseLong(buffer, start, end);
             }
+            case STATE_NULL:
+                _skipUntilCrlf();
+                nullElement = true;
 
-            _writeCrlf();
-        }
+                return 0;
+            default:
+                // как и nextLong, оставим элемент непрочитанным
+                this.state = state;
 
-        public void writeLong(final long rawNumber) {
-            final long number;
-            final int length;
+                throw new IllegalStateException("Cannot read number at " + getStateName(state));
+        }
+    }
 
-            final boolean negative;
+    // прочитать число с плавающей точкой из элемента массива. Пустой элемент отмечается в nullElement
+    @SneakyThrows
+    private double _nextDoubleElement() {
+        val state = _readState();
+        _resetState();
 
-            if ((negative = rawNumber < 0)) {
-                length = getLongLength(number = -rawNumber) + 1;
-            } else {
-                length = getLongLength(number = rawNumber);
-            }
+        nullElement = false;
 
-            _writeLength('$', length);
+        val buffer = this.read;
 
-            _ensure(length + 2);
+        switch (state) {
+            case STATE_DOUBLE:
+            case STATE_NUMBER:
+            case STATE_BIG_NUMBER:
+            case STATE_OK: {
+                val end = _findCrlf();
+                val start = buffer.getPosition();
 
-            val position = this.position + length;
-            val lastPosition = _writeLong(position, number);
+                buffer.setPosition(end + 2);
 
-            if (negative) {
-                array[lastPosition - 1] = (byte) '-';
+                return _parseDouble(buffer, start, end);
             }
+            case STATE_STRING: {
+                val length = _readInt();
 
-            _writeCrlf();
-        }
-
-        private void _writeEmptyString() {
-            _ensure(4);
+                if (length < 0) {
+                    nullElement = true;
+                    return Double.NaN;
+                }
 
-            writeRaw((byte) '$');
-            writeRaw((byte) '0');
-            _writeCrlf();
-        }
+                _require(length + 2);
 
-        public void writeBytes(final byte[] bytes) {
-            val blobLength = bytes.length;
+                val start = buffer.getPosition();
+                buffer.setPosition(start + length + 2);
 
-            if (blobLength == 0) {
-                _writeEmptyString();
-                return;
+                return _parseDouble(buffer, start, start + length);
             }
+            case STATE_NULL:
+                _skipUntilCrlf();
+                nullElement = true;
 
-            _writeLength('$', blobLength);
+                return Double.NaN;
+            default:
+                this.state = state;
 
-            _ensure(blobLength + 2);
-            writeRaw(bytes);
-            _writeCrlf();
+                throw new IllegalStateException("Cannot read double at " + getStateName(state));
         }
+    }
 
-        public void writeAscii(final String text) {
-            if (text.length() == 0) {
-                _writeEmptyString();
-                return;
-            }
+    // строгий разбор целого числа из буффера чтения
+    private static long _parseLong(final ReadRedisBuffer buffer, final int from, final int to) {
+        if (from == to) {
+            throw new NumberFormatException("Empty number");
+        }
 
-            val textLength = text.length();
-            _writeLength('$', textLength);
+        int i = from;
 
-            _ensure(textLength + 2);
-            _writeAscii(text);
+        val negative = buffer.get(i) == '-';
 
-            _writeCrlf();
+        if (negative && ++i == to) {
+            throw new NumberFormatException("For input: " + buffer.toString(from, to - from));
         }
 
-        public void writeUTF(final String text) {
-            if (text.length() == 0) {
-                _writeEmptyString();
-                return;
+        // считаем в отрицательных числах, чтобы поместился Long.MIN_VALUE
+        long result = 0;
+
+        for (; i < to; i++) {
+            val digit = buffer.get(i) - '0';
+
+            if (digit < 0 || digit > 9 || result < Long.MIN_VALUE / 10) {
+                throw new NumberFormatException("For input: " + buffer.toString(from, to - from));
             }
 
-            val bytes = text.getBytes(StandardCharsets.UTF_8);
+            result = result * 10 - digit;
 
-            val textLength = bytes.length;
-            _writeLength('$', textLength);
+            if (result > 0) {
+                throw new NumberFormatException("For input: " + buffer.toString(from, to - from));
+            }
+        }
 
-            _ensure(textLength + 2);
-            writeRaw(bytes);
+        if (negative) {
+            return result;
+        }
 
-            _writeCrlf();
+        if (result == Long.MIN_VALUE) {
+            throw new NumberFormatException("For input: " + buffer.toString(from, to - from));
         }
+
+        return -result;
     }
 
     @Getter
@@ -1084,9 +3533,25 @@ public final class Redis implements AutoCloseable {
         int soSndBuf;
         int soRcvBuf;
         long connectTimeoutMillis;
+        long readTimeoutMillis;
         boolean tcpNoDelay;
         String username;
         String password;
+        Transport transport;
+        RedisEventLoop eventLoop;
+        boolean directBuffers;
+        int protocol;
+        boolean clientTracking;
+        RedisPushListener pushListener;
+        RedisMetrics metrics;
+        RedisStringCache stringCache;
+
+        // тот же конфиг, но для другого Redis сервера, например, узла кластера
+        Config withAddress(final InetSocketAddress address) {
+            return new Config(address, writeBufferCapacity, readBufferCapacity, soSndBuf, soRcvBuf,
+                    connectTimeoutMillis, readTimeoutMillis, tcpNoDelay, username, password, transport, eventLoop, directBuffers,
+                    protocol, clientTracking, pushListener, metrics, stringCache);
+        }
 
         @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
         @RequiredArgsConstructor
@@ -1115,9 +3580,36 @@ public final class Redis implements AutoCloseable {
             @NonFinal
             long timeout;
 
+            @NonFinal
+            long readTimeout;
+
             @NonFinal
             boolean tcpNoDelay;
 
+            @NonFinal
+            Transport transport;
+
+            @NonFinal
+            RedisEventLoop eventLoop;
+
+            @NonFinal
+            boolean directBuffers;
+
+            @NonFinal
+            int protocol;
+
+            @NonFinal
+            boolean clientTracking;
+
+            @NonFinal
+            RedisPushListener pushListener;
+
+            @NonFinal
+            RedisMetrics metrics;
+
+            @NonFinal
+            RedisStringCache stringCache;
+
             public Builder auth(
                     final String username,
                     final String password
@@ -1205,6 +3697,26 @@ public final class Redis implements AutoCloseable {
                 return this;
             }
 
+            /**
+             * Изменить таймаут чтения ответа.
+             * <p>
+             * Если за это время от Redis сервера не придёт ни одного байта, чтение завершится
+             * {@link SocketTimeoutException}. Подключение при этом закрывается, а неотправленные
+             * команды и непрочитанные ответы отбрасываются, т.к. ответ на команду может прийти позже
+             * и быть принят за ответ на следующую. Следующая команда подключится заново.
+             * <p>
+             * По умолчанию таймаут равен {@code 0}, т.е. ожидание ответа будет вечным.
+             *
+             * @param timeout  таймаут
+             * @param timeUnit единица времени, в которой измеряется таймаут
+             * @return {@code this}
+             */
+            public Builder readTimeout(final long timeout, final TimeUnit timeUnit) {
+                this.readTimeout = timeUnit.toMillis(timeout);
+
+                return this;
+            }
+
             /**
              * Изменить опцию {@code TCP_NODELAY} для канала.
              * <p>
@@ -1219,7 +3731,153 @@ public final class Redis implements AutoCloseable {
                 return this;
             }
 
+            /**
+             * Сменить транспорт, через который клиент общается с Redis сервером.
+             * <p>
+             * По умолчанию используется {@link Transport#SOCKET}.
+             *
+             * @param transport новый транспорт
+             * @return {@code this}
+             */
+            public Builder transport(final Transport transport) {
+                this.transport = transport;
+
+                return this;
+            }
+
+            /**
+             * Сменить цикл событий, в котором регистрируются каналы транспорта {@link Transport#NIO}.
+             * <p>
+             * По умолчанию используется {@link RedisEventLoop#shared()}.
+             *
+             * @param eventLoop новый цикл событий
+             * @return {@code this}
+             */
+            public Builder eventLoop(final RedisEventLoop eventLoop) {
+                this.eventLoop = eventLoop;
+
+                return this;
+            }
+
+            /**
+             * Разместить буфферы записи и чтения вне кучи.
+             * <p>
+             * Транспорт {@link Transport#NIO} пишет и читает такие буфферы напрямую, без промежуточного
+             * копирования во временный буффер JDK. С транспортом {@link Transport#SOCKET} это наоборот
+             * добавит копирование, потому что сокет работает только с массивами.
+             * <p>
+             * По умолчанию значение равно {@code false}.
+             *
+             * @param directBuffers размещать ли буфферы вне кучи
+             * @return {@code this}
+             */
+            public Builder directBuffers(final boolean directBuffers) {
+                this.directBuffers = directBuffers;
+
+                return this;
+            }
+
+            /**
+             * Сменить версию протокола RESP.
+             * <p>
+             * С версией {@code 3} клиент при подключении отправляет {@code HELLO 3}, после чего Redis сервер
+             * отвечает типами RESP3: картами, множествами, числами с плавающей точкой и т.д. Для их чтения
+             * используйте {@link Redis#nextMap()}, {@link Redis#nextDouble()}, {@link Redis#nextBoolean()}.
+             * <p>
+             * По умолчанию используется версия {@code 2}.
+             *
+             * @param protocol версия протокола, {@code 2} или {@code 3}
+             * @return {@code this}
+             */
+            public Builder protocol(final int protocol) {
+                if (protocol != 2 && protocol != 3) {
+                    throw new IllegalArgumentException("Unsupported RESP version: " + protocol);
+                }
+
+                this.protocol = protocol;
+
+                return this;
+            }
+
+            /**
+             * Включить {@code CLIENT TRACKING} для каждого нового подключения.
+             * <p>
+             * После этого Redis сервер присылает push сообщения {@code invalidate} о ключах, которые были прочитаны
+             * через это подключение и потом изменились. Работает только с {@code protocol(3)}, сообщения получает
+             * {@link #pushListener(RedisPushListener)}, например, {@link RedisClientCache}.
+             * <p>
+             * По умолчанию значение равно {@code false}.
+             *
+             * @param clientTracking включить ли {@code CLIENT TRACKING}
+             * @return {@code this}
+             */
+            public Builder clientTracking(final boolean clientTracking) {
+                this.clientTracking = clientTracking;
+
+                return this;
+            }
+
+            /**
+             * Сменить слушатель push сообщений RESP3.
+             * <p>
+             * Слушатель получает push сообщения, которые приходят между ответами, и они не попадают
+             * в {@link Redis#nextString()}, {@link Redis#nextArray()} и т.д.
+             * <p>
+             * По умолчанию слушателя нет, и push сообщения читаются как обычные ответы.
+             *
+             * @param pushListener новый слушатель
+             * @return {@code this}
+             */
+            public Builder pushListener(final RedisPushListener pushListener) {
+                this.pushListener = pushListener;
+
+                return this;
+            }
+
+            /**
+             * Сменить получателя метрик клиента: задержки команд, отправленных и прочитанных байтов и т.д.
+             * <p>
+             * Задержка каждой команды отдельно замеряется только через {@link RedisMultiplexer}. При чтении
+             * через {@link Redis#flushAndRead()} все команды пайплайна получают одну задержку до первых байтов
+             * ответа.
+             * <p>
+             * Один получатель может быть у нескольких клиентов, например, у всех подключений {@link RedisPool}.
+             * <p>
+             * По умолчанию метрик нет, и клиент их не считает.
+             *
+             * @param metrics новый получатель метрик, например, {@link RedisStatistics}
+             * @return {@code this}
+             */
+            public Builder metrics(final RedisMetrics metrics) {
+                this.metrics = metrics;
+
+                return this;
+            }
+
+            /**
+             * Сменить кэш строк, через который {@link Redis#nextString()} возвращает одни и те же экземпляры
+             * для повторяющихся коротких ответов.
+             * <p>
+             * Один кэш может быть у нескольких клиентов, например, у всех подключений {@link RedisPool}.
+             * <p>
+             * По умолчанию кэша нет, и каждый ответ читается в новую строку.
+             *
+             * @param stringCache новый кэш строк
+             * @return {@code this}
+             */
+            public Builder stringCache(final RedisStringCache stringCache) {
+                this.stringCache = stringCache;
+
+                return this;
+            }
+
             public Config build() {
+                val protocol = this.protocol == 0 ? 2 : this.protocol;
+
+                if (clientTracking && protocol != 3) {
+                    throw new IllegalStateException("Client tracking requires RESP3, use protocol(3)");
+                }
+
                 return new Config(
                         address,
                         writeCapacity == null ? 1024 : writeCapacity,
@@ -1227,14 +3885,43 @@ public final class Redis implements AutoCloseable {
                         soSndBuf == null ? 1024 : soSndBuf,
                         soRcvBuf == null ? 1024 : soRcvBuf,
                         timeout,
+                        readTimeout,
                         tcpNoDelay,
                         username,
-                        password
+                        password,
+                        transport == null ? Transport.SOCKET : transport,
+                        eventLoop,
+                        directBuffers,
+                        protocol,
+                        clientTracking,
+                        pushListener,
+                        metrics,
+                        stringCache
                 );
             }
         }
     }
 
+    /**
+     * Транспорт, через который клиент общается с Redis сервером.
+     */
+    public enum Transport {
+        /**
+         * Блокирующий {@link java.net.Socket}, поток ждёт ответа в {@link java.io.InputStream#read()}.
+         */
+        SOCKET,
+
+        /**
+         * Неблокирующий {@link java.nio.channels.SocketChannel}, зарегистрированный в {@link RedisEventLoop}.
+         * <p>
+         * Поток, ожидающий ответа, паркуется до тех пор, пока цикл событий не сообщит о готовности канала.
+         * Поэтому блокирующие методы {@link Redis} по-прежнему занимают поток на каждый запрос, как и
+         * {@link #SOCKET}. Без потока на запрос с этим транспортом работает {@link RedisMultiplexer}:
+         * ответы он читает прямо в цикле событий.
+         */
+        NIO
+    }
+
     public static abstract class RedisException extends RuntimeException {
         protected RedisException(final String message) {
             super(message);
@@ -1257,4 +3944,16 @@ public final class Redis implements AutoCloseable {
         }
     }
 
+    public static final class ProtocolException extends RedisException {
+        public ProtocolException(final String message) {
+            super(message);
+        }
+    }
+
+    public static final class ReplyException extends RedisException {
+        public ReplyException(final String message) {
+            super(message);
+        }
+    }
+
 }
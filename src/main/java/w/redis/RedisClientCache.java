@@ -0,0 +1,399 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Локальный кэш ответов {@code GET} и {@code HGET}, который Redis сервер сам держит в актуальном состоянии.
+ * <p>
+ * Кэш работает через {@code CLIENT TRACKING}: сервер запоминает, какие ключи читало подключение, и присылает
+ * push сообщение {@code invalidate}, когда какой-нибудь из них меняется. Поэтому кэш нужно передать в
+ * конфиг как слушателя push сообщений:
+ * <pre>{@code
+ * RedisClientCache cache = new RedisClientCache(10_000);
+ *
+ * RedisMultiplexer multiplexer = new RedisMultiplexer(new Redis.Config.Builder(address)
+ *         .protocol(3)
+ *         .clientTracking(true)
+ *         .pushListener(cache)
+ *         .build());
+ *
+ * String value = cache.get(multiplexer, "key").join();
+ * }</pre>
+ * Значение попадает в кэш в тот момент, когда читается ответ, а сообщения об изменениях приходят по тому же
+ * подключению после этого ответа, поэтому кэш не может пропустить изменение. По этой же причине кэш нельзя
+ * использовать с несколькими подключениями сразу, например, с {@link RedisPool}.
+ * <p>
+ * Попадание в кэш не берёт блокировку. Когда ключей становится больше {@code maxSize}, вытеснение идёт
+ * по алгоритму "часы": ключ, к которому обращались с прошлого обхода, получает второй шанс, а остальные
+ * вытесняются. Это приближение LRU, поэтому вытеснен может быть не самый старый ключ.
+ * Все значения одного ключа, в том числе поля {@code HGET}, хранятся и вытесняются вместе, потому что
+ * Redis сервер сообщает об изменении ключа целиком.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisClientCache implements RedisPushListener {
+
+    // ключ или поле существуют в кэше, но в Redis их нет
+    private static final String NIL = new String("nil");
+
+    private static final CommandTemplate GET = CommandTemplate.of("GET", 1);
+
+    private static final CommandTemplate HGET = CommandTemplate.of("HGET", 2);
+
+    Map<String, CachedValue> entries;
+
+    int maxSize;
+
+    // вытеснение бывает только при промахе, поэтому блокировка не мешает попаданиям
+    Object evictionLock;
+
+    @NonFinal
+    Iterator<Map.Entry<String, CachedValue>> hand;
+
+    LongAdder hits;
+    LongAdder misses;
+
+    /**
+     * Конструктор кэша.
+     *
+     * @param maxSize Максимальное количество ключей в кэше
+     */
+    public RedisClientCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Illegal max size: " + maxSize);
+        }
+
+        this.entries = new ConcurrentHashMap<>();
+        this.maxSize = maxSize;
+        this.evictionLock = new Object();
+
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    private static String _wrap(final String value) {
+        return value == null ? NIL : value;
+    }
+
+    private static String _unwrap(final String value) {
+        return value == NIL ? null : value;
+    }
+
+    // значение из кэша или null, если его там нет
+    private String _get(final String key, final String field) {
+        String value = null;
+
+        val entry = entries.get(key);
+
+        if (entry != null) {
+            if (field == null) {
+                value = entry.value;
+            } else {
+                val fields = entry.fields;
+
+                if (fields != null) {
+                    value = fields.get(field);
+                }
+            }
+
+            if (value != null && !entry.referenced) {
+                // пишем только если бит сброшен, чтобы горячие ключи не гоняли строку кэша между ядрами
+                entry.referenced = true;
+            }
+        }
+
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return value;
+    }
+
+    private String _put(final String key, final String field, final String value) {
+        val entry = _entry(key);
+
+        if (field == null) {
+            entry.value = _wrap(value);
+        } else {
+            Map<String, String> fields = entry.fields;
+
+            if (fields == null) {
+                synchronized (entry) {
+                    if ((fields = entry.fields) == null) {
+                        entry.fields = fields = new ConcurrentHashMap<>();
+                    }
+                }
+            }
+
+            fields.put(field, _wrap(value));
+        }
+
+        return value;
+    }
+
+    private CachedValue _entry(final String key) {
+        CachedValue entry = entries.get(key);
+
+        if (entry != null) {
+            return entry;
+        }
+
+        val created = new CachedValue();
+
+        if ((entry = entries.putIfAbsent(key, created)) != null) {
+            return entry;
+        }
+
+        if (entries.size() > maxSize) {
+            _evict(created);
+        }
+
+        return created;
+    }
+
+    // обход "часов": сбросить бит у ключей, к которым обращались, и вытеснить первый ключ без него
+    private void _evict(final CachedValue inserted) {
+        synchronized (evictionLock) {
+            while (entries.size() > maxSize) {
+                Iterator<Map.Entry<String, CachedValue>> hand = this.hand;
+
+                if (hand == null || !hand.hasNext()) {
+                    this.hand = hand = entries.entrySet().iterator();
+
+                    if (!hand.hasNext()) {
+                        // ключи удалили, пока мы ждали блокировку
+                        return;
+                    }
+                }
+
+                val entry = hand.next();
+                val value = entry.getValue();
+
+                if (value == inserted) {
+                    // только что добавленный ключ ещё не успели прочитать
+                    continue;
+                }
+
+                if (value.referenced) {
+                    value.referenced = false;
+                } else {
+                    entries.remove(entry.getKey(), value);
+                }
+            }
+        }
+    }
+
+    private static RedisCommand _getCommand(final String key) {
+        return redis -> redis.writeCommand(GET).writeUTF(key);
+    }
+
+    private static RedisCommand _hgetCommand(final String key, final String field) {
+        return redis -> redis.writeCommand(HGET).writeUTF(key).writeUTF(field);
+    }
+
+    /**
+     * Получить значение ключа через {@code GET}.
+     *
+     * @param multiplexer Мультиплексор, в конфиге которого этот кэш указан как слушатель push сообщений
+     * @param key         Ключ
+     * @return Значение ключа или {@code null}, если его нет
+     */
+    public CompletableFuture<String> get(final RedisMultiplexer multiplexer, final String key) {
+        val cached = _get(key, null);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(_unwrap(cached));
+        }
+
+        return multiplexer.send(_getCommand(key), redis -> _put(key, null, redis.nextString()));
+    }
+
+    /**
+     * Получить значение поля через {@code HGET}.
+     *
+     * @param multiplexer Мультиплексор, в конфиге которого этот кэш указан как слушатель push сообщений
+     * @param key         Ключ
+     * @param field       Поле
+     * @return Значение поля или {@code null}, если его нет
+     */
+    public CompletableFuture<String> hget(final RedisMultiplexer multiplexer, final String key, final String field) {
+        val cached = _get(key, field);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(_unwrap(cached));
+        }
+
+        return multiplexer.send(_hgetCommand(key, field), redis -> _put(key, field, redis.nextString()));
+    }
+
+    /**
+     * Получить значение ключа через {@code GET}.
+     * <p>
+     * Буффер записи клиента должен быть пуст. Сообщения об изменениях {@link Redis} читает только вместе
+     * с ответами, поэтому пока клиент ничего не читает, кэш может отдавать устаревшие значения. Если это
+     * важно, используйте {@link #get(RedisMultiplexer, String)}.
+     *
+     * @param redis Клиент, в конфиге которого этот кэш указан как слушатель push сообщений
+     * @param key   Ключ
+     * @return Значение ключа или {@code null}, если его нет
+     */
+    public String get(final Redis redis, final String key) {
+        val cached = _get(key, null);
+
+        if (cached != null) {
+            return _unwrap(cached);
+        }
+
+        _getCommand(key).write(redis);
+        redis.flushAndRead();
+
+        return _put(key, null, redis.nextString());
+    }
+
+    /**
+     * Получить значение поля через {@code HGET}.
+     * <p>
+     * Буффер записи клиента должен быть пуст.
+     *
+     * @param redis Клиент, в конфиге которого этот кэш указан как слушатель push сообщений
+     * @param key   Ключ
+     * @param field Поле
+     * @return Значение поля или {@code null}, если его нет
+     * @see #get(Redis, String)
+     */
+    public String hget(final Redis redis, final String key, final String field) {
+        val cached = _get(key, field);
+
+        if (cached != null) {
+            return _unwrap(cached);
+        }
+
+        _hgetCommand(key, field).write(redis);
+        redis.flushAndRead();
+
+        return _put(key, field, redis.nextString());
+    }
+
+    /**
+     * Удалить ключ из кэша вместе со всеми его полями.
+     *
+     * @param key Ключ
+     */
+    public void invalidate(final String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Очистить кэш.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Получить количество ключей в кэше.
+     *
+     * @return Количество ключей
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Получить количество значений, которые были найдены в кэше.
+     *
+     * @return Количество попаданий
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Получить количество значений, за которыми пришлось идти на Redis сервер.
+     *
+     * @return Количество промахов
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void onPush(final Redis redis) {
+        val size = redis.nextArray();
+
+        if (size < 2) {
+            redis.skip(size);
+            return;
+        }
+
+        if (!"invalidate".equals(redis.nextString())) {
+            redis.skip(size - 1);
+            return;
+        }
+
+        val keys = redis.nextArray();
+
+        if (keys < 0) {
+            // FLUSHALL или FLUSHDB
+            clear();
+        } else {
+            for (int i = 0; i < keys; i++) {
+                invalidate(redis.nextString());
+            }
+        }
+
+        redis.skip(size - 2);
+    }
+
+    @Override
+    public void onConnect(final Redis redis) {
+        // пока подключения не было, сообщения об изменениях терялись
+        clear();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisClientCache[size=" + getSize() + "]";
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    private static final class CachedValue {
+
+        volatile String value;
+
+        volatile Map<String, String> fields;
+
+        // к ключу обращались после последнего обхода вытеснения
+        volatile boolean referenced;
+
+    }
+
+}
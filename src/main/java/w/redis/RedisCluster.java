@@ -0,0 +1,721 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Клиент Redis Cluster.
+ * <p>
+ * Каждая команда отправляется на узел, который обслуживает слот её ключа. Слот считается так же, как
+ * на Redis сервере: CRC16 ключа по модулю {@value #SLOTS}, а если в ключе есть {@code {hashtag}},
+ * то только его части в фигурных скобках.
+ * <p>
+ * Карта слотов загружается через {@code CLUSTER SLOTS} при создании клиента и обновляется в фоне.
+ * На каждый узел открывается один {@link RedisMultiplexer}, поэтому клиентом могут пользоваться
+ * несколько потоков. Ответы {@code MOVED} и {@code ASK} обрабатываются сами: команда повторяется
+ * на нужном узле, а после {@code MOVED} карта слотов обновляется.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisCluster implements AutoCloseable {
+
+    /**
+     * Количество слотов Redis Cluster.
+     */
+    public static final int SLOTS = 16384;
+
+    private static final CommandTemplate ASKING = CommandTemplate.of("ASKING");
+
+    private static final CommandTemplate CLUSTER_SLOTS = CommandTemplate.of("CLUSTER", "SLOTS");
+
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        // CRC16-CCITT (XMODEM), как в Redis
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    Redis.Config redisConfig;
+
+    List<InetSocketAddress> seeds;
+
+    int maxRedirects;
+
+    Map<InetSocketAddress, RedisMultiplexer> nodes;
+
+    AtomicBoolean refreshing;
+
+    ScheduledFuture<?> refresh;
+
+    // узел для каждого слота. Массив не меняется: MOVED и обновление карты подменяют его целиком
+    AtomicReference<InetSocketAddress[]> slots;
+
+    @NonFinal
+    volatile boolean closed;
+
+    /**
+     * Конструктор клиента кластера.
+     * <p>
+     * Клиент сразу загружает карту слотов с одного из начальных узлов.
+     *
+     * @param config Конфиг клиента кластера
+     * @throws ClusterException Выбрасывается, если ни один из начальных узлов не вернул карту слотов
+     */
+    public RedisCluster(final Config config) {
+        this.redisConfig = config.getRedisConfig();
+        this.seeds = config.getSeeds();
+        this.maxRedirects = config.getMaxRedirects();
+        this.nodes = new ConcurrentHashMap<>();
+        this.refreshing = new AtomicBoolean();
+        this.slots = new AtomicReference<>();
+
+        _refresh();
+
+        val refreshInterval = config.getRefreshIntervalMillis();
+
+        this.refresh = Refresh.EXECUTOR.scheduleWithFixedDelay(this::_refreshQuietly,
+                refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static int _crc16(final byte[] bytes, final int from, final int to) {
+        int crc = 0;
+
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ bytes[i]) & 0xFF]) & 0xFFFF;
+        }
+
+        return crc;
+    }
+
+    /**
+     * Посчитать CRC16, которым Redis Cluster распределяет ключи по слотам.
+     *
+     * @param bytes Байты
+     * @return CRC16
+     */
+    public static int crc16(final byte[] bytes) {
+        return _crc16(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Посчитать слот ключа.
+     *
+     * @param key Ключ
+     * @return Слот от {@code 0} до {@value #SLOTS} не включительно
+     */
+    public static int slot(final byte[] key) {
+        int from = 0;
+        int to = key.length;
+
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] == '{') {
+                for (int j = i + 1; j < key.length; j++) {
+                    if (key[j] == '}') {
+                        // пустой {} не считается hashtag'ом
+                        if (j > i + 1) {
+                            from = i + 1;
+                            to = j;
+                        }
+
+                        break;
+                    }
+                }
+
+                break;
+            }
+        }
+
+        return _crc16(key, from, to) & (SLOTS - 1);
+    }
+
+    /**
+     * Посчитать слот ключа.
+     *
+     * @param key Ключ, байты которого берутся в UTF-8
+     * @return Слот от {@code 0} до {@value #SLOTS} не включительно
+     */
+    public static int slot(final String key) {
+        return slot(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Отправить команду на узел, который обслуживает ключ, не дожидаясь ответа.
+     *
+     * @param key     Ключ, по которому выбирается узел
+     * @param command Команда
+     * @param reply   Чтение ответа
+     * @param <T>     Тип результата
+     * @return Результат, который появится, когда придёт ответ
+     */
+    public <T> CompletableFuture<T> send(final String key, final RedisCommand command, final RedisReply<T> reply) {
+        val request = new Request<T>(slot(key), command, reply);
+        request.send(true);
+
+        return request.result;
+    }
+
+    /**
+     * Выполнить команду на узле, который обслуживает ключ, и дождаться ответа.
+     *
+     * @param key     Ключ, по которому выбирается узел
+     * @param command Команда
+     * @param reply   Чтение ответа
+     * @param <T>     Тип результата
+     * @return Результат
+     */
+    public <T> T execute(final String key, final RedisCommand command, final RedisReply<T> reply) {
+        try {
+            return send(key, command, reply).join();
+        } catch (final CompletionException e) {
+            val cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new Redis.SocketException("Request failed", cause);
+        }
+    }
+
+    /**
+     * Создать пайплайн, команды которого будут разделены по узлам и отправлены одновременно.
+     *
+     * @return Новый пайплайн
+     */
+    public Pipeline pipeline() {
+        return new Pipeline();
+    }
+
+    /**
+     * Обновить карту слотов прямо сейчас.
+     *
+     * @throws ClusterException Выбрасывается, если ни один узел не вернул карту слотов
+     */
+    public void refresh() {
+        _refresh();
+    }
+
+    private RedisMultiplexer _node(final InetSocketAddress address) {
+        if (closed) {
+            throw new IllegalStateException("Redis cluster was closed");
+        }
+
+        return nodes.computeIfAbsent(address, node -> new RedisMultiplexer(redisConfig.withAddress(node)));
+    }
+
+    private InetSocketAddress _address(final int slot) {
+        val address = slots.get()[slot];
+
+        if (address == null) {
+            throw new ClusterException("Slot " + slot + " is not served by any node");
+        }
+
+        return address;
+    }
+
+    private void _moved(final int slot, final InetSocketAddress address) {
+        InetSocketAddress[] current;
+        InetSocketAddress[] updated;
+
+        do {
+            current = slots.get();
+
+            if (address.equals(current[slot])) {
+                break;
+            }
+
+            updated = current.clone();
+            updated[slot] = address;
+        } while (!slots.compareAndSet(current, updated));
+
+        // скорее всего, переехал не один слот
+        if (refreshing.compareAndSet(false, true)) {
+            Refresh.EXECUTOR.execute(() -> {
+                try {
+                    _refreshQuietly();
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    private void _refreshQuietly() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            _refresh();
+        } catch (final Throwable ignored) {
+            // останемся со старой картой и попробуем в следующий раз
+        }
+    }
+
+    private synchronized void _refresh() {
+        val candidates = new LinkedHashSet<InetSocketAddress>(nodes.keySet());
+        candidates.addAll(seeds);
+
+        Throwable error = null;
+
+        for (val address : candidates) {
+            try (val redis = new Redis(redisConfig.withAddress(address))) {
+                redis.writeCommand(CLUSTER_SLOTS);
+                redis.flushAndRead();
+
+                if (redis.isError()) {
+                    throw new ClusterException("CLUSTER SLOTS failed on " + address + ": " + redis.nextString());
+                }
+
+                slots.set(_readSlots(redis, address));
+                _closeUnused();
+
+                return;
+            } catch (final Throwable e) {
+                error = e;
+            }
+        }
+
+        throw new ClusterException("Can't load cluster slots from " + candidates, error);
+    }
+
+    private static InetSocketAddress[] _readSlots(final Redis redis, final InetSocketAddress source) {
+        val slots = new InetSocketAddress[SLOTS];
+        val ranges = redis.nextArray();
+
+        for (int i = 0; i < ranges; i++) {
+            val size = redis.nextArray();
+            val start = redis.nextInt();
+            val end = redis.nextInt();
+
+            // первый узел - мастер, остальные - реплики
+            val nodeSize = redis.nextArray();
+            val host = redis.nextString();
+            val port = redis.nextInt();
+
+            redis.skip(nodeSize - 2);
+            redis.skip(size - 3);
+
+            val address = host == null || host.isEmpty() || host.equals("?")
+                    ? new InetSocketAddress(source.getAddress(), port)
+                    : new InetSocketAddress(host, port);
+
+            Arrays.fill(slots, start, end + 1, address);
+        }
+
+        return slots;
+    }
+
+    private void _closeUnused() {
+        val used = new HashSet<InetSocketAddress>(Arrays.asList(slots.get()));
+
+        for (val node : nodes.entrySet()) {
+            if (!used.contains(node.getKey()) && nodes.remove(node.getKey(), node.getValue())) {
+                // на узел ещё могут идти команды, в том числе после ASK, поэтому ждём их ответов
+                node.getValue().shutdown();
+            }
+        }
+    }
+
+    private static InetSocketAddress _parseAddress(final String address, final InetSocketAddress current) {
+        val colon = address.lastIndexOf(':');
+        val host = address.substring(0, colon);
+        val port = Integer.parseInt(address.substring(colon + 1));
+
+        return host.isEmpty()
+                ? new InetSocketAddress(current.getAddress(), port)
+                : new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Закрыть клиент вместе со всеми подключениями к узлам.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        refresh.cancel(false);
+
+        for (val node : nodes.values()) {
+            node.close();
+        }
+
+        nodes.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisCluster[nodes=" + nodes.keySet() + "]";
+    }
+
+    /**
+     * Пайплайн команд для разных ключей.
+     * <p>
+     * Команды раскладываются по узлам в порядке добавления, после чего все узлы отправляют свои команды
+     * одновременно. Результаты приходят в том же порядке, в котором команды были добавлены.
+     * <p>
+     * Пайплайн не потокобезопасен.
+     */
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public final class Pipeline {
+
+        List<Request<?>> requests = new ArrayList<>();
+
+        private Pipeline() {
+        }
+
+        /**
+         * Добавить команду в пайплайн.
+         *
+         * @param key     Ключ, по которому выбирается узел
+         * @param command Команда
+         * @param reply   Чтение ответа
+         * @param <T>     Тип результата
+         * @return Результат, который появится, когда придёт ответ
+         */
+        public <T> CompletableFuture<T> add(final String key, final RedisCommand command, final RedisReply<T> reply) {
+            val request = new Request<T>(slot(key), command, reply);
+            requests.add(request);
+
+            return request.result;
+        }
+
+        /**
+         * Отправить все добавленные команды.
+         * <p>
+         * После этого пайплайн пуст, и его можно использовать снова.
+         *
+         * @return Результаты всех команд в порядке добавления
+         */
+        public CompletableFuture<List<Object>> execute() {
+            val requests = new ArrayList<>(this.requests);
+            this.requests.clear();
+
+            val targets = new LinkedHashSet<RedisMultiplexer>();
+
+            for (val request : requests) {
+                val node = request.send(false);
+
+                if (node != null) {
+                    targets.add(node);
+                }
+            }
+
+            RedisMultiplexer.drainAll(targets);
+
+            val results = new CompletableFuture<?>[requests.size()];
+
+            for (int i = 0; i < results.length; i++) {
+                results[i] = requests.get(i).result;
+            }
+
+            return CompletableFuture.allOf(results).thenApply(ignored -> {
+                val values = new ArrayList<Object>(results.length);
+
+                for (val result : results) {
+                    values.add(result.join());
+                }
+
+                return Collections.unmodifiableList(values);
+            });
+        }
+
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private final class Request<T> implements RedisReply<Object>, BiConsumer<Object, Throwable> {
+
+        int slot;
+
+        RedisCommand command;
+
+        RedisReply<T> reply;
+
+        CompletableFuture<T> result;
+
+        // дальше меняются только при повторной отправке, которая идёт после ответа
+        @NonFinal
+        int redirects;
+
+        @NonFinal
+        InetSocketAddress target;
+
+        @NonFinal
+        boolean asking;
+
+        Request(final int slot, final RedisCommand command, final RedisReply<T> reply) {
+            this.slot = slot;
+            this.command = command;
+            this.reply = reply;
+            this.result = new CompletableFuture<>();
+        }
+
+        // поставить команду в очередь узла и вернуть узел или null, если не получилось
+        RedisMultiplexer send(final boolean drain) {
+            final RedisMultiplexer node;
+
+            try {
+                if (!asking) {
+                    target = _address(slot);
+                }
+
+                node = _node(target);
+            } catch (final Throwable e) {
+                result.completeExceptionally(e);
+
+                return null;
+            }
+
+            final CompletableFuture<Object> future;
+
+            if (asking) {
+                future = node.offer(redis -> {
+                    redis.writeCommand(ASKING);
+                    command.write(redis);
+                }, this, 1);
+            } else {
+                future = node.offer(command, this, 0);
+            }
+
+            future.whenComplete(this);
+
+            if (drain) {
+                node.drain();
+            }
+
+            return node;
+        }
+
+        @Override
+        public Object read(final Redis redis) {
+            val error = redis.peekError();
+
+            if (error != null) {
+                val moved = error.startsWith("MOVED ");
+
+                if (moved || error.startsWith("ASK ")) {
+                    redis.skip();
+
+                    // MOVED <slot> <host>:<port>
+                    val address = error.substring(error.lastIndexOf(' ') + 1);
+
+                    return new Redirect(moved, _parseAddress(address, target));
+                }
+            }
+
+            return reply.read(redis);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void accept(final Object value, final Throwable error) {
+            if (error != null) {
+                if (error instanceof RedisMultiplexer.ClosedException && !closed) {
+                    // узел закрыли после обновления карты, а команда до него так и не дошла
+                    _resend();
+                    return;
+                }
+
+                result.completeExceptionally(error);
+                return;
+            }
+
+            if (value instanceof Redirect) {
+                val redirect = (Redirect) value;
+
+                if (++redirects > maxRedirects) {
+                    result.completeExceptionally(new ClusterException("Too many redirects for slot " + slot));
+                    return;
+                }
+
+                if (redirect.moved) {
+                    asking = false;
+                    _moved(slot, redirect.address);
+                } else {
+                    asking = true;
+                    target = redirect.address;
+                }
+
+                _resend();
+                return;
+            }
+
+            result.complete((T) value);
+        }
+
+        private void _resend() {
+            RedisMultiplexer.resend(() -> send(true));
+        }
+
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    private static final class Redirect {
+        boolean moved;
+        InetSocketAddress address;
+    }
+
+    private static final class Refresh {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(task -> {
+            val thread = new Thread(task, "wredis-cluster-refresh");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    @Getter
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    public static final class Config {
+        Redis.Config redisConfig;
+        List<InetSocketAddress> seeds;
+        long refreshIntervalMillis;
+        int maxRedirects;
+
+        @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+        public static final class Builder {
+
+            Redis.Config redisConfig;
+
+            List<InetSocketAddress> seeds;
+
+            @NonFinal
+            Long refreshInterval;
+
+            @NonFinal
+            Integer maxRedirects;
+
+            /**
+             * Конструктор билдера.
+             *
+             * @param redisConfig Конфиг, по которому создаются подключения к узлам. Адрес из него
+             *                    используется как начальный узел, если других не указано
+             */
+            public Builder(final Redis.Config redisConfig) {
+                this.redisConfig = redisConfig;
+                this.seeds = new ArrayList<>();
+            }
+
+            /**
+             * Добавить начальный узел, с которого можно загрузить карту слотов.
+             *
+             * @param address адрес узла
+             * @return {@code this}
+             */
+            public Builder seed(final InetSocketAddress address) {
+                this.seeds.add(address);
+
+                return this;
+            }
+
+            /**
+             * Изменить интервал, с которым карта слотов обновляется в фоне.
+             * <p>
+             * По умолчанию интервал равен {@code 30} секундам.
+             *
+             * @param interval интервал
+             * @param timeUnit единица времени
+             * @return {@code this}
+             */
+            public Builder refreshInterval(final long interval, final TimeUnit timeUnit) {
+                this.refreshInterval = timeUnit.toMillis(interval);
+
+                return this;
+            }
+
+            /**
+             * Изменить максимальное количество переходов по {@code MOVED} и {@code ASK} для одной команды.
+             * <p>
+             * По умолчанию значение равно {@code 5}.
+             *
+             * @param maxRedirects новое максимальное количество переходов
+             * @return {@code this}
+             */
+            public Builder maxRedirects(final int maxRedirects) {
+                this.maxRedirects = maxRedirects;
+
+                return this;
+            }
+
+            public Config build() {
+                if (refreshInterval != null && refreshInterval <= 0) {
+                    throw new IllegalArgumentException("Illegal refresh interval: " + refreshInterval);
+                }
+
+                val seeds = this.seeds.isEmpty()
+                        ? Collections.singletonList(redisConfig.getAddress())
+                        : Collections.unmodifiableList(new ArrayList<>(this.seeds));
+
+                return new Config(
+                        redisConfig,
+                        seeds,
+                        refreshInterval == null ? 30000 : refreshInterval,
+                        maxRedirects == null ? 5 : maxRedirects
+                );
+            }
+        }
+    }
+
+    public static final class ClusterException extends Redis.RedisException {
+        public ClusterException(final String message) {
+            super(message);
+        }
+
+        public ClusterException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.SneakyThrows;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Цикл событий на основе {@link Selector}, который обслуживает каналы транспорта {@link Redis.Transport#NIO}.
+ * <p>
+ * Один цикл событий может обслуживать сколько угодно подключений, при этом сам он занимает только один поток.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisEventLoop implements AutoCloseable {
+
+    private static final Object SHARED_LOCK = new Object();
+
+    private static volatile RedisEventLoop shared;
+
+    private static final ThreadLocal<RedisEventLoop> CURRENT = new ThreadLocal<>();
+
+    Selector selector;
+
+    Thread thread;
+
+    Queue<Runnable> tasks;
+
+    @NonFinal
+    volatile boolean closed;
+
+    private RedisEventLoop(final Selector selector, final String name) {
+        this.selector = selector;
+        this.tasks = new ConcurrentLinkedQueue<>();
+
+        this.thread = new Thread(this::_run, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Создать новый цикл событий.
+     *
+     * @param name Название потока цикла событий
+     * @return Новый цикл событий
+     */
+    @SneakyThrows
+    public static RedisEventLoop create(final String name) {
+        val eventLoop = new RedisEventLoop(Selector.open(), name);
+        eventLoop.thread.start();
+
+        return eventLoop;
+    }
+
+    /**
+     * Получить общий цикл событий.
+     * <p>
+     * Он создаётся при первом обращении и используется всеми клиентами, у которых не указан
+     * свой цикл событий через {@link Redis.Config.Builder#eventLoop(RedisEventLoop)}.
+     *
+     * @return Общий цикл событий
+     */
+    public static RedisEventLoop shared() {
+        RedisEventLoop eventLoop;
+
+        if ((eventLoop = shared) == null || eventLoop.closed) {
+            synchronized (SHARED_LOCK) {
+                if ((eventLoop = shared) == null || eventLoop.closed) {
+                    shared = eventLoop = create("wredis-event-loop");
+                }
+            }
+        }
+
+        return eventLoop;
+    }
+
+    /**
+     * Проверить, выполняется ли текущий код в потоке цикла событий.
+     *
+     * @return {@code true}, если текущий поток - поток цикла событий
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Проверить, был ли цикл событий закрыт.
+     *
+     * @return {@code true}, если цикл событий закрыт
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // выполняется ли текущий код в потоке какого-либо цикла событий, где нельзя блокироваться
+    static boolean inAnyEventLoop() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Выполнить задачу в потоке цикла событий.
+     *
+     * @param task Задача
+     */
+    public void execute(final Runnable task) {
+        if (closed) {
+            throw new IllegalStateException("Event loop was closed");
+        }
+
+        tasks.offer(task);
+
+        // цикл мог закрыться между проверкой и offer, уже разобрав очередь в последний раз.
+        // Если задачу оттуда никто не забрал, то её уже никто не выполнит
+        if (closed && tasks.remove(task)) {
+            throw new IllegalStateException("Event loop was closed");
+        }
+
+        selector.wakeup();
+    }
+
+    SelectionKey register(final SelectableChannel channel, final Handler handler) throws IOException {
+        if (inEventLoop()) {
+            return channel.register(selector, 0, handler);
+        }
+
+        val result = new CompletableFuture<SelectionKey>();
+
+        execute(() -> {
+            try {
+                result.complete(channel.register(selector, 0, handler));
+            } catch (final Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        try {
+            return result.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while registering channel");
+        } catch (final ExecutionException e) {
+            val cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    private void _runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (final Throwable e) {
+                _uncaught(e);
+            }
+        }
+    }
+
+    private void _uncaught(final Throwable e) {
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+
+    private void _run() {
+        CURRENT.set(this);
+
+        try {
+            while (!closed) {
+                selector.select();
+
+                _runTasks();
+
+                val selectedKeys = selector.selectedKeys();
+
+                if (selectedKeys.isEmpty()) {
+                    continue;
+                }
+
+                val iterator = selectedKeys.iterator();
+
+                while (iterator.hasNext()) {
+                    val key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    try {
+                        ((Handler) key.attachment()).ready(key);
+                    } catch (final CancelledKeyException ignored) {
+                        // канал закрыли, пока мы его обрабатывали
+                    } catch (final Throwable e) {
+                        _uncaught(e);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            _uncaught(e);
+        } finally {
+            closed = true;
+
+            _runTasks();
+            _closeChannels();
+
+            try {
+                selector.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    // каналы больше некому обслуживать, поэтому закрываем их, чтобы ждущие потоки не висели вечно
+    private void _closeChannels() {
+        for (val key : selector.keys()) {
+            try {
+                ((Handler) key.attachment()).closed();
+            } catch (final Throwable e) {
+                _uncaught(e);
+            }
+        }
+    }
+
+    /**
+     * Закрыть цикл событий.
+     * <p>
+     * Зарегистрированные каналы закрываются, а потоки, которые ждали их готовности,
+     * завершат ожидание с ошибкой.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisEventLoop[thread=" + thread.getName() + "]";
+    }
+
+    /**
+     * Обработчик готовности канала, который указывается при регистрации канала.
+     */
+    interface Handler {
+
+        /**
+         * Вызывается в потоке цикла событий, когда канал готов к одной из операций,
+         * указанных в {@link SelectionKey#interestOps()}.
+         *
+         * @param key Ключ канала
+         */
+        void ready(SelectionKey key);
+
+        /**
+         * Вызывается в потоке цикла событий, когда цикл событий закрывается и больше не будет
+         * обслуживать канал.
+         */
+        void closed();
+
+    }
+
+}
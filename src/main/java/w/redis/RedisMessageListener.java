@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+/**
+ * Слушатель сообщений {@link RedisSubscriber}.
+ * <p>
+ * Каналы и сообщения передаются без копирования: это участки массива {@code buffer}, который после
+ * возврата из метода будет переиспользован. Если байты нужны дольше, их нужно скопировать.
+ * <p>
+ * Все методы вызываются из потока подписчика по одному.
+ *
+ * @author whilein
+ */
+@FunctionalInterface
+public interface RedisMessageListener {
+
+    /**
+     * Получить сообщение из канала, на который подписались через {@link RedisSubscriber#subscribe(String...)}.
+     *
+     * @param buffer        Массив, в котором лежат канал и сообщение
+     * @param channelOffset Начало канала
+     * @param channelLength Длина канала
+     * @param offset        Начало сообщения
+     * @param length        Длина сообщения
+     */
+    void onMessage(byte[] buffer, int channelOffset, int channelLength, int offset, int length);
+
+    /**
+     * Получить сообщение из канала, на который подписались через {@link RedisSubscriber#psubscribe(String...)}.
+     * <p>
+     * По умолчанию передаёт сообщение в {@link #onMessage(byte[], int, int, int, int)}.
+     *
+     * @param buffer        Массив, в котором лежат шаблон, канал и сообщение
+     * @param patternOffset Начало шаблона
+     * @param patternLength Длина шаблона
+     * @param channelOffset Начало канала
+     * @param channelLength Длина канала
+     * @param offset        Начало сообщения
+     * @param length        Длина сообщения
+     */
+    default void onPatternMessage(
+            final byte[] buffer,
+            final int patternOffset,
+            final int patternLength,
+            final int channelOffset,
+            final int channelLength,
+            final int offset,
+            final int length
+    ) {
+        onMessage(buffer, channelOffset, channelLength, offset, length);
+    }
+
+    /**
+     * Узнать об ошибке подписчика.
+     * <p>
+     * После ошибки подключения подписчик сам подключится заново и восстановит все подписки,
+     * но сообщения, отправленные за это время, будут потеряны.
+     *
+     * @param cause Ошибка
+     */
+    default void onError(final Throwable cause) {
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Получатель метрик Redis клиента.
+ * <p>
+ * Метрики включаются через {@link Redis.Config.Builder#metrics(RedisMetrics)}. Если получателя нет,
+ * клиент ничего не замеряет. Методы вызываются из потоков, которые пользуются клиентом или читают его
+ * ответы, поэтому они должны быть быстрыми и потокобезопасными, если получатель общий у нескольких клиентов.
+ *
+ * @author whilein
+ * @see RedisStatistics
+ */
+public interface RedisMetrics {
+
+    /**
+     * Вызывается, когда клиент открыл подключение.
+     *
+     * @param address Адрес Redis сервера
+     * @param nanos   Время подключения в наносекундах
+     */
+    default void onConnect(final InetSocketAddress address, final long nanos) {
+    }
+
+    /**
+     * Вызывается, когда клиент авторизовался через {@code AUTH} или {@code HELLO}.
+     *
+     * @param address Адрес Redis сервера
+     * @param nanos   Время авторизации в наносекундах
+     */
+    default void onAuth(final InetSocketAddress address, final long nanos) {
+    }
+
+    /**
+     * Вызывается после того, как буффер записи отправлен на Redis сервер.
+     *
+     * @param commands Количество команд, отправленных за раз, т.е. глубина пайплайна
+     * @param bytes    Количество отправленных байтов
+     */
+    default void onFlush(final int commands, final long bytes) {
+    }
+
+    /**
+     * Вызывается после каждого чтения из подключения, которое вернуло данные.
+     *
+     * @param bytes Количество прочитанных байтов
+     */
+    default void onRead(final int bytes) {
+    }
+
+    /**
+     * Вызывается, когда буффер клиента увеличивается.
+     *
+     * @param buffer      Буффер
+     * @param oldCapacity Старый размер
+     * @param newCapacity Новый размер
+     */
+    default void onResize(final Buffer buffer, final int oldCapacity, final int newCapacity) {
+    }
+
+    /**
+     * Вызывается, когда пришёл ответ на команду.
+     * <p>
+     * Задержка считается с момента отправки команды. {@link RedisMultiplexer} видит границы ответов и замеряет
+     * каждую команду отдельно.
+     * <p>
+     * {@link Redis#flushAndRead()} границ ответов не видит, поэтому все команды, отправленные одним
+     * {@link Redis#flush()}, завершаются первым чтением из подключения с одним и тем же временем. Для пайплайна
+     * это задержка всего пайплайна до первых байтов ответа, а не каждой команды: у команд в конце пайплайна
+     * она занижена. Для одной команды на каждый {@code flushAndRead} замер точный.
+     *
+     * @param name  Название команды, как оно было передано в {@link Redis#writeCommand(String, int)}
+     * @param nanos Задержка в наносекундах
+     */
+    default void onCommand(final String name, final long nanos) {
+    }
+
+    /**
+     * Буффер Redis клиента.
+     */
+    enum Buffer {
+        READ,
+        WRITE
+    }
+
+}
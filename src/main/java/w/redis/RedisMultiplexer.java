@@ -0,0 +1,555 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.io.EOFException;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Одно подключение к Redis серверу, которым могут одновременно пользоваться несколько потоков.
+ * <p>
+ * Команды потоков попадают в неблокирующую очередь {@link MpscQueue}. Поток, которому удалось стать
+ * "комбайнером", забирает из очереди все команды, записывает их в один буффер и отправляет одним
+ * {@link Redis#flush()}. Ответы читаются отдельно от записи и раздаются в порядке FIFO: для транспорта
+ * {@link Redis.Transport#NIO} их читает {@link RedisEventLoop}, для остальных - отдельный поток на подключение.
+ * <p>
+ * Ни {@link #send(RedisCommand, RedisReply)}, ни {@link #execute(RedisCommand, RedisReply)} не ждут
+ * ответы других потоков, поэтому чем больше потоков, тем больше команд уходит за один раз.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisMultiplexer implements AutoCloseable {
+
+    private static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+    private static final long DRAINER_KEEP_ALIVE_SECONDS = 60;
+
+    private static final RedisReply<Void> SKIP = redis -> {
+        redis.skip();
+        return null;
+    };
+
+    Redis.Config config;
+
+    MpscQueue<Request<?>> submissions;
+
+    AtomicInteger wip;
+
+    int maxBatchSize;
+
+    // отправляет очередь, когда этого нельзя сделать в текущем потоке. Поток создаётся только по
+    // необходимости и завершается после простоя, а запись не попадает в общий пул
+    ExecutorService drainer;
+
+    // меняется только комбайнером
+    @NonFinal
+    volatile Connection connection;
+
+    @NonFinal
+    volatile boolean closed;
+
+    // мультиплексор закроется, как только на все отправленные команды придут ответы
+    @NonFinal
+    volatile boolean shutdown;
+
+    /**
+     * Конструктор мультиплексора.
+     *
+     * @param config Конфиг редис клиента
+     */
+    public RedisMultiplexer(final Redis.Config config) {
+        this(config, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Конструктор мультиплексора.
+     *
+     * @param config       Конфиг редис клиента
+     * @param maxBatchSize Максимальное количество команд, которые будут отправлены за один раз
+     */
+    public RedisMultiplexer(final Redis.Config config, final int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Illegal max batch size: " + maxBatchSize);
+        }
+
+        this.config = config;
+        this.submissions = new MpscQueue<>();
+        this.wip = new AtomicInteger();
+        this.maxBatchSize = maxBatchSize;
+        this.drainer = new ThreadPoolExecutor(0, 1, DRAINER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+            val thread = new Thread(task, "wredis-multiplexer-writer");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Отправить команду, не дожидаясь ответа.
+     * <p>
+     * Команда может быть отправлена вместе с командами других потоков. Результат будет передан в
+     * {@link CompletableFuture} из потока, который читает ответы, поэтому тяжёлые обработчики лучше
+     * вешать через {@code *Async} методы.
+     *
+     * @param command Команда
+     * @param reply   Чтение ответа
+     * @param <T>     Тип результата
+     * @return Результат, который появится, когда придёт ответ
+     */
+    public <T> CompletableFuture<T> send(final RedisCommand command, final RedisReply<T> reply) {
+        val request = offer(command, reply, 0);
+        _drain();
+
+        return request;
+    }
+
+    // поставить команду в очередь, не отправляя её. skipReplies - сколько ответов перед ответом на команду
+    // нужно пропустить, если команда состоит из нескольких, например, ASKING и сама команда
+    <T> CompletableFuture<T> offer(final RedisCommand command, final RedisReply<T> reply, final int skipReplies) {
+        val request = new Request<T>(command, reply, skipReplies);
+
+        if (closed) {
+            request.completeExceptionally(new ClosedException());
+            return request;
+        }
+
+        submissions.offer(request);
+
+        return request;
+    }
+
+    // отправить всё, что накопилось в очереди после offer
+    void drain() {
+        _drain();
+    }
+
+    // отправить очереди нескольких мультиплексоров одновременно: все, кроме последнего, в их собственных
+    // потоках, последний - в текущем
+    static void drainAll(final Collection<RedisMultiplexer> multiplexers) {
+        val iterator = multiplexers.iterator();
+
+        while (iterator.hasNext()) {
+            val multiplexer = iterator.next();
+
+            if (iterator.hasNext()) {
+                multiplexer._drainAsync();
+            } else {
+                multiplexer._drain();
+            }
+        }
+    }
+
+    // отправить команду заново не из потока, который читает ответы: это нужно кластеру после перенаправления
+    // и шардам после удаления сервера. Повторная отправка может подключаться к другому серверу и блокироваться
+    // на записи, поэтому выполняется не в общем пуле, а в своих потоках, которые не держат JVM
+    static void resend(final Runnable send) {
+        Resend.WORKERS.execute(send);
+    }
+
+    /**
+     * Выполнить команду и дождаться ответа.
+     * <p>
+     * Команда может быть отправлена вместе с командами других потоков.
+     *
+     * @param command Команда
+     * @param reply   Чтение ответа
+     * @param <T>     Тип результата
+     * @return Результат
+     */
+    public <T> T execute(final RedisCommand command, final RedisReply<T> reply) {
+        try {
+            return send(command, reply).join();
+        } catch (final CompletionException e) {
+            val cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new Redis.SocketException("Request failed", cause);
+        }
+    }
+
+    private void _drain() {
+        if (!closed && RedisEventLoop.inAnyEventLoop()) {
+            // например, команду отправили из обработчика ответа. Поток цикла событий нельзя блокировать
+            // записью, поэтому отправим из потока мультиплексора
+            _drainAsync();
+            return;
+        }
+
+        _drainHere();
+    }
+
+    private void _drainAsync() {
+        try {
+            drainer.execute(this::_drainHere);
+        } catch (final RejectedExecutionException e) {
+            // мультиплексор уже закрыт, а закрытый комбайнер ничего не пишет и только завершает команды
+            _drainHere();
+        }
+    }
+
+    private void _drainHere() {
+        do {
+            if (!wip.compareAndSet(0, 1)) {
+                // кто-то другой уже комбайнер и он проверит очередь после того, как закончит
+                return;
+            }
+
+            try {
+                _combine();
+            } finally {
+                wip.set(0);
+            }
+        } while (!submissions.isEmpty());
+
+        if (shutdown) {
+            _shutdownIfIdle();
+        }
+    }
+
+    // закрыть мультиплексор, когда на все отправленные команды придут ответы. До этого команды ещё
+    // принимаются, а те, что не успели отправить до закрытия, завершатся с ClosedException
+    void shutdown() {
+        shutdown = true;
+        _shutdownIfIdle();
+    }
+
+    private void _shutdownIfIdle() {
+        if (closed || !wip.compareAndSet(0, 1)) {
+            // комбайнер проверит сам, когда закончит
+            return;
+        }
+
+        try {
+            val connection = this.connection;
+
+            if (submissions.isEmpty() && (connection == null || connection.inflight.isEmpty())) {
+                closed = true;
+                drainer.shutdown();
+
+                if (connection != null) {
+                    connection.fail(new ClosedException());
+                }
+            }
+        } finally {
+            wip.set(0);
+        }
+
+        if (!submissions.isEmpty()) {
+            // команды, которые положили, пока мы держали wip, никто кроме нас не отправит
+            _drain();
+        }
+    }
+
+    private void _combine() {
+        Request<?> request;
+
+        while ((request = submissions.poll()) != null) {
+            if (closed) {
+                request.fail(new ClosedException());
+                continue;
+            }
+
+            Connection connection = this.connection;
+
+            if (connection == null || connection.broken.get()) {
+                try {
+                    this.connection = connection = new Connection(new Redis(config));
+                } catch (final Throwable e) {
+                    // подключиться не вышло, не будем мучать сервер попытками на каждую команду из очереди
+                    request.fail(e);
+
+                    while ((request = submissions.poll()) != null) {
+                        request.fail(e);
+                    }
+
+                    return;
+                }
+            }
+
+            val redis = connection.redis;
+            int count = 0;
+
+            do {
+                val mark = redis.mark();
+
+                try {
+                    request.command.write(redis);
+                } catch (final Throwable e) {
+                    redis.rewind(mark);
+                    request.fail(e);
+
+                    continue;
+                }
+
+                // запрос должен попасть в очередь раньше, чем сервер получит команду
+                connection.inflight.offer(request);
+                count++;
+            } while (count < maxBatchSize && (request = submissions.poll()) != null);
+
+            if (count == 0) {
+                continue;
+            }
+
+            try {
+                redis.flush();
+            } catch (final Throwable e) {
+                connection.fail(e);
+            }
+
+            if (connection.broken.get()) {
+                // подключение сломалось, пока мы писали, и читатель мог не увидеть последние запросы
+                connection.failInflight(new Redis.SocketException("Connection is broken", connection.cause));
+            } else if (closed) {
+                // close мог не увидеть подключение, которое мы только что открыли
+                connection.fail(new IllegalStateException("Redis multiplexer was closed"));
+            }
+        }
+    }
+
+    /**
+     * Закрыть мультиплексор вместе с подключением.
+     * <p>
+     * Команды, ответ на которые ещё не пришёл, завершатся с ошибкой.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        // комбайнера не ждём: он может долго висеть в записи или вызвать close сам из обработчика ответа.
+        // Закрытое подключение разбудит его, а очередь он завершит с ошибкой, когда увидит closed
+        val connection = this.connection;
+
+        if (connection != null) {
+            // эти команды уже отправлены, поэтому повторять их нельзя
+            connection.fail(new IllegalStateException("Redis multiplexer was closed"));
+        }
+
+        // если комбайнера сейчас нет, очередь разберём сами
+        _drain();
+
+        // задачи, которые уже в очереди, ещё выполнятся и завершат свои команды с ошибкой
+        drainer.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisMultiplexer[address=" + config.getAddress() + "]";
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private final class Connection {
+
+        Redis redis;
+
+        Queue<Request<?>> inflight;
+
+        AtomicBoolean broken;
+
+        @NonFinal
+        volatile Throwable cause;
+
+        Connection(final Redis redis) {
+            this.redis = redis;
+            this.inflight = new ConcurrentLinkedQueue<>();
+            this.broken = new AtomicBoolean();
+
+            redis.connect();
+
+            if (!redis.listen(this::_readAvailable)) {
+                val reader = new Thread(this::_readLoop, "wredis-multiplexer-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+
+        private void _readLoop() {
+            try {
+                while (!broken.get()) {
+                    try {
+                        if (redis.fill(true) < 0) {
+                            throw new EOFException("Connection closed by server");
+                        }
+                    } catch (final SocketTimeoutException e) {
+                        if (inflight.isEmpty()) {
+                            // таймаут чтения ограничивает ожидание ответа, а не простой подключения
+                            continue;
+                        }
+
+                        throw e;
+                    }
+
+                    _dispatch();
+                }
+            } catch (final Throwable e) {
+                fail(e);
+            }
+        }
+
+        private void _readAvailable() {
+            try {
+                int count;
+
+                while ((count = redis.fill(false)) > 0) {
+                    _dispatch();
+                }
+
+                if (count < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+            } catch (final Throwable e) {
+                fail(e);
+            }
+        }
+
+        private void _dispatch() {
+            int end;
+
+            while ((end = redis.frameEnd()) != -1) {
+                if (redis.isPushFrame()) {
+                    // push сообщения не являются ответами на запросы
+                    redis.readPushFrame(end);
+                    continue;
+                }
+
+                val request = inflight.peek();
+
+                if (request == null) {
+                    throw new IllegalStateException("Received a reply without a request");
+                }
+
+                if (request.skipReplies > 0) {
+                    request.skipReplies--;
+                    redis.readFrame(end, SKIP);
+
+                    continue;
+                }
+
+                inflight.poll();
+                request.read(redis, end);
+            }
+
+            if (shutdown && inflight.isEmpty()) {
+                _shutdownIfIdle();
+            }
+        }
+
+        void fail(final Throwable cause) {
+            if (!broken.compareAndSet(false, true)) {
+                return;
+            }
+
+            this.cause = cause;
+
+            try {
+                redis.close();
+            } catch (final Throwable ignored) {
+            }
+
+            failInflight(cause);
+        }
+
+        void failInflight(final Throwable cause) {
+            Request<?> request;
+
+            while ((request = inflight.poll()) != null) {
+                request.fail(cause);
+            }
+        }
+
+    }
+
+    private static final class Resend {
+        static final ExecutorService WORKERS = Executors.newCachedThreadPool(task -> {
+            val thread = new Thread(task, "wredis-resend");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Команда не была отправлена, потому что мультиплексор закрыт. Её можно повторить на другом подключении.
+     */
+    static final class ClosedException extends IllegalStateException {
+        ClosedException() {
+            super("Redis multiplexer was closed");
+        }
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private static final class Request<T> extends CompletableFuture<T> {
+
+        RedisCommand command;
+
+        RedisReply<T> reply;
+
+        // меняется только потоком, который читает ответы
+        @NonFinal
+        int skipReplies;
+
+        Request(final RedisCommand command, final RedisReply<T> reply, final int skipReplies) {
+            this.command = command;
+            this.reply = reply;
+            this.skipReplies = skipReplies;
+        }
+
+        void read(final Redis redis, final int end) {
+            final T result;
+
+            try {
+                result = redis.readFrame(end, reply);
+            } catch (final Throwable e) {
+                // readFrame всё равно поставит буффер на следующий ответ
+                completeExceptionally(e);
+                return;
+            }
+
+            complete(result);
+        }
+
+        void fail(final Throwable error) {
+            completeExceptionally(error);
+        }
+
+    }
+
+}
@@ -0,0 +1,687 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Потокобезопасный пул клиентов {@link Redis}.
+ * <p>
+ * Свободные клиенты хранятся в стеке Трайбера, поэтому {@link #borrow()} и {@link #release(Redis)}
+ * не берут блокировку, пока в пуле есть свободные клиенты или место для нового. Общее количество клиентов
+ * ограничено {@link Config#getMaxSize()}. Задача обслуживания снимает со стека и проверяет клиентов по
+ * одному, а если потоку достался только тот, которого она сейчас проверяет, то поток ждёт, пока его вернут.
+ * <p>
+ * Клиент, взятый из пула, принадлежит только одному потоку до тех пор, пока не будет возвращён обратно.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisPool implements AutoCloseable {
+
+    private static final CommandTemplate PING = CommandTemplate.of("PING");
+
+    Redis.Config redisConfig;
+
+    int minSize;
+    int maxSize;
+
+    long idleTimeoutNanos;
+    long validationIntervalNanos;
+    long borrowTimeoutNanos;
+
+    AtomicReference<Node> idle;
+
+    // клиенты, которых уже проверила текущая задача обслуживания. borrow берёт и отсюда, поэтому
+    // во время обслуживания из пула пропадает только один клиент
+    AtomicReference<Node> checked;
+
+    // выданные клиенты, чтобы один и тот же клиент нельзя было вернуть дважды
+    Set<Redis> borrowed;
+
+    AtomicInteger size;
+
+    Semaphore permits;
+
+    ScheduledFuture<?> maintenance;
+
+    AtomicBoolean maintaining;
+
+    // потоки, которые ждут клиента от задачи обслуживания, и монитор, на котором они ждут
+    AtomicInteger waiting;
+
+    Object lock;
+
+    @NonFinal
+    volatile boolean closed;
+
+    /**
+     * Конструктор пула клиентов.
+     *
+     * @param config Конфиг пула
+     */
+    public RedisPool(final Config config) {
+        this.redisConfig = config.getRedisConfig();
+        this.minSize = config.getMinSize();
+        this.maxSize = config.getMaxSize();
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getValidationIntervalMillis());
+        this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getBorrowTimeoutMillis());
+        this.idle = new AtomicReference<>();
+        this.checked = new AtomicReference<>();
+        this.borrowed = ConcurrentHashMap.newKeySet();
+        this.size = new AtomicInteger();
+        this.permits = new Semaphore(config.getMaxSize());
+        this.maintaining = new AtomicBoolean();
+        this.waiting = new AtomicInteger();
+        this.lock = new Object();
+
+        val evictionInterval = config.getEvictionIntervalMillis();
+
+        // общий планировщик только запускает обслуживание, а проверки идут в отдельных потоках,
+        // чтобы медленный Redis сервер одного пула не задерживал остальные
+        this.maintenance = Maintenance.SCHEDULER.scheduleWithFixedDelay(this::_scheduleMaintenance,
+                0, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Получить общее количество клиентов пула, как свободных, так и занятых.
+     *
+     * @return Количество клиентов
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Получить количество клиентов, которые сейчас заняты.
+     *
+     * @return Количество занятых клиентов
+     */
+    public int getBorrowed() {
+        return maxSize - permits.availablePermits();
+    }
+
+    /**
+     * Взять клиента из пула.
+     * <p>
+     * Если свободных клиентов нет и пул заполнен, то поток будет ждать, пока какой-нибудь клиент
+     * не вернётся в пул, но не дольше {@link Config#getBorrowTimeoutMillis()}.
+     * <p>
+     * Клиент обязательно нужно вернуть через {@link #release(Redis)} или {@link #invalidate(Redis)}.
+     *
+     * @return Клиент
+     * @throws PoolTimeoutException Выбрасывается, если не удалось дождаться свободного клиента
+     */
+    public Redis borrow() throws PoolTimeoutException {
+        _ensureOpen();
+
+        val deadline = borrowTimeoutNanos == 0 ? 0 : System.nanoTime() + borrowTimeoutNanos;
+        _acquire();
+
+        try {
+            val redis = _borrow(deadline);
+            borrowed.add(redis);
+
+            return redis;
+        } catch (final RuntimeException e) {
+            permits.release();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Взять клиента из пула, выполнить с ним действие и вернуть его обратно.
+     * <p>
+     * Если действие выбросило исключение, то клиент закрывается, поскольку в его
+     * буфферах могли остаться команды или ответы.
+     *
+     * @param action Действие
+     * @param <T>    Тип результата
+     * @return Результат действия
+     */
+    public <T> T execute(final Function<Redis, T> action) {
+        val redis = borrow();
+
+        final T result;
+
+        try {
+            result = action.apply(redis);
+        } catch (final RuntimeException | Error e) {
+            invalidate(redis);
+
+            throw e;
+        }
+
+        release(redis);
+
+        return result;
+    }
+
+    /**
+     * Вернуть клиента в пул.
+     * <p>
+     * Если в клиенте остались неотправленные команды или непрочитанные ответы, то он будет закрыт.
+     *
+     * @param redis Клиент
+     * @throws IllegalStateException Выбрасывается, если клиент не был взят из этого пула или уже возвращён
+     */
+    public void release(final Redis redis) {
+        _returned(redis);
+
+        try {
+            if (closed || redis.isClosed() || redis.isDirty()) {
+                _destroy(redis);
+            } else {
+                _push(new Node(redis, System.nanoTime()));
+
+                if (closed) {
+                    // пул закрыли, пока мы возвращали клиента
+                    _destroyIdle();
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Закрыть клиента и освободить его место в пуле.
+     * <p>
+     * Используйте этот метод вместо {@link #release(Redis)}, если с подключением что-то не так.
+     *
+     * @param redis Клиент
+     * @throws IllegalStateException Выбрасывается, если клиент не был взят из этого пула или уже возвращён
+     */
+    public void invalidate(final Redis redis) {
+        _returned(redis);
+
+        try {
+            _destroy(redis);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void _returned(final Redis redis) {
+        if (!borrowed.remove(redis)) {
+            // иначе семафор получил бы лишнее разрешение, а клиент попал бы в стек дважды
+            throw new IllegalStateException("Redis client is not borrowed from this pool");
+        }
+    }
+
+    private void _ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Redis pool was closed");
+        }
+    }
+
+    private void _acquire() {
+        try {
+            if (borrowTimeoutNanos == 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new PoolTimeoutException("Timed out waiting for a free connection, pool size is " + maxSize);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new PoolTimeoutException("Interrupted while waiting for a free connection");
+        }
+    }
+
+    private Redis _borrow(final long deadline) {
+        while (true) {
+            val node = _pop();
+
+            if (node != null) {
+                if (System.nanoTime() - node.validated < validationIntervalNanos || _validate(node.redis)) {
+                    return node.redis;
+                }
+
+                _destroy(node.redis);
+                continue;
+            }
+
+            val current = size.get();
+
+            if (current < maxSize) {
+                if (size.compareAndSet(current, current + 1)) {
+                    return new Redis(redisConfig);
+                }
+
+                continue;
+            }
+
+            // свободный клиент прямо сейчас проверяет или подключает задача обслуживания
+            _awaitIdle(deadline);
+        }
+    }
+
+    // подождать, пока задача обслуживания вернёт клиента в пул или закроет его
+    private void _awaitIdle(final long deadline) {
+        // счётчик увеличивается до проверки стеков, а _signal читает его после изменения стека,
+        // поэтому пробуждение не потеряется
+        waiting.incrementAndGet();
+
+        try {
+            synchronized (lock) {
+                while (idle.get() == null && checked.get() == null && size.get() >= maxSize) {
+                    _ensureOpen();
+
+                    if (deadline == 0) {
+                        lock.wait();
+                        continue;
+                    }
+
+                    val remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0) {
+                        throw new PoolTimeoutException("Timed out waiting for a free connection, pool size is "
+                                + maxSize);
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new PoolTimeoutException("Interrupted while waiting for a free connection");
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private void _signal() {
+        if (waiting.get() != 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static boolean _validate(final Redis redis) {
+        try {
+            redis.writeCommand(PING).flushAndRead();
+
+            return "PONG".equals(redis.nextString());
+        } catch (final RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void _destroy(final Redis redis) {
+        size.decrementAndGet();
+        _signal();
+
+        try {
+            redis.close();
+        } catch (final RuntimeException ignored) {
+        }
+    }
+
+    private Node _pop() {
+        val node = _pop(idle);
+
+        return node != null ? node : _pop(checked);
+    }
+
+    private void _push(final Node node) {
+        _push(idle, node);
+        _signal();
+    }
+
+    private static Node _pop(final AtomicReference<Node> stack) {
+        Node head;
+
+        do {
+            if ((head = stack.get()) == null) {
+                return null;
+            }
+        } while (!stack.compareAndSet(head, head.next));
+
+        return head;
+    }
+
+    private static void _push(final AtomicReference<Node> stack, final Node node) {
+        Node head;
+
+        do {
+            node.next = head = stack.get();
+        } while (!stack.compareAndSet(head, node));
+    }
+
+    private void _scheduleMaintenance() {
+        if (!closed && maintaining.compareAndSet(false, true)) {
+            Maintenance.WORKERS.execute(() -> {
+                try {
+                    _maintain();
+                } finally {
+                    maintaining.set(false);
+                }
+            });
+        }
+    }
+
+    private void _maintain() {
+        val now = System.nanoTime();
+
+        // клиенты снимаются со стека по одному: на время PING из пула пропадает только проверяемый,
+        // а остальные borrow найдёт в idle или checked. Ноды не переиспользуются, иначе получим ABA
+        int count = size.get();
+        Node node;
+
+        while (!closed && count-- > 0 && (node = _pop(idle)) != null) {
+            if (now - node.lastUsed >= idleTimeoutNanos && size.get() > minSize) {
+                _destroy(node.redis);
+                continue;
+            }
+
+            if (now - node.validated >= validationIntervalNanos) {
+                if (!_validate(node.redis)) {
+                    _destroy(node.redis);
+                    continue;
+                }
+
+                node = new Node(node.redis, node.lastUsed, System.nanoTime());
+            } else {
+                node = node.copy();
+            }
+
+            _push(checked, node);
+            _signal();
+        }
+
+        // вернуть проверенных обратно тоже по одному: из пула на миг пропадает только перекладываемый
+        while ((node = _pop(checked)) != null) {
+            _push(node.copy());
+        }
+
+        if (closed) {
+            _destroyIdle();
+            return;
+        }
+
+        _fill();
+    }
+
+    private void _fill() {
+        int current;
+
+        while ((current = size.get()) < minSize && !closed) {
+            if (!size.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            val redis = new Redis(redisConfig);
+
+            try {
+                redis.connect();
+            } catch (final RuntimeException e) {
+                // попробуем в следующий раз
+                _destroy(redis);
+                return;
+            }
+
+            _push(new Node(redis, System.nanoTime()));
+        }
+    }
+
+    private void _destroyIdle() {
+        Node node;
+
+        while ((node = _pop()) != null) {
+            _destroy(node.redis);
+        }
+    }
+
+    /**
+     * Закрыть пул и все свободные клиенты.
+     * <p>
+     * Занятые клиенты будут закрыты, когда их вернут в пул.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        maintenance.cancel(false);
+
+        // задача обслуживания может держать одного клиента, его она закроет сама
+        _destroyIdle();
+
+        // потоки, которые ждали клиента, увидят, что пул закрыт
+        _signal();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisPool[address=" + redisConfig.getAddress() + ", size=" + size.get() + "]";
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    private static final class Node {
+        Redis redis;
+        long lastUsed;
+
+        // когда клиента последний раз проверила задача обслуживания
+        long validated;
+
+        @NonFinal
+        Node next;
+
+        Node(final Redis redis, final long lastUsed) {
+            this(redis, lastUsed, lastUsed);
+        }
+
+        Node copy() {
+            return new Node(redis, lastUsed, validated);
+        }
+    }
+
+    private static final class Maintenance {
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+            val thread = new Thread(task, "wredis-pool-scheduler");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        static final ExecutorService WORKERS = Executors.newCachedThreadPool(task -> {
+            val thread = new Thread(task, "wredis-pool-maintenance");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    @Getter
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    public static final class Config {
+        Redis.Config redisConfig;
+        int minSize;
+        int maxSize;
+        long idleTimeoutMillis;
+        long validationIntervalMillis;
+        long evictionIntervalMillis;
+        long borrowTimeoutMillis;
+
+        @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+        @RequiredArgsConstructor
+        public static final class Builder {
+
+            Redis.Config redisConfig;
+
+            @NonFinal
+            int minSize;
+
+            @NonFinal
+            Integer maxSize;
+
+            @NonFinal
+            Long idleTimeout;
+
+            @NonFinal
+            Long validationInterval;
+
+            @NonFinal
+            Long evictionInterval;
+
+            @NonFinal
+            long borrowTimeout;
+
+            /**
+             * Сменить минимальное количество клиентов, которые пул держит открытыми.
+             * <p>
+             * По умолчанию значение равно {@code 0}.
+             *
+             * @param minSize новое минимальное количество клиентов
+             * @return {@code this}
+             */
+            public Builder minSize(final int minSize) {
+                this.minSize = minSize;
+
+                return this;
+            }
+
+            /**
+             * Сменить максимальное количество клиентов пула.
+             * <p>
+             * По умолчанию значение равно {@code 8}.
+             *
+             * @param maxSize новое максимальное количество клиентов
+             * @return {@code this}
+             */
+            public Builder maxSize(final int maxSize) {
+                this.maxSize = maxSize;
+
+                return this;
+            }
+
+            /**
+             * Изменить время, после которого свободный клиент будет закрыт, если клиентов
+             * больше, чем {@link #minSize(int)}.
+             * <p>
+             * По умолчанию время равно {@code 60} секундам.
+             *
+             * @param timeout  время
+             * @param timeUnit единица времени
+             * @return {@code this}
+             */
+            public Builder idleTimeout(final long timeout, final TimeUnit timeUnit) {
+                this.idleTimeout = timeUnit.toMillis(timeout);
+
+                return this;
+            }
+
+            /**
+             * Изменить время простоя, после которого клиент проверяется командой {@code PING}
+             * перед выдачей и во время обслуживания пула.
+             * <p>
+             * По умолчанию время равно {@code 10} секундам.
+             *
+             * @param interval время
+             * @param timeUnit единица времени
+             * @return {@code this}
+             */
+            public Builder validationInterval(final long interval, final TimeUnit timeUnit) {
+                this.validationInterval = timeUnit.toMillis(interval);
+
+                return this;
+            }
+
+            /**
+             * Изменить интервал, с которым пул закрывает простаивающих клиентов и проверяет свободных.
+             * <p>
+             * По умолчанию интервал равен {@code 30} секундам.
+             *
+             * @param interval интервал
+             * @param timeUnit единица времени
+             * @return {@code this}
+             */
+            public Builder evictionInterval(final long interval, final TimeUnit timeUnit) {
+                this.evictionInterval = timeUnit.toMillis(interval);
+
+                return this;
+            }
+
+            /**
+             * Изменить максимальное время ожидания свободного клиента в {@link RedisPool#borrow()}.
+             * <p>
+             * По умолчанию время равно {@code 0}, т.е. ожидание будет вечным.
+             *
+             * @param timeout  время
+             * @param timeUnit единица времени
+             * @return {@code this}
+             */
+            public Builder borrowTimeout(final long timeout, final TimeUnit timeUnit) {
+                this.borrowTimeout = timeUnit.toMillis(timeout);
+
+                return this;
+            }
+
+            public Config build() {
+                val maxSize = this.maxSize == null ? 8 : this.maxSize;
+
+                if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+                    throw new IllegalArgumentException("Illegal pool size: min=" + minSize + ", max=" + maxSize);
+                }
+
+                if (evictionInterval != null && evictionInterval <= 0) {
+                    throw new IllegalArgumentException("Illegal eviction interval: " + evictionInterval);
+                }
+
+                return new Config(
+                        redisConfig,
+                        minSize,
+                        maxSize,
+                        idleTimeout == null ? 60000 : idleTimeout,
+                        validationInterval == null ? 10000 : validationInterval,
+                        evictionInterval == null ? 30000 : evictionInterval,
+                        borrowTimeout
+                );
+            }
+        }
+    }
+
+    public static final class PoolTimeoutException extends Redis.RedisException {
+        public PoolTimeoutException(final String message) {
+            super(message);
+        }
+    }
+
+}
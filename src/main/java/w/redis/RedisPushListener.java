@@ -0,0 +1,51 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+/**
+ * Слушатель push сообщений RESP3, которые Redis сервер присылает между ответами.
+ * <p>
+ * Слушатель вызывается из потока, который читает ответы. Для {@link RedisMultiplexer} это поток чтения
+ * подключения, для {@link Redis} - поток, который вызвал {@link Redis#nextString()} и т.д.
+ *
+ * @author whilein
+ * @see Redis.Config.Builder#pushListener(RedisPushListener)
+ */
+public interface RedisPushListener {
+
+    /**
+     * Прочитать push сообщение.
+     * <p>
+     * Сообщение читается как массив: {@link Redis#nextArray()}, затем его элементы. Если сообщение
+     * не интересно, можно ничего не читать, тогда оно будет пропущено. Если же начали читать, то
+     * сообщение нужно прочитать целиком.
+     *
+     * @param redis Клиент, из которого нужно прочитать сообщение
+     */
+    void onPush(Redis redis);
+
+    /**
+     * Вызывается после каждого нового подключения.
+     * <p>
+     * Сообщения, которые Redis сервер не успел отправить в старое подключение, потеряны.
+     *
+     * @param redis Клиент, который подключился
+     */
+    default void onConnect(final Redis redis) {
+    }
+
+}
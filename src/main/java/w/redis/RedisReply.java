@@ -0,0 +1,40 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+/**
+ * Чтение ответа на одну команду из буффера чтения клиента.
+ * <p>
+ * Пример: {@code Redis::nextString}
+ *
+ * @param <T> Тип результата
+ * @author whilein
+ */
+@FunctionalInterface
+public interface RedisReply<T> {
+
+    /**
+     * Прочитать ответ на команду.
+     * <p>
+     * Метод должен прочитать ответ целиком, иначе следующие ответы будут прочитаны неправильно.
+     *
+     * @param redis Клиент, из которого нужно прочитать ответ
+     * @return Результат
+     */
+    T read(Redis redis);
+
+}
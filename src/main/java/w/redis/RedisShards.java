@@ -0,0 +1,533 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Клиент для нескольких независимых Redis серверов, между которыми ключи распределяются
+ * консистентным хэшированием (ketama).
+ * <p>
+ * Каждый сервер занимает на кольце несколько виртуальных узлов - точек, полученных из MD5 его адреса.
+ * Ключ принадлежит первому узлу, точка которого не меньше MD5 ключа. Поэтому при добавлении или удалении
+ * сервера переезжает только примерно {@code 1/N} ключей, а не почти все, как при делении по модулю.
+ * <p>
+ * На каждый сервер открывается один {@link RedisMultiplexer}, поэтому клиентом могут пользоваться
+ * несколько потоков.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisShards implements AutoCloseable {
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(RedisShards::_md5);
+
+    Redis.Config redisConfig;
+
+    int virtualNodes;
+
+    // меняется только под synchronized, читается без блокировок
+    @NonFinal
+    volatile Ring ring;
+
+    @NonFinal
+    volatile boolean closed;
+
+    /**
+     * Конструктор клиента.
+     *
+     * @param config Конфиг клиента
+     */
+    public RedisShards(final Config config) {
+        this.redisConfig = config.getRedisConfig();
+        this.virtualNodes = config.getVirtualNodes();
+
+        val nodes = new LinkedHashMap<InetSocketAddress, RedisMultiplexer>();
+
+        for (val address : config.getNodes()) {
+            nodes.put(address, new RedisMultiplexer(redisConfig.withAddress(address)));
+        }
+
+        this.ring = new Ring(nodes, virtualNodes);
+    }
+
+    @SneakyThrows
+    private static MessageDigest _md5() {
+        return MessageDigest.getInstance("MD5");
+    }
+
+    private static byte[] _digest(final byte[] bytes) {
+        val md5 = MD5.get();
+        md5.reset();
+
+        return md5.digest(bytes);
+    }
+
+    // ketama берёт из 16 байт MD5 четыре точки по 4 байта в little endian
+    private static long _point(final byte[] digest, final int index) {
+        val offset = index << 2;
+
+        return (digest[offset + 3] & 0xFFL) << 24
+                | (digest[offset + 2] & 0xFFL) << 16
+                | (digest[offset + 1] & 0xFFL) << 8
+                | (digest[offset] & 0xFFL);
+    }
+
+    /**
+     * Посчитать хэш ключа, по которому выбирается сервер.
+     *
+     * @param key Ключ
+     * @return Беззнаковое 32-битное число
+     */
+    public static long hash(final byte[] key) {
+        return _point(_digest(key), 0);
+    }
+
+    /**
+     * Найти сервер, которому принадлежит ключ.
+     *
+     * @param key Ключ, байты которого берутся в UTF-8
+     * @return Адрес сервера
+     */
+    public InetSocketAddress node(final String key) {
+        return ring.address(key);
+    }
+
+    /**
+     * Получить адреса всех серверов.
+     *
+     * @return Адреса серверов в порядке добавления
+     */
+    public List<InetSocketAddress> getNodes() {
+        return Collections.unmodifiableList(Arrays.asList(ring.addresses));
+    }
+
+    /**
+     * Добавить сервер.
+     * <p>
+     * К нему переедет примерно {@code 1/N} ключей с остальных серверов.
+     *
+     * @param address Адрес сервера
+     * @return {@code false}, если сервер уже был добавлен
+     */
+    public synchronized boolean addNode(final InetSocketAddress address) {
+        _ensureOpen();
+
+        val nodes = ring.toMap();
+
+        if (nodes.containsKey(address)) {
+            return false;
+        }
+
+        nodes.put(address, new RedisMultiplexer(redisConfig.withAddress(address)));
+        ring = new Ring(nodes, virtualNodes);
+
+        return true;
+    }
+
+    /**
+     * Удалить сервер и закрыть подключение к нему.
+     * <p>
+     * Его ключи распределятся между остальными серверами, ключи остальных серверов останутся на месте.
+     * Подключение закроется, когда придут ответы на уже отправленные на сервер команды.
+     *
+     * @param address Адрес сервера
+     * @return {@code false}, если такого сервера нет
+     */
+    public synchronized boolean removeNode(final InetSocketAddress address) {
+        _ensureOpen();
+
+        val nodes = ring.toMap();
+
+        if (nodes.size() == 1 && nodes.containsKey(address)) {
+            throw new IllegalStateException("Can't remove the last node");
+        }
+
+        val multiplexer = nodes.remove(address);
+
+        if (multiplexer == null) {
+            return false;
+        }
+
+        ring = new Ring(nodes, virtualNodes);
+        multiplexer.shutdown();
+
+        return true;
+    }
+
+    /**
+     * Отправить команду на сервер, которому принадлежит ключ, не дожидаясь ответа.
+     *
+     * @param key     Ключ, по которому выбирается сервер
+     * @param command Команда
+     * @param reply   Чтение ответа
+     * @param <T>     Тип результата
+     * @return Результат, который появится, когда придёт ответ
+     */
+    public <T> CompletableFuture<T> send(final String key, final RedisCommand command, final RedisReply<T> reply) {
+        val entry = new Entry<T>(key, command, reply, new CompletableFuture<>());
+        entry.send();
+
+        return entry.result;
+    }
+
+    /**
+     * Выполнить команду на сервере, которому принадлежит ключ, и дождаться ответа.
+     *
+     * @param key     Ключ, по которому выбирается сервер
+     * @param command Команда
+     * @param reply   Чтение ответа
+     * @param <T>     Тип результата
+     * @return Результат
+     */
+    public <T> T execute(final String key, final RedisCommand command, final RedisReply<T> reply) {
+        try {
+            return send(key, command, reply).join();
+        } catch (final CompletionException e) {
+            val cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new Redis.SocketException("Request failed", cause);
+        }
+    }
+
+    /**
+     * Создать пайплайн, команды которого будут разделены по серверам и отправлены одновременно.
+     *
+     * @return Новый пайплайн
+     */
+    public Pipeline pipeline() {
+        return new Pipeline();
+    }
+
+    private void _ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Redis shards were closed");
+        }
+    }
+
+    /**
+     * Закрыть клиент вместе со всеми подключениями к серверам.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+
+        for (val multiplexer : ring.multiplexers) {
+            multiplexer.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RedisShards[nodes=" + Arrays.toString(ring.addresses) + "]";
+    }
+
+    /**
+     * Пайплайн команд для разных ключей.
+     * <p>
+     * Команды раскладываются по серверам в порядке добавления, после чего все серверы отправляют свои команды
+     * одновременно. Результаты приходят в том же порядке, в котором команды были добавлены.
+     * <p>
+     * Пайплайн не потокобезопасен.
+     */
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public final class Pipeline {
+
+        List<Entry<?>> entries = new ArrayList<>();
+
+        private Pipeline() {
+        }
+
+        /**
+         * Добавить команду в пайплайн.
+         *
+         * @param key     Ключ, по которому выбирается сервер
+         * @param command Команда
+         * @param reply   Чтение ответа
+         * @param <T>     Тип результата
+         * @return Результат, который появится, когда придёт ответ
+         */
+        public <T> CompletableFuture<T> add(final String key, final RedisCommand command, final RedisReply<T> reply) {
+            val entry = new Entry<T>(key, command, reply, new CompletableFuture<>());
+            entries.add(entry);
+
+            return entry.result;
+        }
+
+        /**
+         * Отправить все добавленные команды.
+         * <p>
+         * После этого пайплайн пуст, и его можно использовать снова.
+         *
+         * @return Результаты всех команд в порядке добавления
+         */
+        public CompletableFuture<List<Object>> execute() {
+            val entries = new ArrayList<>(this.entries);
+            this.entries.clear();
+
+            val ring = RedisShards.this.ring;
+            val targets = new LinkedHashSet<RedisMultiplexer>();
+
+            for (val entry : entries) {
+                val multiplexer = ring.multiplexers[ring.index(entry.key)];
+                entry.offer(multiplexer);
+
+                targets.add(multiplexer);
+            }
+
+            RedisMultiplexer.drainAll(targets);
+
+            val results = new CompletableFuture<?>[entries.size()];
+
+            for (int i = 0; i < results.length; i++) {
+                results[i] = entries.get(i).result;
+            }
+
+            return CompletableFuture.allOf(results).thenApply(ignored -> {
+                val values = new ArrayList<Object>(results.length);
+
+                for (val result : results) {
+                    values.add(result.join());
+                }
+
+                return Collections.unmodifiableList(values);
+            });
+        }
+
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    private final class Entry<T> {
+
+        String key;
+
+        RedisCommand command;
+
+        RedisReply<T> reply;
+
+        CompletableFuture<T> result;
+
+        void offer(final RedisMultiplexer multiplexer) {
+            multiplexer.offer(command, reply, 0).whenComplete((value, error) -> {
+                if (error instanceof RedisMultiplexer.ClosedException && !closed) {
+                    // сервер удалили, пока команда ждала отправки, теперь ключ принадлежит другому
+                    _resend();
+                } else if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        }
+
+        void send() {
+            val ring = RedisShards.this.ring;
+            val multiplexer = ring.multiplexers[ring.index(key)];
+
+            offer(multiplexer);
+            multiplexer.drain();
+        }
+
+        private void _resend() {
+            RedisMultiplexer.resend(this::send);
+        }
+
+    }
+
+    // неизменяемое кольцо, при добавлении или удалении сервера строится новое
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    static final class Ring {
+
+        InetSocketAddress[] addresses;
+
+        RedisMultiplexer[] multiplexers;
+
+        // отсортированные точки кольца и номера серверов, которым они принадлежат
+        long[] points;
+
+        int[] owners;
+
+        Ring(final Map<InetSocketAddress, RedisMultiplexer> nodes, final int virtualNodes) {
+            val size = nodes.size();
+
+            this.addresses = nodes.keySet().toArray(new InetSocketAddress[0]);
+            this.multiplexers = nodes.values().toArray(new RedisMultiplexer[0]);
+
+            // точка и номер сервера в одном long, чтобы отсортировать их вместе
+            val packed = new long[size * virtualNodes];
+            int count = 0;
+
+            for (int node = 0; node < size; node++) {
+                val address = addresses[node];
+                val name = address.getHostString() + ":" + address.getPort();
+
+                for (int i = 0; i < virtualNodes; i += 4) {
+                    val digest = _digest((name + "-" + (i >> 2)).getBytes(StandardCharsets.UTF_8));
+
+                    for (int j = 0; j < 4 && i + j < virtualNodes; j++) {
+                        packed[count++] = _point(digest, j) << 31 | node;
+                    }
+                }
+            }
+
+            Arrays.sort(packed);
+
+            this.points = new long[count];
+            this.owners = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                points[i] = packed[i] >>> 31;
+                owners[i] = (int) (packed[i] & Integer.MAX_VALUE);
+            }
+        }
+
+        InetSocketAddress address(final String key) {
+            return addresses[index(key)];
+        }
+
+        int index(final String key) {
+            return index(hash(key.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        int index(final long hash) {
+            int position = Arrays.binarySearch(points, hash);
+
+            if (position < 0) {
+                position = -position - 1;
+
+                // после последней точки кольцо замыкается на первую
+                if (position == points.length) {
+                    position = 0;
+                }
+            }
+
+            return owners[position];
+        }
+
+        Map<InetSocketAddress, RedisMultiplexer> toMap() {
+            val map = new LinkedHashMap<InetSocketAddress, RedisMultiplexer>();
+
+            for (int i = 0; i < addresses.length; i++) {
+                map.put(addresses[i], multiplexers[i]);
+            }
+
+            return map;
+        }
+
+    }
+
+    @Getter
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    public static final class Config {
+        Redis.Config redisConfig;
+        List<InetSocketAddress> nodes;
+        int virtualNodes;
+
+        @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+        public static final class Builder {
+
+            Redis.Config redisConfig;
+
+            List<InetSocketAddress> nodes;
+
+            @NonFinal
+            Integer virtualNodes;
+
+            /**
+             * Конструктор билдера.
+             *
+             * @param redisConfig Конфиг, по которому создаются подключения к серверам. Адрес из него
+             *                    не используется
+             */
+            public Builder(final Redis.Config redisConfig) {
+                this.redisConfig = redisConfig;
+                this.nodes = new ArrayList<>();
+            }
+
+            /**
+             * Добавить сервер.
+             *
+             * @param address адрес сервера
+             * @return {@code this}
+             */
+            public Builder node(final InetSocketAddress address) {
+                this.nodes.add(address);
+
+                return this;
+            }
+
+            /**
+             * Изменить количество виртуальных узлов на один сервер.
+             * <p>
+             * Чем их больше, тем равномернее распределяются ключи, но тем больше памяти занимает кольцо.
+             * По умолчанию значение равно {@code 160}, как в libketama.
+             *
+             * @param virtualNodes новое количество виртуальных узлов
+             * @return {@code this}
+             */
+            public Builder virtualNodes(final int virtualNodes) {
+                this.virtualNodes = virtualNodes;
+
+                return this;
+            }
+
+            public Config build() {
+                if (nodes.isEmpty()) {
+                    throw new IllegalArgumentException("No nodes were specified");
+                }
+
+                if (virtualNodes != null && virtualNodes < 1) {
+                    throw new IllegalArgumentException("Illegal virtual nodes: " + virtualNodes);
+                }
+
+                return new Config(
+                        redisConfig,
+                        Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes))),
+                        virtualNodes == null ? 160 : virtualNodes
+                );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики, которые собираются в памяти приложения.
+ * <p>
+ * Задержки хранятся в {@link LatencyHistogram} отдельно для каждой команды, остальное - в счётчиках и гистограммах
+ * на все клиенты, у которых этот экземпляр указан в {@link Redis.Config.Builder#metrics(RedisMetrics)}.
+ *
+ * @author whilein
+ */
+@Getter
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisStatistics implements RedisMetrics {
+
+    /**
+     * Время подключения в наносекундах.
+     */
+    LatencyHistogram connectTime = new LatencyHistogram();
+
+    /**
+     * Время авторизации в наносекундах.
+     */
+    LatencyHistogram authTime = new LatencyHistogram();
+
+    /**
+     * Количество команд, отправленных за раз.
+     */
+    LatencyHistogram pipelineDepth = new LatencyHistogram();
+
+    /**
+     * Количество байтов, отправленных за раз.
+     */
+    LatencyHistogram flushBytes = new LatencyHistogram();
+
+    /**
+     * Количество байтов, прочитанных за раз.
+     */
+    LatencyHistogram readBytes = new LatencyHistogram();
+
+    @Getter(AccessLevel.NONE)
+    Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+
+    @Getter(AccessLevel.NONE)
+    LongAdder flushCount = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    LongAdder readCount = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    LongAdder bytesWritten = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    LongAdder bytesRead = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    LongAdder resizeCount = new LongAdder();
+
+    @Override
+    public void onConnect(final InetSocketAddress address, final long nanos) {
+        connectTime.record(nanos);
+    }
+
+    @Override
+    public void onAuth(final InetSocketAddress address, final long nanos) {
+        authTime.record(nanos);
+    }
+
+    @Override
+    public void onFlush(final int commands, final long bytes) {
+        flushCount.increment();
+        bytesWritten.add(bytes);
+
+        pipelineDepth.record(commands);
+        flushBytes.record(bytes);
+    }
+
+    @Override
+    public void onRead(final int bytes) {
+        readCount.increment();
+        bytesRead.add(bytes);
+
+        readBytes.record(bytes);
+    }
+
+    @Override
+    public void onResize(final Buffer buffer, final int oldCapacity, final int newCapacity) {
+        resizeCount.increment();
+    }
+
+    @Override
+    public void onCommand(final String name, final long nanos) {
+        LatencyHistogram histogram = commands.get(name);
+
+        if (histogram == null) {
+            histogram = commands.computeIfAbsent(name, key -> new LatencyHistogram());
+        }
+
+        histogram.record(nanos);
+    }
+
+    /**
+     * Получить задержки команды в наносекундах.
+     * <p>
+     * Команды пайплайна, прочитанного через {@link Redis#flushAndRead()}, получают задержку всего пайплайна
+     * до первых байтов ответа, см. {@link RedisMetrics#onCommand(String, long)}.
+     *
+     * @param name Название команды, как оно было передано в {@link Redis#writeCommand(String, int)}
+     * @return Гистограмма или {@code null}, если команда ещё не выполнялась
+     */
+    public LatencyHistogram getCommandLatency(final String name) {
+        return commands.get(name);
+    }
+
+    /**
+     * Получить задержки всех выполненных команд в наносекундах.
+     *
+     * @return Неизменяемая карта гистограмм по названию команды
+     */
+    public Map<String, LatencyHistogram> getCommandLatencies() {
+        return Collections.unmodifiableMap(commands);
+    }
+
+    /**
+     * Получить количество отправок буффера записи.
+     *
+     * @return Количество отправок
+     */
+    public long getFlushCount() {
+        return flushCount.sum();
+    }
+
+    /**
+     * Получить количество чтений из подключения.
+     *
+     * @return Количество чтений
+     */
+    public long getReadCount() {
+        return readCount.sum();
+    }
+
+    /**
+     * Получить общее количество отправленных байтов.
+     *
+     * @return Количество байтов
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Получить общее количество прочитанных байтов.
+     *
+     * @return Количество байтов
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Получить количество увеличений буфферов чтения и записи.
+     *
+     * @return Количество увеличений
+     */
+    public long getResizeCount() {
+        return resizeCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisStatistics[flushes=" + getFlushCount()
+                + ", reads=" + getReadCount()
+                + ", bytesWritten=" + getBytesWritten()
+                + ", bytesRead=" + getBytesRead()
+                + ", resizes=" + getResizeCount()
+                + ", commands=" + commands + "]";
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+/**
+ * Кэш строк, которые часто повторяются в ответах: {@code OK}, {@code QUEUED}, статусы, коды стран и т.д.
+ * <p>
+ * Если кэш указан в конфиге клиента, {@link Redis#nextString()} для коротких ответов ищет в нём строку
+ * с теми же байтами прямо по буфферу чтения и возвращает уже созданный экземпляр, не выделяя память.
+ * <pre>{@code
+ * RedisStringCache strings = new RedisStringCache(4096, 32);
+ *
+ * Redis redis = new Redis(new Redis.Config.Builder(address)
+ *         .stringCache(strings)
+ *         .build());
+ * }</pre>
+ * Кэш устроен как таблица фиксированного размера без цепочек: строка, попавшая в занятую ячейку,
+ * вытесняет старую. Поэтому он не растёт и не требует блокировок, и один кэш можно указать в конфиге
+ * нескольких клиентов, например, всех подключений {@link RedisPool}.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisStringCache {
+
+    Entry[] entries;
+
+    int mask;
+
+    /**
+     * Максимальная длина строки в байтах, которая попадает в кэш.
+     */
+    @Getter
+    int maxLength;
+
+    /**
+     * Конструктор кэша.
+     *
+     * @param size      Количество ячеек, округляется вверх до степени двойки
+     * @param maxLength Максимальная длина строки в байтах, более длинные строки не кэшируются
+     */
+    public RedisStringCache(final int size, final int maxLength) {
+        if (size < 1 || size > 1 << 30) {
+            throw new IllegalArgumentException("Illegal size: " + size);
+        }
+
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("Illegal max length: " + maxLength);
+        }
+
+        val capacity = size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+
+        this.entries = new Entry[capacity];
+        this.mask = capacity - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Получить строку с теми же байтами, что и у участка.
+     * <p>
+     * Если такая строка уже есть в кэше, возвращается она, иначе создаётся новая и запоминается.
+     *
+     * @param slice Участок, байты которого прочитаются как UTF-8
+     * @return Строка
+     */
+    public String intern(final ByteSlice slice) {
+        if (slice.length() > maxLength) {
+            return slice.toString();
+        }
+
+        val hash = _spread(slice.hashCode());
+        val index = hash & mask;
+
+        // ячейки меняются целиком, поэтому гонка между клиентами даст в худшем случае промах
+        val entry = entries[index];
+
+        if (entry != null && entry.hash == hash && slice.contentEquals(entry.bytes)) {
+            return entry.value;
+        }
+
+        val value = slice.toString();
+        entries[index] = new Entry(slice.toByteArray(), value, hash);
+
+        return value;
+    }
+
+    /**
+     * Очистить кэш.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = null;
+        }
+    }
+
+    private static int _spread(final int hash) {
+        // хэш участка плохо перемешивает младшие биты коротких строк
+        return hash ^ hash >>> 16;
+    }
+
+    @Override
+    public String toString() {
+        return "RedisStringCache[size=" + entries.length + ", maxLength=" + maxLength + "]";
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @RequiredArgsConstructor
+    private static final class Entry {
+
+        byte[] bytes;
+
+        String value;
+
+        int hash;
+
+    }
+
+}
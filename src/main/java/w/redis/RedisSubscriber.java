@@ -0,0 +1,336 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.io.EOFException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Подписчик на каналы Redis сервера.
+ * <p>
+ * У подписчика своё подключение и свой поток, который постоянно читает сообщения и передаёт их в
+ * {@link RedisMessageListener}. Сообщения не превращаются в строки: слушатель получает участки буффера чтения,
+ * поэтому на одно сообщение не создаётся ни одного объекта.
+ * <p>
+ * Подписываться и отписываться можно из любого потока в любой момент. Если подключение оборвётся,
+ * подписчик подключится заново и восстановит все подписки.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RedisSubscriber implements AutoCloseable {
+
+    private static final long RECONNECT_DELAY = TimeUnit.SECONDS.toNanos(1);
+
+    private static final byte[] MESSAGE = "message".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PMESSAGE = "pmessage".getBytes(StandardCharsets.US_ASCII);
+
+    Redis redis;
+
+    RedisMessageListener listener;
+
+    // подписки, которые нужно восстановить после переподключения
+    Set<String> channels;
+    Set<String> patterns;
+
+    // запись команд и переподключение
+    Object lock;
+
+    Thread reader;
+
+    @NonFinal
+    volatile boolean closed;
+
+    /**
+     * Конструктор подписчика.
+     * <p>
+     * Подписчик сразу подключается к Redis серверу и запускает поток чтения.
+     *
+     * @param config   Конфиг редис клиента
+     * @param listener Слушатель сообщений
+     * @throws Redis.SocketException Выбрасывается, если доступа к Redis серверу нет
+     * @throws Redis.AuthException   Выбрасывается, если не удалось авторизоваться с Redis сервером
+     */
+    public RedisSubscriber(final Redis.Config config, final RedisMessageListener listener) {
+        this(new Redis(config), listener);
+    }
+
+    RedisSubscriber(final Redis redis, final RedisMessageListener listener) {
+        this.redis = redis;
+        this.listener = listener;
+        this.channels = ConcurrentHashMap.newKeySet();
+        this.patterns = ConcurrentHashMap.newKeySet();
+        this.lock = new Object();
+
+        redis.connect();
+
+        this.reader = new Thread(this::_readLoop, "wredis-subscriber");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Подписаться на каналы.
+     *
+     * @param channels Каналы
+     */
+    public void subscribe(final String... channels) {
+        _update("SUBSCRIBE", channels, this.channels, true);
+    }
+
+    /**
+     * Отписаться от каналов.
+     *
+     * @param channels Каналы, если их нет, то подписчик отпишется от всех каналов
+     */
+    public void unsubscribe(final String... channels) {
+        _update("UNSUBSCRIBE", channels, this.channels, false);
+    }
+
+    /**
+     * Подписаться на каналы по шаблонам, например, {@code news.*}.
+     *
+     * @param patterns Шаблоны
+     */
+    public void psubscribe(final String... patterns) {
+        _update("PSUBSCRIBE", patterns, this.patterns, true);
+    }
+
+    /**
+     * Отписаться от шаблонов.
+     *
+     * @param patterns Шаблоны, если их нет, то подписчик отпишется от всех шаблонов
+     */
+    public void punsubscribe(final String... patterns) {
+        _update("PUNSUBSCRIBE", patterns, this.patterns, false);
+    }
+
+    /**
+     * Получить каналы, на которые подписан подписчик.
+     *
+     * @return Неизменяемое множество каналов
+     */
+    public Set<String> getChannels() {
+        return Collections.unmodifiableSet(channels);
+    }
+
+    /**
+     * Получить шаблоны, на которые подписан подписчик.
+     *
+     * @return Неизменяемое множество шаблонов
+     */
+    public Set<String> getPatterns() {
+        return Collections.unmodifiableSet(patterns);
+    }
+
+    private void _update(
+            final String command,
+            final String[] names,
+            final Set<String> subscriptions,
+            final boolean subscribe
+    ) {
+        if (subscribe && names.length == 0) {
+            throw new IllegalArgumentException("Nothing to subscribe to");
+        }
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Redis subscriber was closed");
+            }
+
+            if (subscribe) {
+                Collections.addAll(subscriptions, names);
+            } else if (names.length == 0) {
+                subscriptions.clear();
+            } else {
+                for (val name : names) {
+                    subscriptions.remove(name);
+                }
+            }
+
+            if (!redis.isConnected()) {
+                // поток чтения сейчас переподключается и отправит все подписки сам
+                return;
+            }
+
+            _write(command, names);
+            redis.flush();
+        }
+    }
+
+    private void _write(final String command, final String[] names) {
+        redis.writeCommand(command, names.length);
+
+        for (val name : names) {
+            redis.writeUTF(name);
+        }
+    }
+
+    private void _readLoop() {
+        while (!closed) {
+            try {
+                if (redis.fill(true) < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+
+                int end;
+
+                while ((end = redis.frameEnd()) != -1) {
+                    redis.readFrame(end, this::_dispatch);
+                }
+            } catch (final SocketTimeoutException e) {
+                // сообщений может не быть сколько угодно долго, таймаут чтения тут не означает обрыв
+            } catch (final Throwable e) {
+                if (closed) {
+                    return;
+                }
+
+                _error(e);
+                _reconnect();
+            }
+        }
+    }
+
+    private void _reconnect() {
+        while (!closed) {
+            try {
+                synchronized (lock) {
+                    redis.disconnect();
+                    redis.connect();
+
+                    if (!channels.isEmpty()) {
+                        _write("SUBSCRIBE", channels.toArray(new String[0]));
+                    }
+
+                    if (!patterns.isEmpty()) {
+                        _write("PSUBSCRIBE", patterns.toArray(new String[0]));
+                    }
+
+                    redis.flush();
+                }
+
+                return;
+            } catch (final Throwable e) {
+                _error(e);
+
+                LockSupport.parkNanos(RECONNECT_DELAY);
+            }
+        }
+    }
+
+    private static boolean _equals(final byte[] array, final int offset, final int length, final byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (array[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Void _dispatch(final Redis redis) {
+        if (redis.isError()) {
+            _error(new IllegalStateException("Redis server replied with error: " + redis.nextString()));
+            return null;
+        }
+
+        val array = redis.frameArray();
+        val size = redis.nextArray();
+
+        if (size < 1) {
+            return null;
+        }
+
+        val kindLength = redis.nextBulkSlice();
+        val kindOffset = redis.sliceOffset();
+
+        if (size == 3 && _equals(array, kindOffset, kindLength, MESSAGE)) {
+            val channelLength = redis.nextBulkSlice();
+            val channelOffset = redis.sliceOffset();
+
+            val length = redis.nextBulkSlice();
+            val offset = redis.sliceOffset();
+
+            try {
+                listener.onMessage(array, channelOffset, channelLength, offset, length);
+            } catch (final Throwable e) {
+                _error(e);
+            }
+        } else if (size == 4 && _equals(array, kindOffset, kindLength, PMESSAGE)) {
+            val patternLength = redis.nextBulkSlice();
+            val patternOffset = redis.sliceOffset();
+
+            val channelLength = redis.nextBulkSlice();
+            val channelOffset = redis.sliceOffset();
+
+            val length = redis.nextBulkSlice();
+            val offset = redis.sliceOffset();
+
+            try {
+                listener.onPatternMessage(array, patternOffset, patternLength,
+                        channelOffset, channelLength, offset, length);
+            } catch (final Throwable e) {
+                _error(e);
+            }
+        } else {
+            // подтверждения подписок и отписок
+            redis.skip(size - 1);
+        }
+
+        return null;
+    }
+
+    private void _error(final Throwable cause) {
+        try {
+            listener.onError(cause);
+        } catch (final Throwable ignored) {
+        }
+    }
+
+    /**
+     * Закрыть подписчика вместе с подключением.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+
+            redis.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RedisSubscriber[channels=" + channels + ", patterns=" + patterns + "]";
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Транспорт, через который {@link Redis} отправляет и получает байты.
+ *
+ * @author whilein
+ */
+interface RedisTransport {
+
+    /**
+     * Размер массива, через который транспорт, работающий с массивами, копирует буфферы вне кучи.
+     */
+    int SCRATCH_SIZE = 8192;
+
+    /**
+     * Проверить, открыто ли подключение.
+     *
+     * @return {@code true}, если подключение открыто
+     */
+    boolean isConnected();
+
+    /**
+     * Открыть новое подключение к Redis серверу.
+     *
+     * @throws IOException Выбрасывается, если не удалось подключиться
+     */
+    void connect() throws IOException;
+
+    /**
+     * Записать байты в подключение целиком.
+     *
+     * @param array  Массив байтов
+     * @param offset Сдвиг в массиве
+     * @param length Количество байтов
+     * @throws IOException Выбрасывается, если не удалось записать байты
+     */
+    void write(byte[] array, int offset, int length) throws IOException;
+
+    /**
+     * Записать оставшиеся байты буффера в подключение целиком.
+     * <p>
+     * Буффер может находиться вне кучи, тогда транспорт, работающий с массивами, скопирует его по частям.
+     *
+     * @param buffer Буффер, позиция которого сдвинется до {@link ByteBuffer#limit()}
+     * @throws IOException Выбрасывается, если не удалось записать байты
+     */
+    default void write(final ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+
+            return;
+        }
+
+        val chunk = writeScratch();
+
+        while (buffer.hasRemaining()) {
+            val count = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, count);
+
+            write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Записать оставшиеся байты буффера {@code header}, а следом за ними оставшиеся байты {@code payload}.
+     * <p>
+     * Транспорт может отправить их одной записью, не копируя байты буфферов.
+     *
+     * @param header  Первый буффер
+     * @param payload Второй буффер
+     * @throws IOException Выбрасывается, если не удалось записать байты
+     */
+    default void write(final ByteBuffer header, final ByteBuffer payload) throws IOException {
+        write(header);
+        write(payload);
+    }
+
+    /**
+     * Записать часть файла в подключение.
+     * <p>
+     * Транспорт может отправить её, не копируя байты файла в память приложения.
+     *
+     * @param file     Файл
+     * @param position Позиция в файле
+     * @param count    Количество байтов
+     * @throws IOException Выбрасывается, если не удалось записать байты или файл оказался короче
+     */
+    default void transfer(final FileChannel file, long position, long count) throws IOException {
+        val chunk = ByteBuffer.wrap(writeScratch());
+
+        while (count > 0) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), count));
+
+            val read = file.read(chunk, position);
+
+            if (read < 0) {
+                throw new EOFException("File ended at " + position + ", " + count + " bytes left");
+            }
+
+            write(chunk.array(), 0, read);
+
+            position += read;
+            count -= read;
+        }
+    }
+
+    /**
+     * Прочитать байты из подключения.
+     * <p>
+     * Метод ждёт, пока не будет прочитан хотя бы один байт.
+     *
+     * @param array  Массив байтов
+     * @param offset Сдвиг в массиве
+     * @param length Максимальное количество байтов
+     * @return Количество прочитанных байтов или {@code -1}, если подключение было закрыто
+     * @throws IOException Выбрасывается, если не удалось прочитать байты
+     */
+    int read(byte[] array, int offset, int length) throws IOException;
+
+    /**
+     * Прочитать байты из подключения в буффер, начиная с его позиции.
+     * <p>
+     * Метод ждёт, пока не будет прочитан хотя бы один байт.
+     *
+     * @param buffer Буффер, позиция которого сдвинется на количество прочитанных байтов
+     * @return Количество прочитанных байтов или {@code -1}, если подключение было закрыто
+     * @throws IOException Выбрасывается, если не удалось прочитать байты
+     */
+    default int read(final ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            val count = read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+            if (count > 0) {
+                buffer.position(buffer.position() + count);
+            }
+
+            return count;
+        }
+
+        val chunk = readScratch();
+        val count = read(chunk, 0, Math.min(buffer.remaining(), chunk.length));
+
+        if (count > 0) {
+            buffer.put(chunk, 0, count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Прочитать байты, которые уже пришли, не дожидаясь новых.
+     * <p>
+     * Поддерживается только транспортами, у которых {@link #listen(Runnable)} возвращает {@code true}.
+     *
+     * @param array  Массив байтов
+     * @param offset Сдвиг в массиве
+     * @param length Максимальное количество байтов
+     * @return Количество прочитанных байтов, {@code 0}, если данных нет, или {@code -1}, если подключение было закрыто
+     * @throws IOException Выбрасывается, если не удалось прочитать байты
+     */
+    default int readNow(final byte[] array, final int offset, final int length) throws IOException {
+        throw new UnsupportedOperationException("Transport " + getClass().getSimpleName() + " can't read without blocking");
+    }
+
+    /**
+     * Прочитать в буффер байты, которые уже пришли, не дожидаясь новых.
+     *
+     * @param buffer Буффер, позиция которого сдвинется на количество прочитанных байтов
+     * @return Количество прочитанных байтов, {@code 0}, если данных нет, или {@code -1}, если подключение было закрыто
+     * @throws IOException Выбрасывается, если не удалось прочитать байты
+     * @see #readNow(byte[], int, int)
+     */
+    default int readNow(final ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            val count = readNow(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+            if (count > 0) {
+                buffer.position(buffer.position() + count);
+            }
+
+            return count;
+        }
+
+        val chunk = readScratch();
+        val count = readNow(chunk, 0, Math.min(buffer.remaining(), chunk.length));
+
+        if (count > 0) {
+            buffer.put(chunk, 0, count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Начать уведомлять о том, что в подключении появились данные для {@link #readNow(byte[], int, int)}.
+     * <p>
+     * Уведомления приходят в отдельном потоке, поэтому после вызова этого метода нельзя
+     * использовать {@link #read(byte[], int, int)}.
+     *
+     * @param listener Слушатель, вызывается каждый раз, когда появляются данные
+     * @return {@code false}, если транспорт так не умеет, и читать нужно в отдельном потоке
+     */
+    default boolean listen(final Runnable listener) {
+        return false;
+    }
+
+    /**
+     * Получить массив, через который {@link #read(ByteBuffer)} копирует прочитанные байты в буффер вне кучи.
+     * <p>
+     * Чтение и запись могут идти в разных потоках, поэтому массивы для них должны быть разными. Транспорту
+     * стоит хранить массив у себя, чтобы не выделять его на каждое чтение.
+     *
+     * @return Массив длиной не меньше {@code 1}
+     */
+    default byte[] readScratch() {
+        return new byte[SCRATCH_SIZE];
+    }
+
+    /**
+     * Получить массив, через который {@link #write(ByteBuffer)} и {@link #transfer(FileChannel, long, long)}
+     * копируют байты перед записью.
+     *
+     * @return Массив длиной не меньше {@code 1}
+     * @see #readScratch()
+     */
+    default byte[] writeScratch() {
+        return new byte[SCRATCH_SIZE];
+    }
+
+    /**
+     * Закрыть подключение.
+     * <p>
+     * После закрытия можно открыть новое подключение через {@link #connect()}.
+     *
+     * @throws IOException Выбрасывается, если не удалось закрыть подключение
+     */
+    void close() throws IOException;
+
+}
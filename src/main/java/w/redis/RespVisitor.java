@@ -0,0 +1,174 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+/**
+ * Обработчик ответа, который {@link Redis#nextReply(RespVisitor)} вызывает для каждого элемента.
+ * <p>
+ * Так ответ любой формы, в том числе с вложенными массивами и картами, можно разобрать за один проход
+ * без промежуточных {@link String} и {@code byte[]}. Строки передаются участком массива, который
+ * можно использовать только внутри вызова: после него те же байты могут быть перезаписаны.
+ * <p>
+ * Все методы по умолчанию ничего не делают.
+ *
+ * @author whilein
+ */
+public interface RespVisitor {
+
+    /**
+     * Начало массива. После него идут {@code length} элементов и {@link #onArrayEnd()}.
+     *
+     * @param length Количество элементов
+     */
+    default void onArrayStart(final int length) {
+    }
+
+    /**
+     * Конец массива.
+     */
+    default void onArrayEnd() {
+    }
+
+    /**
+     * Начало карты RESP3. После него идут {@code length} пар ключей и значений и {@link #onMapEnd()}.
+     *
+     * @param length Количество пар
+     */
+    default void onMapStart(final int length) {
+    }
+
+    /**
+     * Конец карты RESP3.
+     */
+    default void onMapEnd() {
+    }
+
+    /**
+     * Начало множества RESP3. По умолчанию считается массивом.
+     *
+     * @param length Количество элементов
+     */
+    default void onSetStart(final int length) {
+        onArrayStart(length);
+    }
+
+    /**
+     * Конец множества RESP3. По умолчанию считается концом массива.
+     */
+    default void onSetEnd() {
+        onArrayEnd();
+    }
+
+    /**
+     * Начало push сообщения RESP3. По умолчанию считается массивом.
+     *
+     * @param length Количество элементов
+     */
+    default void onPushStart(final int length) {
+        onArrayStart(length);
+    }
+
+    /**
+     * Конец push сообщения RESP3. По умолчанию считается концом массива.
+     */
+    default void onPushEnd() {
+        onArrayEnd();
+    }
+
+    /**
+     * Строка с известной длиной ({@code $}).
+     *
+     * @param buffer Массив, в котором лежит строка
+     * @param offset Начало строки
+     * @param length Длина строки
+     */
+    default void onBulk(final byte[] buffer, final int offset, final int length) {
+    }
+
+    /**
+     * Verbatim строка RESP3 ({@code =}). По умолчанию текст без формата передаётся в {@link #onBulk}.
+     *
+     * @param buffer       Массив, в котором лежит строка
+     * @param formatOffset Начало формата из трёх символов, например, {@code txt}
+     * @param offset       Начало текста
+     * @param length       Длина текста
+     */
+    default void onVerbatim(final byte[] buffer, final int formatOffset, final int offset, final int length) {
+        onBulk(buffer, offset, length);
+    }
+
+    /**
+     * Простая строка ({@code +}).
+     *
+     * @param buffer Массив, в котором лежит строка
+     * @param offset Начало строки
+     * @param length Длина строки
+     */
+    default void onSimple(final byte[] buffer, final int offset, final int length) {
+    }
+
+    /**
+     * Ошибка ({@code -} или {@code !} из RESP3).
+     *
+     * @param buffer Массив, в котором лежит текст ошибки
+     * @param offset Начало текста
+     * @param length Длина текста
+     */
+    default void onError(final byte[] buffer, final int offset, final int length) {
+    }
+
+    /**
+     * Целое число ({@code :}).
+     *
+     * @param value Число
+     */
+    default void onInteger(final long value) {
+    }
+
+    /**
+     * Число с плавающей точкой RESP3 ({@code ,}).
+     *
+     * @param value Число
+     */
+    default void onDouble(final double value) {
+    }
+
+    /**
+     * Логическое значение RESP3 ({@code #}).
+     *
+     * @param value Значение
+     */
+    default void onBoolean(final boolean value) {
+    }
+
+    /**
+     * Целое число произвольной длины RESP3 ({@code (}).
+     *
+     * @param buffer Массив, в котором лежат цифры числа
+     * @param offset Начало числа
+     * @param length Длина числа
+     */
+    default void onBigNumber(final byte[] buffer, final int offset, final int length) {
+    }
+
+    /**
+     * Пустое значение: {@code $-1}, {@code *-1} или {@code _} из RESP3.
+     */
+    default void onNull() {
+    }
+
+}
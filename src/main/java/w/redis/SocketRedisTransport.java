@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Блокирующий транспорт на основе {@link Socket}.
+ *
+ * @author whilein
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+final class SocketRedisTransport implements RedisTransport {
+
+    InetSocketAddress address;
+
+    int soSndBuf;
+    int soRcvBuf;
+
+    long timeout;
+
+    long readTimeout;
+
+    boolean tcpNoDelay;
+
+    @NonFinal
+    Socket socket;
+
+    @NonFinal
+    InputStream input;
+
+    @NonFinal
+    OutputStream output;
+
+    // создаются при первом обращении, т.к. нужны только при directBuffers(true)
+    @NonFinal
+    byte[] readScratch;
+
+    @NonFinal
+    byte[] writeScratch;
+
+    SocketRedisTransport(final Redis.Config config) {
+        this.address = config.getAddress();
+        this.soSndBuf = config.getSoSndBuf();
+        this.soRcvBuf = config.getSoRcvBuf();
+        this.timeout = config.getConnectTimeoutMillis();
+        this.readTimeout = config.getReadTimeoutMillis();
+        this.tcpNoDelay = config.isTcpNoDelay();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket != null && socket.isConnected();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setSendBufferSize(soSndBuf);
+        socket.setReceiveBufferSize(soRcvBuf);
+        socket.setSoTimeout((int) readTimeout);
+        socket.connect(address, (int) timeout);
+
+        output = socket.getOutputStream();
+        input = socket.getInputStream();
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length) throws IOException {
+        output.write(array, offset, length);
+    }
+
+    @Override
+    public int read(final byte[] array, final int offset, final int length) throws IOException {
+        return input.read(array, offset, length);
+    }
+
+    @Override
+    public byte[] readScratch() {
+        val scratch = readScratch;
+
+        return scratch != null ? scratch : (readScratch = new byte[SCRATCH_SIZE]);
+    }
+
+    @Override
+    public byte[] writeScratch() {
+        val scratch = writeScratch;
+
+        return scratch != null ? scratch : (writeScratch = new byte[SCRATCH_SIZE]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+
+            output = null;
+            input = null;
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author whilein
+ */
+final class ByteSliceTests {
+
+    @Test
+    void nextSlice() {
+        for (val direct : new boolean[]{false, true}) {
+            val redis = RedisReadTests.redis(8, 3, "$5\r\nhello\r\n+OK\r\n$-1\r\n$12\r\nпривет\r\n", direct);
+            redis.read();
+
+            val hello = redis.nextSlice();
+            assertTrue(hello.contentEquals("hello"));
+            assertEquals("hello", hello.toString());
+
+            // один и тот же экземпляр на каждый вызов
+            assertSame(hello, redis.nextSlice());
+            assertTrue(hello.contentEquals("OK"));
+
+            assertNull(redis.nextSlice());
+
+            val unicode = redis.nextSlice();
+            assertTrue(unicode.contentEquals("привет"));
+            assertFalse(unicode.contentEquals("пока"));
+            assertEquals("привет", unicode.toString());
+        }
+    }
+
+    @Test
+    void mapLookup() {
+        val map = new HashMap<ByteSlice, Integer>();
+        map.put(ByteSlice.of("a"), 1);
+        map.put(ByteSlice.of("b"), 2);
+
+        val redis = RedisReadTests.redis(8, 3, "*3\r\n$1\r\nb\r\n$1\r\na\r\n$1\r\nc\r\n");
+        redis.read();
+
+        assertEquals(3, redis.nextArray());
+        assertEquals(2, map.get(redis.nextSlice()));
+        assertEquals(1, map.get(redis.nextSlice()));
+        assertNull(map.get(redis.nextSlice()));
+    }
+
+    @Test
+    void equalsAndHashCode() {
+        val bytes = "xhellox".getBytes(StandardCharsets.US_ASCII);
+        val slice = (ByteSlice) ByteSlice.wrap(bytes).subSequence(1, 6);
+
+        assertEquals(ByteSlice.of("hello"), slice);
+        assertEquals(ByteSlice.of("hello").hashCode(), slice.hashCode());
+        assertNotEquals(ByteSlice.of("hellO"), slice);
+
+        val copy = slice.copy();
+        bytes[1] = 'j';
+
+        assertEquals("jello", slice.toString());
+        assertEquals("hello", copy.toString());
+    }
+
+    @Test
+    void parseLong() {
+        assertEquals(0, ByteSlice.of("0").parseLong());
+        assertEquals(-42, ByteSlice.of("-42").parseLong());
+        assertEquals(Long.MAX_VALUE, ByteSlice.of(Long.toString(Long.MAX_VALUE)).parseLong());
+        assertEquals(Long.MIN_VALUE, ByteSlice.of(Long.toString(Long.MIN_VALUE)).parseLong());
+
+        assertThrows(NumberFormatException.class, () -> ByteSlice.of("").parseLong());
+        assertThrows(NumberFormatException.class, () -> ByteSlice.of("-").parseLong());
+        assertThrows(NumberFormatException.class, () -> ByteSlice.of("12a").parseLong());
+        assertThrows(NumberFormatException.class, () -> ByteSlice.of("9223372036854775808").parseLong());
+        assertThrows(NumberFormatException.class, () -> ByteSlice.of("-9223372036854775809").parseLong());
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Тесты локального кэша без Redis сервера: ответы и push сообщения заготовлены заранее.
+ *
+ * @author whilein
+ */
+final class RedisClientCacheTests {
+
+    static Redis redis(final RedisClientCache cache, final String data) {
+        return new Redis(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                .protocol(3)
+                .clientTracking(true)
+                .pushListener(cache)
+                .build(), new RedisReadTests.ChunkedTransport(data.getBytes(StandardCharsets.UTF_8), 1024));
+    }
+
+    @Test
+    void invalidate() {
+        val cache = new RedisClientCache(16);
+        val redis = redis(cache, "$2\r\nv1\r\n"
+                + ">2\r\n$10\r\ninvalidate\r\n*1\r\n$1\r\na\r\n"
+                + "_\r\n");
+
+        assertEquals("v1", cache.get(redis, "a"));
+        assertEquals("v1", cache.get(redis, "a"));
+
+        // push сообщение приходит перед ответом на GET b
+        assertNull(cache.get(redis, "b"));
+        assertNull(cache.get(redis, "b"));
+
+        assertEquals(1, cache.getSize());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void flushAll() {
+        val cache = new RedisClientCache(16);
+        val redis = redis(cache, "$1\r\n1\r\n"
+                + ">2\r\n$10\r\ninvalidate\r\n_\r\n"
+                + "$1\r\n2\r\n"
+                + "$1\r\n3\r\n");
+
+        assertEquals("1", cache.hget(redis, "h", "a"));
+        assertEquals("2", cache.get(redis, "c"));
+
+        // после FLUSHALL поле h.a пришлось прочитать заново
+        assertEquals("3", cache.hget(redis, "h", "a"));
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void evictLeastRecentlyUsed() {
+        val cache = new RedisClientCache(2);
+        val redis = redis(cache, "$1\r\n1\r\n$1\r\n2\r\n$1\r\n3\r\n");
+
+        cache.get(redis, "a");
+        cache.get(redis, "b");
+        cache.get(redis, "a");
+        cache.get(redis, "c");
+
+        assertEquals(2, cache.getSize());
+
+        // a прочитан ещё раз и получил второй шанс, поэтому вытеснен b, а a и c остались
+        cache.get(redis, "a");
+        cache.get(redis, "c");
+        assertEquals(3, cache.getHits());
+    }
+
+    @Test
+    void otherPushMessages() {
+        val cache = new RedisClientCache(16);
+        val redis = redis(cache, ">3\r\n$7\r\nmessage\r\n$2\r\nch\r\n$5\r\nhello\r\n:1\r\n");
+
+        redis.read();
+
+        assertEquals(1, redis.nextInt());
+    }
+
+}
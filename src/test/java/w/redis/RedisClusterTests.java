@@ -0,0 +1,252 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты распределения ключей по слотам Redis Cluster и клиента кластера против двух {@link RespServer}.
+ *
+ * @author whilein
+ */
+final class RedisClusterTests {
+
+    RespServer first;
+
+    RespServer second;
+
+    @BeforeEach
+    void setup() throws IOException {
+        first = RespServer.start();
+        second = RespServer.start();
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        first.close();
+        second.close();
+    }
+
+    // одинаковая карта слотов на обоих узлах: from - to на первом, остальные слоты - на втором
+    private void _assign(final int from, final int to) throws IOException {
+        val ranges = new ArrayList<Object[]>();
+
+        if (from > 0) {
+            ranges.add(new Object[]{0, from - 1, second.getAddress()});
+        }
+
+        ranges.add(new Object[]{from, to, first.getAddress()});
+
+        if (to < RedisCluster.SLOTS - 1) {
+            ranges.add(new Object[]{to + 1, RedisCluster.SLOTS - 1, second.getAddress()});
+        }
+
+        for (val server : new RespServer[]{first, second}) {
+            server.slotRanges.clear();
+            server.slotRanges.addAll(ranges);
+        }
+    }
+
+    private RedisCluster _cluster() throws IOException {
+        return new RedisCluster(new RedisCluster.Config.Builder(first.config().build()).build());
+    }
+
+    private static void _set(final RespServer server, final String key, final String value,
+                             final boolean asking) throws IOException {
+        try (val redis = new Redis(server.config().build())) {
+            if (asking) {
+                redis.writeCommand("ASKING", 0);
+            }
+
+            redis.writeCommand("SET", 2).writeAscii(key).writeAscii(value);
+            redis.flushAndRead();
+
+            if (asking) {
+                assertEquals("OK", redis.nextString());
+            }
+
+            assertEquals("OK", redis.nextString());
+        }
+    }
+
+    private static String _get(final RedisCluster cluster, final String key) {
+        return cluster.execute(key, redis -> redis.writeCommand("GET", 1).writeAscii(key), Redis::nextString);
+    }
+
+    @Test
+    void moved() throws IOException {
+        val key = "moved";
+        val slot = RedisCluster.slot(key);
+
+        _assign(0, RedisCluster.SLOTS - 1);
+        _set(first, key, "first", false);
+        _set(second, key, "second", false);
+
+        try (val cluster = _cluster()) {
+            assertEquals("first", _get(cluster, key));
+
+            // слот переехал на второй узел
+            _assign(slot + 1, RedisCluster.SLOTS - 1);
+            first.movedSlots.put(slot, second.getAddress());
+
+            assertEquals("second", _get(cluster, key));
+
+            // после MOVED команды сразу идут на новый узел
+            first.movedSlots.clear();
+            assertEquals("second", _get(cluster, key));
+        }
+    }
+
+    @Test
+    void ask() throws IOException {
+        val key = "ask";
+        val slot = RedisCluster.slot(key);
+
+        _assign(0, RedisCluster.SLOTS - 1);
+        _set(first, key, "first", false);
+
+        // слот переезжает: ключ уже на втором узле, но без ASKING тот отправляет обратно
+        second.importingSlots.add(slot);
+        second.movedSlots.put(slot, first.getAddress());
+        _set(second, key, "second", true);
+
+        try (val cluster = _cluster()) {
+            first.askSlots.put(slot, second.getAddress());
+            assertEquals("second", _get(cluster, key));
+
+            // ASK не меняет карту слотов
+            first.askSlots.clear();
+            assertEquals("first", _get(cluster, key));
+        }
+    }
+
+    @Test
+    void pipeline() throws IOException {
+        _assign(0, RedisCluster.SLOTS / 2 - 1);
+
+        try (val cluster = _cluster()) {
+            val keys = new ArrayList<String>();
+            boolean onFirst = false;
+            boolean onSecond = false;
+
+            for (int i = 0; i < 50; i++) {
+                val key = "pipeline:" + i;
+                keys.add(key);
+
+                if (RedisCluster.slot(key) < RedisCluster.SLOTS / 2) {
+                    onFirst = true;
+                } else {
+                    onSecond = true;
+                }
+            }
+
+            assertTrue(onFirst && onSecond);
+
+            val set = cluster.pipeline();
+
+            for (val key : keys) {
+                set.add(key, redis -> redis.writeCommand("SET", 2).writeAscii(key).writeAscii(key), Redis::nextString);
+            }
+
+            set.execute().join();
+
+            val get = cluster.pipeline();
+
+            for (val key : keys) {
+                get.add(key, redis -> redis.writeCommand("GET", 1).writeAscii(key), Redis::nextString);
+            }
+
+            // результаты в порядке добавления, хотя команды ушли на разные узлы
+            assertEquals(new ArrayList<Object>(keys), get.execute().join());
+        }
+    }
+
+    @Test
+    void refreshWhileInFlight() throws IOException {
+        _assign(0, RedisCluster.SLOTS / 2 - 1);
+
+        try (val cluster = _cluster()) {
+            val futures = new ArrayList<CompletableFuture<String>>();
+
+            for (int i = 0; futures.size() < 1000; i++) {
+                val key = "refresh:" + i;
+
+                if (RedisCluster.slot(key) >= RedisCluster.SLOTS / 2) {
+                    futures.add(cluster.send(key, redis -> redis.writeCommand("GET", 1).writeAscii(key),
+                            Redis::nextString));
+                }
+            }
+
+            // второй узел больше не нужен, но команды, отправленные на него, должны получить ответы
+            _assign(0, RedisCluster.SLOTS - 1);
+            cluster.refresh();
+
+            for (val future : futures) {
+                future.join();
+            }
+
+            _set(first, "refresh:moved", "first", false);
+            assertEquals("first", _get(cluster, "refresh:moved"));
+        }
+    }
+
+    @Test
+    void crc16() {
+        // контрольное значение CRC16-CCITT (XMODEM) из спецификации Redis Cluster
+        assertEquals(0x31C3, RedisCluster.crc16("123456789".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void slot() {
+        assertEquals(0x31C3, RedisCluster.slot("123456789"));
+        assertEquals(12182, RedisCluster.slot("foo"));
+    }
+
+    @Test
+    void hashtag() {
+        assertEquals(RedisCluster.slot("user1000"), RedisCluster.slot("{user1000}.following"));
+        assertEquals(RedisCluster.slot("{user1000}.following"), RedisCluster.slot("{user1000}.followers"));
+
+        // берётся только первый {...}
+        assertEquals(RedisCluster.slot("bar"), RedisCluster.slot("foo{bar}{zap}"));
+    }
+
+    @Test
+    void emptyHashtag() {
+        // в пустом {} нет hashtag'а, поэтому слот считается по всему ключу
+        assertEquals(RedisCluster.crc16("foo{}{bar}".getBytes(StandardCharsets.US_ASCII)) & (RedisCluster.SLOTS - 1),
+                RedisCluster.slot("foo{}{bar}"));
+        assertNotEquals(RedisCluster.slot("bar"), RedisCluster.slot("foo{}{bar}"));
+
+        // нет закрывающей скобки - тоже весь ключ
+        assertEquals(RedisCluster.crc16("foo{bar".getBytes(StandardCharsets.US_ASCII)) & (RedisCluster.SLOTS - 1),
+                RedisCluster.slot("foo{bar"));
+    }
+
+}
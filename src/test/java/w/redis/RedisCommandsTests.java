@@ -0,0 +1,134 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты сгенерированного {@link RedisCommands} против {@link RespServer}.
+ *
+ * @author whilein
+ */
+final class RedisCommandsTests {
+
+    static RespServer server;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        server = RespServer.start();
+    }
+
+    @AfterAll
+    static void shutdown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void commands() throws IOException {
+        try (val redis = new Redis(server.config().build())) {
+            RedisCommands.ping(redis);
+            RedisCommands.set(redis, "COMMANDS_KEY", "значение");
+
+            assertEquals("значение", RedisCommands.get(redis, "COMMANDS_KEY"));
+            assertNull(RedisCommands.get(redis, "COMMANDS_MISSING"));
+
+            assertArrayEquals(new String[]{"значение", null},
+                    RedisCommands.mget(redis, new String[]{"COMMANDS_KEY", "COMMANDS_MISSING"}));
+
+            assertEquals(1, RedisCommands.incr(redis, "COMMANDS_COUNTER"));
+            assertEquals(-4, RedisCommands.incrBy(redis, "COMMANDS_COUNTER", -5));
+
+            assertEquals(1, RedisCommands.sadd(redis, "COMMANDS_SET", "a"));
+            assertEquals(0, RedisCommands.sadd(redis, "COMMANDS_SET", "a"));
+
+            assertEquals(1, RedisCommands.rpush(redis, "COMMANDS_LIST", "1"));
+            assertEquals(2, RedisCommands.rpush(redis, "COMMANDS_LIST", "2"));
+            assertArrayEquals(new String[]{"1", "2"}, RedisCommands.lrange(redis, "COMMANDS_LIST", 0, -1));
+            assertArrayEquals(new String[]{"1"}, RedisCommands.lrange(redis, "COMMANDS_LIST", 0, 0));
+            assertEquals(-4, RedisCommands.incrBy(redis, "COMMANDS_COUNTER", 0));
+
+            assertTrue(RedisCommands.del(redis, "COMMANDS_KEY"));
+            assertFalse(RedisCommands.del(redis, "COMMANDS_KEY"));
+            assertEquals(2, RedisCommands.delAll(redis, new String[]{"COMMANDS_SET", "COMMANDS_LIST"}));
+        }
+    }
+
+    @Test
+    void errorReply() throws IOException {
+        try (val redis = new Redis(server.config().build())) {
+            RedisCommands.sadd(redis, "COMMANDS_WRONG_TYPE", "a");
+
+            val exception = assertThrows(Redis.ReplyException.class,
+                    () -> RedisCommands.incr(redis, "COMMANDS_WRONG_TYPE"));
+
+            assertTrue(exception.getMessage().startsWith("WRONGTYPE"));
+
+            // после ошибки клиент продолжает работать
+            RedisCommands.ping(redis);
+        }
+    }
+
+    @Test
+    void multiplexer() throws IOException {
+        try (val multiplexer = new RedisMultiplexer(server.config().build())) {
+            val set = RedisCommands.set(multiplexer, "COMMANDS_MUX_KEY", "value");
+            val get = RedisCommands.get(multiplexer, "COMMANDS_MUX_KEY");
+            val counter = RedisCommands.incrBy(multiplexer, "COMMANDS_MUX_COUNTER", 10);
+
+            assertNull(set.join());
+            assertEquals("value", get.join());
+            assertEquals(10, counter.join());
+
+            RedisCommands.sadd(multiplexer, "COMMANDS_MUX_WRONG_TYPE", "a").join();
+
+            val exception = assertThrows(CompletionException.class,
+                    () -> RedisCommands.get(multiplexer, "COMMANDS_MUX_WRONG_TYPE").join());
+
+            assertInstanceOf(Redis.ReplyException.class, exception.getCause());
+        }
+    }
+
+    @Test
+    void write() {
+        val transport = new RedisWriteTests.CapturingTransport();
+        val redis = RedisWriteTests.redis(transport);
+
+        RedisCommands.writeSetEx(redis, "key", "value", 60);
+        RedisCommands.writeMget(redis, new String[]{"a", "bc"});
+        RedisCommands.writeExpire(redis, "key", 0);
+        redis.flush();
+
+        assertEquals("*5\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n$2\r\nEX\r\n$2\r\n60\r\n"
+                + "*3\r\n$4\r\nMGET\r\n$1\r\na\r\n$2\r\nbc\r\n"
+                + "*3\r\n$6\r\nEXPIRE\r\n$3\r\nkey\r\n$1\r\n0\r\n", transport.toString());
+    }
+
+}
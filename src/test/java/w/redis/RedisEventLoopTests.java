@@ -0,0 +1,195 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Тесты транспорта {@link Redis.Transport#NIO} и цикла событий {@link RedisEventLoop}.
+ *
+ * @author whilein
+ */
+final class RedisEventLoopTests {
+
+    // сервер, который принимает подключения, но никогда не отвечает
+    ServerSocketChannel silent;
+
+    RedisEventLoop eventLoop;
+
+    @BeforeEach
+    void setup() throws IOException {
+        silent = ServerSocketChannel.open();
+        silent.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        eventLoop = RedisEventLoop.create("wredis-event-loop-test");
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        eventLoop.close();
+        silent.close();
+    }
+
+    Redis.Config.Builder silentConfig(final Redis.Transport transport) throws IOException {
+        return new Redis.Config.Builder((InetSocketAddress) silent.getLocalAddress())
+                .transport(transport)
+                .eventLoop(eventLoop);
+    }
+
+    @Test
+    void nioReadTimeout() throws IOException {
+        try (val redis = new Redis(silentConfig(Redis.Transport.NIO)
+                .readTimeout(100, TimeUnit.MILLISECONDS)
+                .build())) {
+            redis.writeCommand("PING", 0);
+
+            assertThrows(SocketTimeoutException.class, redis::flushAndRead);
+
+            // иначе поздний ответ на PING прочитали бы как ответ на следующую команду
+            assertFalse(redis.isConnected());
+        }
+    }
+
+    @Test
+    void socketReadTimeout() throws IOException {
+        try (val redis = new Redis(silentConfig(Redis.Transport.SOCKET)
+                .readTimeout(100, TimeUnit.MILLISECONDS)
+                .build())) {
+            redis.writeCommand("PING", 0);
+
+            assertThrows(SocketTimeoutException.class, redis::flushAndRead);
+
+            // иначе поздний ответ на PING прочитали бы как ответ на следующую команду
+            assertFalse(redis.isConnected());
+        }
+    }
+
+    @Test
+    void closeWakesReader() throws Exception {
+        try (val redis = new Redis(silentConfig(Redis.Transport.NIO).build())) {
+            redis.connect();
+
+            val failure = new CompletableFuture<Throwable>();
+
+            val reader = new Thread(() -> {
+                try {
+                    redis.writeCommand("PING", 0).flushAndRead();
+                    failure.complete(null);
+                } catch (final Throwable e) {
+                    failure.complete(e);
+                }
+            });
+
+            reader.start();
+
+            // даём потоку встать в ожидание ответа
+            Thread.sleep(50);
+            eventLoop.close();
+
+            assertInstanceOf(ClosedChannelException.class, failure.get(1, TimeUnit.SECONDS));
+            assertFalse(redis.isConnected());
+        }
+    }
+
+    @Test
+    void blockingInEventLoop() throws Exception {
+        try (val redis = new Redis(silentConfig(Redis.Transport.NIO).build())) {
+            redis.connect();
+
+            val failure = new CompletableFuture<Throwable>();
+
+            eventLoop.execute(() -> {
+                try {
+                    redis.writeCommand("PING", 0).flushAndRead();
+                    failure.complete(null);
+                } catch (final Throwable e) {
+                    failure.complete(e);
+                }
+            });
+
+            // раньше поток цикла событий крутился бы в ожидании ответа вечно
+            assertInstanceOf(IllegalStateException.class, failure.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void executeWhileClosing() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            val loop = RedisEventLoop.create("wredis-event-loop-closing");
+            val accepted = new ArrayList<CompletableFuture<Void>>();
+
+            val submitter = new Thread(() -> {
+                while (true) {
+                    val done = new CompletableFuture<Void>();
+
+                    try {
+                        loop.execute(() -> done.complete(null));
+                    } catch (final IllegalStateException e) {
+                        return;
+                    }
+
+                    accepted.add(done);
+                }
+            });
+
+            submitter.start();
+            loop.close();
+            submitter.join();
+
+            // принятая задача должна выполниться, иначе register ждал бы её вечно
+            for (val done : accepted) {
+                done.get(1, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test
+    void sendFromReplyHandler() throws Exception {
+        try (val server = RespServer.start();
+             val multiplexer = new RedisMultiplexer(server.config()
+                     .transport(Redis.Transport.NIO)
+                     .eventLoop(eventLoop)
+                     .build())) {
+            // обработчик ответа выполняется в потоке цикла событий, а вторую команду
+            // нужно отправить, не блокируя его
+            val reply = multiplexer.send(redis -> redis.writeCommand("PING", 0), Redis::nextString)
+                    .thenCompose(pong -> multiplexer.send(redis -> redis.writeCommand("ECHO", 1)
+                            .writeAscii(pong), Redis::nextString));
+
+            assertEquals("PONG", reply.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author whilein
+ */
+final class RedisMetricsTests {
+
+    static RespServer server;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        server = RespServer.start();
+    }
+
+    @AfterAll
+    static void shutdown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void histogram() {
+        val histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+
+        // погрешность не больше 1/32 значения
+        assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 / 32.0);
+        assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 / 32.0);
+        assertEquals(1_000_000, histogram.getMax(), 1_000_000 / 32.0);
+
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    void histogramBuckets() {
+        for (long value = 0; value < 100_000; value++) {
+            val index = LatencyHistogram.index(value);
+
+            assertTrue(LatencyHistogram.lowestValue(index) <= value);
+            assertTrue(LatencyHistogram.highestValue(index) >= value);
+        }
+
+        val last = LatencyHistogram.index(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(last));
+    }
+
+    @Test
+    void pipeline() throws IOException {
+        val statistics = new RedisStatistics();
+
+        try (val redis = new Redis(server.config().metrics(statistics).build())) {
+            for (int i = 0; i < 10; i++) {
+                redis.writeCommand("SET", 2).writeAscii("METRICS_KEY").writeInt(i);
+            }
+
+            redis.writeCommand("GET", 1).writeAscii("METRICS_KEY");
+            redis.flushAndRead();
+            redis.skip(10);
+
+            assertEquals("9", redis.nextString());
+        }
+
+        assertEquals(1, statistics.getConnectTime().getCount());
+        assertEquals(0, statistics.getAuthTime().getCount());
+
+        assertEquals(1, statistics.getFlushCount());
+        assertEquals(11, statistics.getPipelineDepth().getMax());
+        assertTrue(statistics.getBytesWritten() > 0);
+        assertTrue(statistics.getBytesRead() > 0);
+
+        assertEquals(10, statistics.getCommandLatency("SET").getCount());
+        assertEquals(1, statistics.getCommandLatency("GET").getCount());
+    }
+
+    @Test
+    void multiplexer() throws IOException {
+        val statistics = new RedisStatistics();
+
+        try (val multiplexer = new RedisMultiplexer(server.config().metrics(statistics).build())) {
+            for (int i = 0; i < 100; i++) {
+                multiplexer.execute(redis -> redis.writeCommand("INCR", 1).writeAscii("METRICS_COUNTER"),
+                        Redis::nextLong);
+            }
+
+            // команда, которую не удалось записать, не должна сбить замеры следующих
+            assertThrows(IllegalStateException.class, () -> multiplexer.execute(redis -> {
+                redis.writeCommand("SET", 2).writeAscii("METRICS_KEY");
+                throw new IllegalStateException("expected");
+            }, Redis::nextString));
+
+            // больше команд без ответа, чем помнит клиент: замеры самых старых теряются, но не сдвигаются
+            val gets = multiplexer.offer(redis -> {
+                for (int i = 0; i < 2000; i++) {
+                    redis.writeCommand("GET", 1).writeAscii("METRICS_KEY");
+                }
+            }, Redis::nextString, 1999);
+            val ping = multiplexer.offer(redis -> redis.writeCommand("PING", 0), Redis::nextString, 0);
+            multiplexer.drain();
+
+            gets.join();
+            assertEquals("PONG", ping.join());
+        }
+
+        assertEquals(100, statistics.getCommandLatency("INCR").getCount());
+        assertEquals(1, statistics.getCommandLatency("PING").getCount());
+        assertTrue(statistics.getCommandLatency("GET").getCount() < 2000);
+        assertNull(statistics.getCommandLatency("SET"));
+    }
+
+    @Test
+    void resize() throws IOException {
+        val statistics = new RedisStatistics();
+
+        try (val redis = new Redis(server.config()
+                .metrics(statistics)
+                .writeBufferCapacity(16)
+                .build())) {
+            redis.writeCommand("SET", 2).writeAscii("METRICS_LARGE").writeAscii("0123456789abcdef0123456789abcdef");
+            redis.flushAndRead();
+
+            assertEquals("OK", redis.nextString());
+        }
+
+        assertTrue(statistics.getResizeCount() > 0);
+        assertNotNull(statistics.getCommandLatency("SET"));
+    }
+
+}
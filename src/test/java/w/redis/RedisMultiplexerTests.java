@@ -0,0 +1,136 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * @author whilein
+ */
+final class RedisMultiplexerTests {
+
+    static RedisMultiplexer multiplexer;
+
+    @BeforeAll
+    static void setup() {
+        boolean connected;
+
+        try {
+            multiplexer = new RedisMultiplexer(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                    .connectTimeout(1, TimeUnit.SECONDS)
+                    .auth("default", "1234567890")
+                    .build());
+
+            // чтобы проверить, запущен ли редис сервер или нет
+            multiplexer.execute(redis -> redis.writeCommand("PING", 0), Redis::nextString);
+
+            connected = true;
+        } catch (final Exception e) {
+            connected = false;
+        }
+
+        assumeTrue(connected);
+    }
+
+    @AfterAll
+    static void shutdown() {
+        if (multiplexer != null) {
+            multiplexer.close();
+        }
+    }
+
+    @Test
+    void asyncFanOut() {
+        val futures = new ArrayList<CompletableFuture<String>>();
+
+        for (int i = 0; i < 20; i++) {
+            val value = String.valueOf(i);
+
+            multiplexer.send(redis -> redis.writeCommand("SET", 2).writeAscii("MUX_KEY_" + value).writeAscii(value),
+                    Redis::nextString);
+
+            futures.add(multiplexer.send(redis -> redis.writeCommand("GET", 1).writeAscii("MUX_KEY_" + value),
+                    Redis::nextString));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(String.valueOf(i), futures.get(i).join());
+        }
+    }
+
+    @Test
+    void failedReplyReader() {
+        val failed = multiplexer.send(redis -> redis.writeCommand("PING", 0), redis -> {
+            throw new IllegalStateException("expected");
+        });
+
+        // ответ пропускается целиком, поэтому следующая команда получает свой ответ
+        assertEquals("PONG", multiplexer.execute(redis -> redis.writeCommand("PING", 0), Redis::nextString));
+        assertThrows(CompletionException.class, failed::join);
+    }
+
+    @Test
+    void concurrentIncr() throws InterruptedException {
+        multiplexer.execute(redis -> redis.writeCommand("DEL", 1).writeAscii("MUX_COUNTER"), Redis::nextInt);
+
+        val results = ConcurrentHashMap.<Long>newKeySet();
+        val threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 16; i++) {
+            val thread = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    results.add(multiplexer.execute(
+                            redis -> redis.writeCommand("INCR", 1).writeAscii("MUX_COUNTER"),
+                            Redis::nextLong
+                    ));
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (val thread : threads) {
+            thread.join();
+        }
+
+        // каждый поток должен получить свой ответ, т.е. все ответы разные
+        assertEquals(16000, results.size());
+
+        final long counter = multiplexer.execute(
+                redis -> redis.writeCommand("GET", 1).writeAscii("MUX_COUNTER"),
+                redis -> Long.parseLong(redis.nextString())
+        );
+
+        assertEquals(16000, counter);
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author whilein
+ */
+final class RedisPoolTests {
+
+    // клиенты подключаются лениво, поэтому для этих тестов Redis сервер не нужен
+    static final Redis.Config REDIS_CONFIG = new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+            .build();
+
+    static RedisPool createPool(final int maxSize) {
+        return new RedisPool(new RedisPool.Config.Builder(REDIS_CONFIG)
+                .maxSize(maxSize)
+                .borrowTimeout(50, TimeUnit.MILLISECONDS)
+                .build());
+    }
+
+    @Test
+    void reuseReleased() {
+        try (val pool = createPool(2)) {
+            val redis = pool.borrow();
+            pool.release(redis);
+
+            assertSame(redis, pool.borrow());
+            assertEquals(1, pool.getSize());
+        }
+    }
+
+    @Test
+    void exhausted() {
+        try (val pool = createPool(1)) {
+            pool.borrow();
+
+            assertThrows(RedisPool.PoolTimeoutException.class, pool::borrow);
+        }
+    }
+
+    @Test
+    void doubleRelease() {
+        try (val pool = createPool(2)) {
+            val redis = pool.borrow();
+            pool.release(redis);
+
+            assertThrows(IllegalStateException.class, () -> pool.release(redis));
+            assertThrows(IllegalStateException.class, () -> pool.invalidate(redis));
+
+            // второй release не должен был добавить разрешение или положить клиента в пул ещё раз
+            assertSame(redis, pool.borrow());
+            assertNotSame(redis, pool.borrow());
+            assertThrows(RedisPool.PoolTimeoutException.class, pool::borrow);
+        }
+    }
+
+    @Test
+    void dirtyReleased() {
+        try (val pool = createPool(1)) {
+            val redis = pool.borrow();
+            redis.writeCommand("PING", 0);
+            pool.release(redis);
+
+            assertEquals(0, pool.getSize());
+            assertNotSame(redis, pool.borrow());
+        }
+    }
+
+    @Test
+    void concurrentBorrow() throws InterruptedException {
+        try (val pool = new RedisPool(new RedisPool.Config.Builder(REDIS_CONFIG).maxSize(4).build())) {
+            val threads = new ArrayList<Thread>();
+            val maxBorrowed = new AtomicInteger();
+
+            for (int i = 0; i < 16; i++) {
+                val thread = new Thread(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        val redis = pool.borrow();
+                        maxBorrowed.accumulateAndGet(pool.getBorrowed(), Math::max);
+                        pool.release(redis);
+                    }
+                });
+
+                thread.start();
+                threads.add(thread);
+            }
+
+            for (val thread : threads) {
+                thread.join();
+            }
+
+            assertTrue(pool.getSize() <= 4);
+            assertTrue(maxBorrowed.get() <= 4);
+            assertEquals(0, pool.getBorrowed());
+        }
+    }
+
+    static RedisPool createValidatingPool(final RespServer server) throws IOException {
+        // обслуживание постоянно проверяет всех свободных клиентов
+        return new RedisPool(new RedisPool.Config.Builder(server.config().build())
+                .maxSize(4)
+                .validationInterval(1, TimeUnit.MILLISECONDS)
+                .evictionInterval(1, TimeUnit.MILLISECONDS)
+                .borrowTimeout(1, TimeUnit.SECONDS)
+                .build());
+    }
+
+    @Test
+    void closeWhileValidating() throws IOException, InterruptedException {
+        try (val server = RespServer.start()) {
+            for (int i = 0; i < 20; i++) {
+                val clients = new ArrayList<Redis>();
+
+                try (val pool = createValidatingPool(server)) {
+                    for (int j = 0; j < 4; j++) {
+                        clients.add(pool.borrow());
+                    }
+
+                    for (val redis : clients) {
+                        pool.release(redis);
+                    }
+
+                    Thread.sleep(5);
+                }
+
+                // клиента, которого проверяла задача обслуживания, она закроет сама после PING
+                val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+                while (clients.stream().anyMatch(Redis::isConnected) && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+
+                for (val redis : clients) {
+                    assertFalse(redis.isConnected());
+                }
+            }
+        }
+    }
+
+    @Test
+    void borrowWhileValidating() throws IOException, InterruptedException {
+        try (val server = RespServer.start();
+             val pool = createValidatingPool(server)) {
+            val threads = new ArrayList<Thread>();
+
+            for (int i = 0; i < 8; i++) {
+                val thread = new Thread(() -> {
+                    for (int j = 0; j < 2000; j++) {
+                        val redis = pool.borrow();
+                        redis.writeCommand("PING", 0).flushAndRead();
+                        assertEquals("PONG", redis.nextString());
+                        pool.release(redis);
+                    }
+                });
+
+                thread.start();
+                threads.add(thread);
+            }
+
+            for (val thread : threads) {
+                thread.join();
+            }
+
+            assertTrue(pool.getSize() <= 4);
+            assertEquals(0, pool.getBorrowed());
+
+            val redis = pool.borrow();
+            assertTrue(redis.isConnected());
+            pool.release(redis);
+        }
+    }
+
+}
@@ -0,0 +1,538 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты разбора ответов, которые приходят по частям.
+ *
+ * @author whilein
+ */
+final class RedisReadTests {
+
+    static Redis redis(final int readBufferCapacity, final int chunkSize, final String data) {
+        return redis(readBufferCapacity, chunkSize, data, false);
+    }
+
+    static Redis redis(final int readBufferCapacity, final int chunkSize, final String data, final boolean direct) {
+        return new Redis(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                .readBufferCapacity(readBufferCapacity)
+                .directBuffers(direct)
+                .build(), new ChunkedTransport(data.getBytes(StandardCharsets.UTF_8), chunkSize));
+    }
+
+    @Test
+    void nextBytesOutOfBounds() {
+        for (val direct : new boolean[]{false, true}) {
+            val redis = redis(64, 64, "$60\r\n" + "x".repeat(60) + "\r\n", direct);
+            redis.read();
+
+            // массив короче, чем off + len, даже если ответ поместился бы в него не целиком
+            assertThrows(IndexOutOfBoundsException.class, () -> redis.nextBytes(new byte[4], 2, 60));
+        }
+    }
+
+    @Test
+    void utf8Strings() {
+        // UTF-8 не зависит от кодировки по умолчанию, а длинная ASCII строка проверяется по 8 байтов
+        val reply = "$8\r\nключ\r\n+café\r\n$4\r\n😀\r\n+plain ascii value\r\n";
+
+        for (val direct : new boolean[]{false, true}) {
+            val redis = redis(8, 3, reply, direct);
+            redis.read();
+
+            assertEquals("ключ", redis.nextString());
+            assertEquals("café", redis.nextString());
+            assertEquals("😀", redis.nextString());
+            assertEquals("plain ascii value", redis.nextString());
+        }
+    }
+
+    @Test
+    void bulkStringSplitAcrossReads() {
+        val redis = redis(8, 3, "$11\r\nhello world\r\n+OK\r\n");
+        redis.read();
+
+        assertEquals("hello world", redis.nextString());
+        assertEquals("OK", redis.nextString());
+    }
+
+    @Test
+    void pipelineByteByByte() {
+        val replies = new StringBuilder();
+
+        for (int i = 0; i < 100; i++) {
+            replies.append(':').append(i).append("\r\n");
+        }
+
+        val redis = redis(4, 1, replies.toString());
+        redis.read();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, redis.nextInt());
+        }
+    }
+
+    @Test
+    void skipBinaryString() {
+        val redis = redis(4, 2, "$4\r\na\r\nb\r\n:5\r\n");
+        redis.read();
+        redis.skip();
+
+        assertEquals(5, redis.nextInt());
+    }
+
+    @Test
+    void skipNestedArray() {
+        val redis = redis(1024, 1024, "*2\r\n$1\r\na\r\n*1\r\n:1\r\n:7\r\n");
+        redis.read();
+        redis.skip();
+
+        assertEquals(7, redis.nextInt());
+    }
+
+    @Test
+    void nullBulkString() {
+        val redis = redis(1024, 1024, "$-1\r\n+OK\r\n");
+        redis.read();
+
+        assertNull(redis.nextString());
+        assertEquals("OK", redis.nextString());
+    }
+
+    @Test
+    void bulkBytes() {
+        val redis = redis(4, 3, "$3\r\nabc\r\n$5\r\nhello\r\n");
+        redis.read();
+
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), redis.nextBytes());
+
+        val output = new byte[3];
+        assertEquals(3, redis.nextBytes(output));
+        assertArrayEquals("hel".getBytes(StandardCharsets.UTF_8), output);
+    }
+
+    @Test
+    void streamLargeBulk() {
+        val value = new StringBuilder();
+
+        for (int i = 0; i < 1000; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        val redis = redis(16, 7, "$1000\r\n" + value + "\r\n$1000\r\n" + value + "\r\n"
+                + "$-1\r\n_\r\n_\r\n:1\r\n");
+        redis.read();
+
+        val stream = new ByteArrayOutputStream();
+        assertEquals(1000, redis.nextBulkTo(stream));
+        assertEquals(value.toString(), stream.toString(StandardCharsets.UTF_8));
+
+        stream.reset();
+        assertEquals(1000, redis.nextBulkTo(Channels.newChannel(stream)));
+        assertEquals(value.toString(), stream.toString(StandardCharsets.UTF_8));
+
+        // пустое значение в RESP2 и RESP3
+        assertEquals(-1, redis.nextBulkTo(stream));
+        assertEquals(-1, redis.nextBulkTo(stream));
+        assertEquals(-1, redis.nextBulkTo(Channels.newChannel(stream)));
+
+        assertEquals(1, redis.nextInt());
+    }
+
+    @Test
+    void directBuffers() {
+        val value = new StringBuilder();
+
+        for (int i = 0; i < 100; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        val redis = redis(8, 5, "*3\r\n$100\r\n" + value + "\r\n:-42\r\n$5\r\nhello\r\n"
+                + "$100\r\n" + value + "\r\n", true);
+        redis.read();
+
+        assertEquals(3, redis.nextArray());
+        assertEquals(value.toString(), redis.nextString());
+        assertEquals(-42, redis.nextInt());
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), redis.nextBytes());
+
+        val stream = new ByteArrayOutputStream();
+        assertEquals(100, redis.nextBulkTo(stream));
+        assertEquals(value.toString(), stream.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void resp3Types() {
+        val redis = redis(8, 3, "%2\r\n+a\r\n,3.25\r\n+b\r\n,-inf\r\n"
+                + "~2\r\n#t\r\n#f\r\n"
+                + "_\r\n"
+                + "(3492890328409238509324850943850943825024385\r\n"
+                + "=15\r\ntxt:Some string\r\n"
+                + "|1\r\n+key\r\n:1\r\n:2\r\n"
+                + ">2\r\n$10\r\ninvalidate\r\n*1\r\n$3\r\nkey\r\n"
+                + "!9\r\nERR oops!\r\n");
+        redis.read();
+
+        assertEquals(2, redis.nextMap());
+        assertEquals("a", redis.nextString());
+        assertEquals(3.25, redis.nextDouble());
+        assertEquals("b", redis.nextString());
+        assertEquals(Double.NEGATIVE_INFINITY, redis.nextDouble());
+
+        assertEquals(2, redis.nextArray());
+        assertTrue(redis.nextBoolean());
+        assertFalse(redis.nextBoolean());
+
+        assertTrue(redis.isNull());
+        assertNull(redis.nextString());
+
+        assertEquals(new BigInteger("3492890328409238509324850943850943825024385"), redis.nextBigInteger());
+        assertEquals("Some string", redis.nextString());
+
+        // атрибуты пропускаются
+        assertEquals(2, redis.nextInt());
+
+        assertTrue(redis.isPush());
+        assertEquals(2, redis.nextArray());
+        assertEquals("invalidate", redis.nextString());
+        redis.skip();
+
+        assertTrue(redis.isError());
+        assertEquals("ERR oops!", redis.nextString());
+    }
+
+    @Test
+    void replyVisitor() {
+        val reply = "*6\r\n"
+                + "$5\r\nhello\r\n"
+                + ":-42\r\n"
+                + "*2\r\n+OK\r\n$-1\r\n"
+                + "%1\r\n+k\r\n~2\r\n#t\r\n,1.5\r\n"
+                + "-ERR oops\r\n"
+                + "=15\r\ntxt:Some string\r\n";
+
+        for (val direct : new boolean[]{false, true}) {
+            val redis = redis(8, 3, reply, direct);
+            redis.read();
+
+            val events = new StringBuilder();
+
+            redis.nextReply(new RespVisitor() {
+                @Override
+                public void onArrayStart(final int length) {
+                    events.append('[').append(length).append(' ');
+                }
+
+                @Override
+                public void onArrayEnd() {
+                    events.append("] ");
+                }
+
+                @Override
+                public void onMapStart(final int length) {
+                    events.append('{').append(length).append(' ');
+                }
+
+                @Override
+                public void onMapEnd() {
+                    events.append("} ");
+                }
+
+                @Override
+                public void onBulk(final byte[] buffer, final int offset, final int length) {
+                    events.append('$').append(new String(buffer, offset, length, StandardCharsets.UTF_8)).append(' ');
+                }
+
+                @Override
+                public void onVerbatim(final byte[] buffer, final int formatOffset, final int offset, final int length) {
+                    events.append('=').append(new String(buffer, formatOffset, 3, StandardCharsets.UTF_8))
+                            .append(':').append(new String(buffer, offset, length, StandardCharsets.UTF_8)).append(' ');
+                }
+
+                @Override
+                public void onSimple(final byte[] buffer, final int offset, final int length) {
+                    events.append('+').append(new String(buffer, offset, length, StandardCharsets.UTF_8)).append(' ');
+                }
+
+                @Override
+                public void onError(final byte[] buffer, final int offset, final int length) {
+                    events.append('-').append(new String(buffer, offset, length, StandardCharsets.UTF_8)).append(' ');
+                }
+
+                @Override
+                public void onInteger(final long value) {
+                    events.append(':').append(value).append(' ');
+                }
+
+                @Override
+                public void onDouble(final double value) {
+                    events.append(',').append(value).append(' ');
+                }
+
+                @Override
+                public void onBoolean(final boolean value) {
+                    events.append('#').append(value).append(' ');
+                }
+
+                @Override
+                public void onNull() {
+                    events.append("null ");
+                }
+            });
+
+            assertEquals("[6 $hello :-42 [2 +OK null ] {1 +k [2 #true ,1.5 ] } -ERR oops =txt:Some string ] ",
+                    events.toString());
+        }
+    }
+
+    @Test
+    void numbersOfAnyLength() {
+        val numbers = new long[]{0, 7, -7, 12345678, -123456789, 1234567890123456L, Long.MAX_VALUE, Long.MIN_VALUE};
+        val reply = new StringBuilder();
+
+        for (val number : numbers) {
+            reply.append(':').append(number).append("\r\n");
+        }
+
+        // длинная простая строка, в которой \r встречается без \n
+        reply.append("+abc\rdefghijklmnopqrstuvwxyz\r\n");
+        reply.append("$10\r\n0123456789\r\n");
+
+        // большие куски читаются по 8 байтов, маленькие - побайтово на границах буффера
+        for (val chunk : new int[]{1, 3, 1024}) {
+            for (val direct : new boolean[]{false, true}) {
+                val redis = redis(chunk * 4, chunk, reply.toString(), direct);
+                redis.read();
+
+                for (val number : numbers) {
+                    assertEquals(number, redis.nextLong());
+                }
+
+                redis.skip();
+                assertEquals("0123456789", redis.nextString());
+            }
+        }
+    }
+
+    @Test
+    void numericArrays() {
+        val reply = "*5\r\n:1\r\n$2\r\n-2\r\n$-1\r\n$19\r\n9223372036854775807\r\n_\r\n"
+                + "*3\r\n$2\r\n10\r\n$-1\r\n:30\r\n"
+                + "*4\r\n$3\r\n1.5\r\n,-2.25\r\n:3\r\n$-1\r\n"
+                + "*3\r\n:1\r\n:2\r\n:3\r\n"
+                + "*-1\r\n"
+                + "+OK\r\n";
+
+        for (val direct : new boolean[]{false, true}) {
+            val redis = redis(8, 3, reply, direct);
+            redis.read();
+
+            val longs = new long[5];
+            assertEquals(5, redis.nextLongArray(longs));
+            assertArrayEquals(new long[]{1, -2, Redis.NULL_LONG, Long.MAX_VALUE, Redis.NULL_LONG}, longs);
+
+            val ints = new int[3];
+            val nulls = new BitSet();
+            assertEquals(3, redis.nextIntArray(ints, nulls));
+            assertArrayEquals(new int[]{10, 0, 30}, ints);
+            assertEquals(1, nulls.cardinality());
+            assertTrue(nulls.get(1));
+
+            val doubles = new double[4];
+            assertEquals(4, redis.nextDoubleArray(doubles));
+            assertArrayEquals(new double[]{1.5, -2.25, 3, Double.NaN}, doubles);
+
+            // элементы, которые не поместились, пропускаются
+            val small = new long[2];
+            assertEquals(3, redis.nextLongArray(small));
+            assertArrayEquals(new long[]{1, 2}, small);
+
+            assertEquals(-1, redis.nextLongArray(small));
+            assertEquals("OK", redis.nextString());
+        }
+    }
+
+    @Test
+    void numericArrayFailures() {
+        val reply = "*4\r\n:1\r\n$3\r\nabc\r\n:3\r\n$1\r\nx\r\n"
+                + "*3\r\n:1\r\n:4294967296\r\n:3\r\n"
+                + "*2\r\n$3\r\nabc\r\n,1.5\r\n"
+                + "+OK\r\n";
+
+        for (val direct : new boolean[]{false, true}) {
+            val redis = redis(8, 3, reply, direct);
+            redis.read();
+
+            // ошибка в середине массива не должна оставлять остальные элементы непрочитанными
+            val longs = new long[3];
+            assertThrows(NumberFormatException.class, () -> redis.nextLongArray(longs));
+            assertEquals(3, longs[2]);
+
+            val ints = new int[2];
+            assertThrows(NumberFormatException.class, () -> redis.nextIntArray(ints));
+
+            val doubles = new double[2];
+            assertThrows(NumberFormatException.class, () -> redis.nextDoubleArray(doubles));
+            assertEquals(1.5, doubles[1]);
+
+            assertEquals("OK", redis.nextString());
+        }
+    }
+
+    @Test
+    void longDoubles() {
+        val redis = redis(8, 3, "$18\r\n0.1000000000000001\r\n"
+                + ",2.2250738585072014e-308\r\n"
+                + ",1.7976931348623157e+308\r\n"
+                + ",4.9e-324\r\n"
+                + "$25\r\n1234567890.12345678901234\r\n"
+                + ",nan\r\n"
+                + "$3\r\ninf\r\n");
+        redis.read();
+
+        assertEquals(0.1000000000000001, redis.nextDouble());
+        assertEquals(Double.MIN_NORMAL, redis.nextDouble());
+        assertEquals(Double.MAX_VALUE, redis.nextDouble());
+        assertEquals(Double.MIN_VALUE, redis.nextDouble());
+        assertEquals(1234567890.12345678901234, redis.nextDouble());
+        assertTrue(Double.isNaN(redis.nextDouble()));
+        assertEquals(Double.POSITIVE_INFINITY, redis.nextDouble());
+    }
+
+    @Test
+    void resp2MapAndDouble() {
+        val redis = redis(1024, 1024, "*4\r\n$1\r\na\r\n$3\r\n1.5\r\n$1\r\nb\r\n$-1\r\n");
+        redis.read();
+
+        assertEquals(2, redis.nextMap());
+        assertEquals("a", redis.nextString());
+        assertEquals(1.5, redis.nextDouble());
+        assertEquals("b", redis.nextString());
+        assertTrue(Double.isNaN(redis.nextDouble()));
+    }
+
+    @Test
+    void resp3Frames() {
+        val data = "%1\r\n+a\r\n~1\r\n,1.5\r\n|1\r\n+k\r\n+v\r\n=7\r\ntxt:abc\r\n:1\r\n";
+        val redis = redis(1024, 1024, data);
+        redis.read();
+
+        val first = redis.frameEnd();
+        assertEquals(data.indexOf('|'), first);
+
+        redis.readFrame(first, r -> {
+            r.skip();
+            return null;
+        });
+
+        assertEquals(data.indexOf(":1"), redis.frameEnd());
+    }
+
+    @Test
+    void frameLengths() {
+        // длина из 10 цифр читается двумя словами, а заголовок в конце буффера - по одному байту
+        val data = "*2\r\n$10\r\n0123456789\r\n$0000000090\r\n" + "y".repeat(90) + "\r\n";
+        val redis = redis(1024, 1024, data + ":1\r\n");
+        redis.read();
+
+        assertEquals(data.length(), redis.frameEnd());
+
+        for (val header : new String[]{"$12345678901\r\n", "$1x\r\n", "$\r\n", "*2147483648\r\n", "?1\r\n"}) {
+            val illegal = redis(1024, 1024, header);
+            illegal.read();
+
+            assertThrows(Redis.ProtocolException.class, illegal::frameEnd);
+        }
+
+        // конец такой строки не помещается в int, но ответ просто ещё не дочитан
+        val huge = redis(1024, 1024, "$2147483647\r\nabc");
+        huge.read();
+
+        assertEquals(-1, huge.frameEnd());
+
+        val nulls = "*2\r\n$-1\r\n*-1\r\n";
+        val redisNulls = redis(1024, 1024, nulls);
+        redisNulls.read();
+
+        assertEquals(nulls.length(), redisNulls.frameEnd());
+    }
+
+    /**
+     * Транспорт, который отдаёт заранее заготовленные байты кусками по {@code chunkSize} байтов.
+     */
+    static final class ChunkedTransport implements RedisTransport {
+
+        final byte[] data;
+        final int chunkSize;
+
+        int position;
+
+        ChunkedTransport(final byte[] data, final int chunkSize) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void write(final byte[] array, final int offset, final int length) {
+        }
+
+        @Override
+        public int read(final byte[] array, final int offset, final int length) {
+            if (position == data.length) {
+                return -1;
+            }
+
+            val count = Math.min(Math.min(chunkSize, length), data.length - position);
+            System.arraycopy(data, position, array, offset, count);
+            position += count;
+
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты кольца консистентного хэширования и клиента против двух {@link RespServer}.
+ *
+ * @author whilein
+ */
+final class RedisShardsTests {
+
+    static final int KEYS = 100000;
+
+    static RedisShards shards(final RespServer first, final RespServer second) throws IOException {
+        return new RedisShards(new RedisShards.Config.Builder(first.config().build())
+                .node(first.getAddress())
+                .node(second.getAddress())
+                .build());
+    }
+
+    static Map<InetSocketAddress, RedisMultiplexer> nodes(final int count) {
+        val nodes = new LinkedHashMap<InetSocketAddress, RedisMultiplexer>();
+
+        for (int i = 0; i < count; i++) {
+            val address = InetSocketAddress.createUnresolved("10.0.0." + (i + 1), 6379);
+            nodes.put(address, new RedisMultiplexer(new Redis.Config.Builder(address).build()));
+        }
+
+        return nodes;
+    }
+
+    @Test
+    void distribution() {
+        val ring = new RedisShards.Ring(nodes(8), 160);
+        val counts = new int[8];
+
+        for (int i = 0; i < KEYS; i++) {
+            counts[ring.index("key:" + i)]++;
+        }
+
+        for (val count : counts) {
+            // 160 виртуальных узлов дают отклонение в пределах нескольких процентов
+            assertTrue(Math.abs(count - KEYS / 8) < KEYS / 8 / 5, "Uneven distribution: " + count);
+        }
+    }
+
+    @Test
+    void addNode() {
+        val before = new RedisShards.Ring(nodes(8), 160);
+        val after = new RedisShards.Ring(nodes(9), 160);
+
+        int moved = 0;
+
+        for (int i = 0; i < KEYS; i++) {
+            val key = "key:" + i;
+            val from = before.index(key);
+            val to = after.index(key);
+
+            if (from != to) {
+                // ключи переезжают только на новый сервер
+                assertEquals(8, to);
+                moved++;
+            }
+        }
+
+        // примерно 1/9 ключей
+        assertTrue(moved > KEYS / 9 / 2 && moved < KEYS / 9 * 2, "Moved " + moved + " keys");
+    }
+
+    @Test
+    void removeNode() {
+        val nodes = nodes(8);
+        val before = new RedisShards.Ring(nodes, 160);
+
+        val removed = before.toMap();
+        removed.remove(InetSocketAddress.createUnresolved("10.0.0.4", 6379));
+
+        val after = new RedisShards.Ring(removed, 160);
+
+        for (int i = 0; i < KEYS; i++) {
+            val key = "key:" + i;
+            val from = before.index(key);
+
+            // ключи остальных серверов остаются на месте
+            if (from != 3) {
+                assertEquals(before.address(key), after.address(key));
+            }
+        }
+    }
+
+    @Test
+    void pipeline() throws IOException {
+        try (val first = RespServer.start();
+             val second = RespServer.start();
+             val shards = shards(first, second)) {
+            val keys = new ArrayList<String>();
+            int onFirst = 0;
+
+            for (int i = 0; i < 50; i++) {
+                val key = "pipeline:" + i;
+                keys.add(key);
+
+                if (shards.node(key).equals(first.getAddress())) {
+                    onFirst++;
+                }
+            }
+
+            assertTrue(onFirst > 0 && onFirst < keys.size());
+
+            val set = shards.pipeline();
+
+            for (val key : keys) {
+                set.add(key, redis -> redis.writeCommand("SET", 2).writeAscii(key).writeAscii(key), Redis::nextString);
+            }
+
+            set.execute().join();
+
+            val get = shards.pipeline();
+
+            for (val key : keys) {
+                get.add(key, redis -> redis.writeCommand("GET", 1).writeAscii(key), Redis::nextString);
+            }
+
+            // результаты в порядке добавления, хотя команды ушли на разные серверы
+            assertEquals(new ArrayList<Object>(keys), get.execute().join());
+        }
+    }
+
+    @Test
+    void removeNodeWhileInFlight() throws IOException {
+        try (val first = RespServer.start();
+             val second = RespServer.start();
+             val shards = shards(first, second)) {
+            val futures = new ArrayList<CompletableFuture<String>>();
+
+            for (int i = 0; futures.size() < 1000; i++) {
+                val key = "remove:" + i;
+
+                if (shards.node(key).equals(second.getAddress())) {
+                    futures.add(shards.send(key, redis -> redis.writeCommand("GET", 1).writeAscii(key),
+                            Redis::nextString));
+                }
+            }
+
+            // команды, которые уже ушли на удалённый сервер, должны получить ответы
+            shards.removeNode(second.getAddress());
+
+            for (val future : futures) {
+                future.join();
+            }
+
+            assertEquals(first.getAddress(), shards.node("remove:0"));
+            assertEquals("OK", shards.execute("remove:0",
+                    redis -> redis.writeCommand("SET", 2).writeAscii("remove:0").writeAscii("value"),
+                    Redis::nextString));
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author whilein
+ */
+final class RedisStringCacheTests {
+
+    static Redis redis(final RedisStringCache cache, final String data, final boolean direct) {
+        return new Redis(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                .readBufferCapacity(8)
+                .directBuffers(direct)
+                .stringCache(cache)
+                .build(), new RedisReadTests.ChunkedTransport(data.getBytes(StandardCharsets.UTF_8), 3));
+    }
+
+    @Test
+    void sameInstanceForRepeatedReplies() {
+        for (val direct : new boolean[]{false, true}) {
+            val cache = new RedisStringCache(64, 8);
+            val redis = redis(cache, "+OK\r\n$2\r\nOK\r\n$8\r\nключ\r\n$8\r\nключ\r\n"
+                    + "$9\r\ntoo long!\r\n$9\r\ntoo long!\r\n", direct);
+            redis.read();
+
+            val ok = redis.nextString();
+            assertEquals("OK", ok);
+            // простая строка и bulk строка с теми же байтами
+            assertSame(ok, redis.nextString());
+
+            val key = redis.nextString();
+            assertEquals("ключ", key);
+            assertSame(key, redis.nextString());
+
+            // длиннее maxLength не кэшируется
+            val first = redis.nextString();
+            val second = redis.nextString();
+            assertEquals("too long!", first);
+            assertEquals(first, second);
+            assertNotSame(first, second);
+        }
+    }
+
+    @Test
+    void sharedBetweenClients() {
+        val cache = new RedisStringCache(16, 16);
+
+        val first = redis(cache, "+QUEUED\r\n", false);
+        first.read();
+
+        val second = redis(cache, "$6\r\nQUEUED\r\n", true);
+        second.read();
+
+        assertSame(first.nextString(), second.nextString());
+    }
+
+    @Test
+    void eviction() {
+        val cache = new RedisStringCache(1, 16);
+
+        val a = cache.intern(ByteSlice.of("a"));
+        val b = cache.intern(ByteSlice.of("b"));
+
+        // в единственной ячейке теперь b
+        assertSame(b, cache.intern(ByteSlice.of("b")));
+        assertNotSame(a, cache.intern(ByteSlice.of("a")));
+
+        cache.clear();
+        assertNotSame(b, cache.intern(ByteSlice.of("b")));
+    }
+
+    @Test
+    void illegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new RedisStringCache(0, 16));
+        assertThrows(IllegalArgumentException.class, () -> new RedisStringCache(16, -1));
+    }
+
+}
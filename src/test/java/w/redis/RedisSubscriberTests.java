@@ -0,0 +1,89 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты подписчика без Redis сервера: сообщения заготовлены заранее и приходят по частям.
+ *
+ * @author whilein
+ */
+final class RedisSubscriberTests {
+
+    @Test
+    void dispatchMessages() throws Exception {
+        val redis = RedisReadTests.redis(8, 3, "*3\r\n$9\r\nsubscribe\r\n$2\r\nch\r\n:1\r\n"
+                + "*3\r\n$7\r\nmessage\r\n$2\r\nch\r\n$5\r\nhello\r\n"
+                + "*4\r\n$8\r\npmessage\r\n$3\r\nc.*\r\n$3\r\nc.a\r\n$3\r\nbye\r\n");
+
+        val received = new CopyOnWriteArrayList<String>();
+        val latch = new CountDownLatch(2);
+
+        try (val subscriber = new RedisSubscriber(redis, new RedisMessageListener() {
+            @Override
+            public void onMessage(
+                    final byte[] buffer,
+                    final int channelOffset,
+                    final int channelLength,
+                    final int offset,
+                    final int length
+            ) {
+                received.add(new String(buffer, channelOffset, channelLength, StandardCharsets.UTF_8)
+                        + "=" + new String(buffer, offset, length, StandardCharsets.UTF_8));
+                latch.countDown();
+            }
+
+            @Override
+            public void onPatternMessage(
+                    final byte[] buffer,
+                    final int patternOffset,
+                    final int patternLength,
+                    final int channelOffset,
+                    final int channelLength,
+                    final int offset,
+                    final int length
+            ) {
+                received.add(new String(buffer, patternOffset, patternLength, StandardCharsets.UTF_8) + ":"
+                        + new String(buffer, channelOffset, channelLength, StandardCharsets.UTF_8)
+                        + "=" + new String(buffer, offset, length, StandardCharsets.UTF_8));
+                latch.countDown();
+            }
+        })) {
+            subscriber.subscribe("ch");
+            subscriber.psubscribe("c.*");
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of("ch=hello", "c.*:c.a=bye"), received);
+
+            subscriber.unsubscribe("ch");
+            assertTrue(subscriber.getChannels().isEmpty());
+            assertEquals(1, subscriber.getPatterns().size());
+        }
+    }
+
+}
@@ -23,6 +23,7 @@ import org.junit.jupiter.api.Test;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -56,6 +57,54 @@ final class RedisTests {
         assumeTrue(connected);
     }
 
+    @Test
+    void nioTransport() {
+        try (val nio = new Redis(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                .connectTimeout(1, TimeUnit.SECONDS)
+                .auth("default", "1234567890")
+                .transport(Redis.Transport.NIO)
+                .build())) {
+            for (int i = 0; i < 1000; i++) {
+                nio.writeCommand("PING", 0);
+            }
+
+            nio.flushAndRead();
+
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("PONG", nio.nextString());
+            }
+        }
+    }
+
+    @Test
+    void resp3() {
+        try (val resp3 = new Redis(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                .connectTimeout(1, TimeUnit.SECONDS)
+                .auth("default", "1234567890")
+                .protocol(3)
+                .build())) {
+            resp3.writeCommand("DEL", 1).writeAscii("resp3_hash");
+            resp3.writeCommand("HSET", 5).writeAscii("resp3_hash")
+                    .writeAscii("a").writeAscii("1")
+                    .writeAscii("b").writeAscii("2");
+            resp3.writeCommand("HGETALL", 1).writeAscii("resp3_hash");
+            resp3.flushAndRead();
+
+            resp3.skip();
+            assertEquals(2, resp3.nextInt());
+
+            val keys = new HashSet<String>();
+            val pairs = resp3.nextMap();
+
+            for (int i = 0; i < pairs; i++) {
+                keys.add(resp3.nextString());
+                resp3.skip();
+            }
+
+            assertEquals(Set.of("a", "b"), keys);
+        }
+    }
+
     @Test
     void readString() {
         redis.writeCommand("PING", 0).flushAndRead();
@@ -0,0 +1,349 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Тесты записи команд без копирования больших аргументов.
+ *
+ * @author whilein
+ */
+final class RedisWriteTests {
+
+    static String value(final int length) {
+        val value = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        return value.toString();
+    }
+
+    static Redis redis(final CapturingTransport transport) {
+        return redis(transport, false);
+    }
+
+    static Redis redis(final CapturingTransport transport, final boolean direct) {
+        return new Redis(new Redis.Config.Builder(new InetSocketAddress("localhost", 6379))
+                .writeBufferCapacity(64)
+                .directBuffers(direct)
+                .build(), transport);
+    }
+
+    @Test
+    void writeByteBuffers() {
+        val transport = new CapturingTransport();
+        val redis = redis(transport);
+
+        val small = value(16);
+        val large = value(100_000);
+
+        val direct = ByteBuffer.allocateDirect(large.length());
+        direct.put(large.getBytes(StandardCharsets.US_ASCII)).flip();
+
+        redis.writeCommand("MSET", 4)
+                .writeBytes(ByteBuffer.wrap(small.getBytes(StandardCharsets.US_ASCII)))
+                .writeBytes(ByteBuffer.wrap(large.getBytes(StandardCharsets.US_ASCII)))
+                .writeAscii("k")
+                .writeBytes(direct);
+        redis.flush();
+
+        assertEquals("*5\r\n$4\r\nMSET\r\n"
+                + "$16\r\n" + small + "\r\n"
+                + "$100000\r\n" + large + "\r\n"
+                + "$1\r\nk\r\n"
+                + "$100000\r\n" + large + "\r\n", transport.toString());
+
+        // позиция буффера не меняется
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    void writeFileRegion() throws Exception {
+        val file = Files.createTempFile("wredis", ".bin");
+
+        try {
+            val content = value(50_000);
+            Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+
+            val transport = new CapturingTransport();
+            val redis = redis(transport);
+
+            try (val channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                redis.writeCommand("SET", 2)
+                        .writeAscii("key")
+                        .writeFile(channel, 100, 40_000);
+                redis.flush();
+            }
+
+            assertEquals("*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n"
+                    + "$40000\r\n" + content.substring(100, 40_100) + "\r\n", transport.toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void discardSegments() {
+        val transport = new CapturingTransport();
+        val redis = redis(transport);
+
+        val mark = redis.mark();
+        redis.writeCommand("SET", 2)
+                .writeAscii("key")
+                .writeBytes(ByteBuffer.wrap(value(10_000).getBytes(StandardCharsets.US_ASCII)));
+        redis.rewind(mark);
+
+        redis.writeCommand("PING", 0);
+        redis.flush();
+
+        assertEquals("*1\r\n$4\r\nPING\r\n", transport.toString());
+    }
+
+    @Test
+    void directBuffers() {
+        val transport = new CapturingTransport();
+        val redis = redis(transport, true);
+
+        val value = value(200);
+
+        redis.writeCommand("SET", 2)
+                .writeUTF("ключ")
+                .writeAscii(value);
+        redis.writeCommand("INCRBY", 2)
+                .writeAscii("counter")
+                .writeLong(-1234567890123L);
+        redis.flush();
+
+        assertEquals("*3\r\n$3\r\nSET\r\n$8\r\nключ\r\n$200\r\n" + value + "\r\n"
+                + "*3\r\n$6\r\nINCRBY\r\n$7\r\ncounter\r\n$14\r\n-1234567890123\r\n",
+                transport.output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writeNumbers() {
+        for (val direct : new boolean[]{false, true}) {
+            val transport = new CapturingTransport();
+            val redis = redis(transport, direct);
+
+            redis.writeCommand("LRANGE", 3).writeAscii("key").writeInt(0).writeInt(-1);
+            redis.writeCommand("ECHO", 4)
+                    .writeInt(Integer.MIN_VALUE)
+                    .writeInt(Integer.MAX_VALUE)
+                    .writeLong(Long.MIN_VALUE)
+                    .writeLong(Long.MAX_VALUE);
+            redis.writeCommand("EXPIRE", 2).writeAscii("key").writeLong(0);
+            redis.flush();
+
+            assertEquals("*4\r\n$6\r\nLRANGE\r\n$3\r\nkey\r\n$1\r\n0\r\n$2\r\n-1\r\n"
+                    + "*5\r\n$4\r\nECHO\r\n$11\r\n-2147483648\r\n$10\r\n2147483647\r\n"
+                    + "$20\r\n-9223372036854775808\r\n$19\r\n9223372036854775807\r\n"
+                    + "*3\r\n$6\r\nEXPIRE\r\n$3\r\nkey\r\n$1\r\n0\r\n", transport.toString());
+        }
+    }
+
+    @Test
+    void commandTemplates() {
+        val transport = new CapturingTransport();
+        val redis = redis(transport);
+
+        val hget = CommandTemplate.of("HGET", 2);
+        val tracking = CommandTemplate.of("CLIENT", "TRACKING", "ON");
+
+        // шаблоны длиннее буффера записи тоже должны поместиться
+        for (int i = 0; i < 10; i++) {
+            redis.writeCommand(hget).writeAscii("key").writeAscii("field");
+        }
+
+        redis.writeCommand(tracking);
+        redis.writeCommand(CommandTemplate.of("PING"));
+        redis.flush();
+
+        val expected = new StringBuilder();
+
+        for (int i = 0; i < 10; i++) {
+            expected.append("*3\r\n$4\r\nHGET\r\n$3\r\nkey\r\n$5\r\nfield\r\n");
+        }
+
+        expected.append("*3\r\n$6\r\nCLIENT\r\n$8\r\nTRACKING\r\n$2\r\nON\r\n");
+        expected.append("*1\r\n$4\r\nPING\r\n");
+
+        assertEquals(expected.toString(), transport.toString());
+        assertEquals(2, hget.getArguments());
+        assertEquals(0, tracking.getArguments());
+    }
+
+    @Test
+    void writeUTF() {
+        val values = new String[]{"key", "ключ", "café", "😀", "ключ:😀:é", "broken \uD800 surrogate"};
+
+        for (val direct : new boolean[]{false, true}) {
+            val transport = new CapturingTransport();
+            val redis = redis(transport, direct);
+
+            redis.writeCommand("MGET", values.length);
+
+            for (val value : values) {
+                redis.writeUTF(value);
+            }
+
+            redis.flush();
+
+            val expected = new ByteArrayOutputStream();
+            expected.writeBytes(("*" + (values.length + 1) + "\r\n$4\r\nMGET\r\n").getBytes(StandardCharsets.US_ASCII));
+
+            for (val value : values) {
+                val bytes = value.getBytes(StandardCharsets.UTF_8);
+                expected.writeBytes(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                expected.writeBytes(bytes);
+                expected.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+
+            assertArrayEquals(expected.toByteArray(), transport.output.toByteArray());
+        }
+    }
+
+    @Test
+    void variadicTemplates() {
+        val transport = new CapturingTransport();
+        val redis = redis(transport);
+
+        val del = CommandTemplate.of("DEL", 0);
+        val tracking = CommandTemplate.of("CLIENT", "TRACKING", "ON");
+
+        redis.writeCommand(del, 1).writeAscii("a");
+        redis.writeCommand(del, 10);
+
+        for (int i = 0; i < 10; i++) {
+            redis.writeAscii("k" + i);
+        }
+
+        // аргументы шаблона тоже считаются
+        redis.writeCommand(tracking, 1).writeAscii("BCAST");
+        redis.flush();
+
+        val expected = new StringBuilder("*2\r\n$3\r\nDEL\r\n$1\r\na\r\n*11\r\n$3\r\nDEL\r\n");
+
+        for (int i = 0; i < 10; i++) {
+            expected.append("$2\r\nk").append(i).append("\r\n");
+        }
+
+        expected.append("*4\r\n$6\r\nCLIENT\r\n$8\r\nTRACKING\r\n$2\r\nON\r\n$5\r\nBCAST\r\n");
+
+        assertEquals(expected.toString(), transport.toString());
+    }
+
+    @Test
+    void writeDouble() {
+        val transport = new CapturingTransport();
+        val redis = redis(transport);
+
+        redis.writeCommand("ZADD", 11)
+                .writeAscii("scores")
+                .writeDouble(0.1).writeAscii("a")
+                .writeDouble(-1234.5).writeAscii("b")
+                .writeDouble(100).writeAscii("c")
+                .writeDouble(1e23).writeAscii("d")
+                .writeDouble(Double.NEGATIVE_INFINITY).writeAscii("e");
+        redis.flush();
+
+        assertEquals("*12\r\n$4\r\nZADD\r\n$6\r\nscores\r\n"
+                + "$3\r\n0.1\r\n$1\r\na\r\n"
+                + "$7\r\n-1234.5\r\n$1\r\nb\r\n"
+                + "$3\r\n100\r\n$1\r\nc\r\n"
+                + "$5\r\n1e+23\r\n$1\r\nd\r\n"
+                + "$4\r\n-inf\r\n$1\r\ne\r\n", transport.toString());
+
+        assertThrows(IllegalArgumentException.class, () -> redis.writeDouble(Double.NaN));
+    }
+
+    @Test
+    void doubleRoundTrip() {
+        val random = new Random(0);
+
+        for (int i = 0; i < 10_000; i++) {
+            val value = Double.longBitsToDouble(random.nextLong());
+
+            if (Double.isNaN(value)) {
+                continue;
+            }
+
+            val transport = new CapturingTransport();
+            redis(transport).writeDouble(value).flush();
+
+            // записанную строку прочитаем как ответ
+            val reply = RedisReadTests.redis(64, 7, transport.toString());
+            reply.read();
+
+            assertEquals(value, reply.nextDouble());
+        }
+    }
+
+    /**
+     * Транспорт, который запоминает все записанные байты.
+     */
+    static final class CapturingTransport implements RedisTransport {
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void write(final byte[] array, final int offset, final int length) {
+            output.write(array, offset, length);
+        }
+
+        @Override
+        public int read(final byte[] array, final int offset, final int length) {
+            return -1;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return output.toString(StandardCharsets.US_ASCII);
+        }
+
+    }
+
+}
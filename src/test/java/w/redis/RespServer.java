@@ -0,0 +1,618 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Простой RESP сервер, который работает в том же процессе и хранит данные в памяти.
+ * <p>
+ * Нужен тестам и бенчмаркам, которым не важен настоящий Redis, а важно, чтобы клиент общался с сервером
+ * через настоящий сокет. Поддерживает {@code PING}, {@code ECHO}, {@code GET}, {@code SET}, {@code DEL},
+ * {@code INCR}, {@code INCRBY}, {@code MGET}, {@code SADD}, {@code SMEMBERS}, {@code RPUSH}, {@code LRANGE}
+ * и {@code FLUSHALL}. Все подключения обслуживает один поток, поэтому команды выполняются атомарно.
+ * <p>
+ * Для тестов {@link RedisCluster} сервер может изображать узел кластера: отвечать на {@code CLUSTER SLOTS}
+ * картой из {@link #slotRanges}, а на команды с ключами из {@link #movedSlots} и {@link #askSlots} -
+ * {@code MOVED} и {@code ASK}. Слоты из {@link #importingSlots} обслуживаются только после {@code ASKING}.
+ *
+ * @author whilein
+ */
+final class RespServer implements AutoCloseable {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    final ServerSocketChannel server;
+
+    final Selector selector;
+
+    final Thread thread;
+
+    // ключи хранятся в ISO-8859-1, чтобы любые байты ключа превращались в строку без потерь
+    final Map<String, Object> data = new HashMap<>();
+
+    // ответ на CLUSTER SLOTS: первый слот, последний слот и узел
+    final List<Object[]> slotRanges = new CopyOnWriteArrayList<>();
+
+    final Map<Integer, InetSocketAddress> movedSlots = new ConcurrentHashMap<>();
+
+    final Map<Integer, InetSocketAddress> askSlots = new ConcurrentHashMap<>();
+
+    final Set<Integer> importingSlots = ConcurrentHashMap.newKeySet();
+
+    volatile boolean closed;
+
+    // ошибка, из-за которой остановился поток сервера. close пробросит её, чтобы тест упал
+    volatile Throwable failure;
+
+    private RespServer(final ServerSocketChannel server, final Selector selector) {
+        this.server = server;
+        this.selector = selector;
+        this.thread = new Thread(this::_loop, "wredis-resp-server");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Запустить сервер на свободном порту loopback интерфейса.
+     *
+     * @return Запущенный сервер
+     * @throws IOException Выбрасывается, если не удалось открыть сокет
+     */
+    static RespServer start() throws IOException {
+        val server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+
+        val selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        val respServer = new RespServer(server, selector);
+        respServer.thread.start();
+
+        return respServer;
+    }
+
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    Redis.Config.Builder config() throws IOException {
+        return new Redis.Config.Builder(getAddress());
+    }
+
+    private void _loop() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                for (val key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        _accept();
+                        continue;
+                    }
+
+                    val connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (final IOException e) {
+                        connection.close();
+                    }
+                }
+
+                selector.selectedKeys().clear();
+            }
+        } catch (final Throwable e) {
+            if (!closed) {
+                failure = e;
+
+                // клиенты получат EOF, а не будут ждать ответа до таймаута теста
+                _closeChannels();
+            }
+        }
+    }
+
+    private void _closeChannels() {
+        for (val key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    private void _accept() throws IOException {
+        SocketChannel channel;
+
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            val key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        _closeChannels();
+        selector.close();
+
+        val failure = this.failure;
+
+        if (failure != null) {
+            throw new IOException("RESP server failed", failure);
+        }
+    }
+
+    private static String _key(final byte[] key) {
+        return new String(key, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String _string(final byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    // ответить MOVED или ASK, если ключ команды обслуживает другой узел кластера
+    private boolean _redirect(final List<byte[]> args, final Connection connection) {
+        val name = _string(args.get(0)).toUpperCase();
+        val reply = connection.output;
+
+        if (name.equals("ASKING")) {
+            connection.asking = true;
+            reply.simple("OK");
+
+            return true;
+        }
+
+        val asking = connection.asking;
+        connection.asking = false;
+
+        if (args.size() < 2 || name.equals("PING") || name.equals("ECHO") || name.equals("CLUSTER")) {
+            return false;
+        }
+
+        val slot = RedisCluster.slot(args.get(1));
+
+        if (asking && importingSlots.contains(slot)) {
+            return false;
+        }
+
+        InetSocketAddress address;
+
+        if ((address = movedSlots.get(slot)) != null) {
+            reply.error("MOVED " + slot + " " + address.getHostString() + ":" + address.getPort());
+        } else if ((address = askSlots.get(slot)) != null) {
+            reply.error("ASK " + slot + " " + address.getHostString() + ":" + address.getPort());
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    private void _execute(final List<byte[]> args, final Reply reply) {
+        val name = _string(args.get(0)).toUpperCase();
+
+        switch (name) {
+            case "PING":
+                if (args.size() > 1) {
+                    reply.bulk(args.get(1));
+                } else {
+                    reply.simple("PONG");
+                }
+                break;
+            case "ECHO":
+                reply.bulk(args.get(1));
+                break;
+            case "GET":
+                reply.bulk(_get(args.get(1), byte[].class));
+                break;
+            case "SET":
+                data.put(_key(args.get(1)), args.get(2));
+                reply.simple("OK");
+                break;
+            case "DEL": {
+                int count = 0;
+
+                for (int i = 1; i < args.size(); i++) {
+                    if (data.remove(_key(args.get(i))) != null) {
+                        count++;
+                    }
+                }
+
+                reply.integer(count);
+                break;
+            }
+            case "INCR":
+            case "INCRBY": {
+                val key = _key(args.get(1));
+                final byte[] current = _get(args.get(1), byte[].class);
+                val increment = args.size() > 2 ? Long.parseLong(_string(args.get(2))) : 1;
+                val value = (current == null ? 0 : Long.parseLong(_string(current))) + increment;
+
+                data.put(key, Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                reply.integer(value);
+                break;
+            }
+            case "MGET":
+                reply.array(args.size() - 1);
+
+                for (int i = 1; i < args.size(); i++) {
+                    val value = data.get(_key(args.get(i)));
+                    reply.bulk(value instanceof byte[] ? (byte[]) value : null);
+                }
+                break;
+            case "SADD": {
+                @SuppressWarnings("unchecked")
+                Set<String> set = (Set<String>) data.computeIfAbsent(_key(args.get(1)), key -> new LinkedHashSet<>());
+
+                int count = 0;
+
+                for (int i = 2; i < args.size(); i++) {
+                    if (set.add(_key(args.get(i)))) {
+                        count++;
+                    }
+                }
+
+                reply.integer(count);
+                break;
+            }
+            case "SMEMBERS": {
+                @SuppressWarnings("unchecked")
+                Set<String> set = _get(args.get(1), Set.class);
+
+                if (set == null) {
+                    reply.array(0);
+                    break;
+                }
+
+                reply.array(set.size());
+
+                for (val member : set) {
+                    reply.bulk(member.getBytes(StandardCharsets.ISO_8859_1));
+                }
+                break;
+            }
+            case "RPUSH": {
+                @SuppressWarnings("unchecked")
+                List<byte[]> list = (List<byte[]>) data.computeIfAbsent(_key(args.get(1)), key -> new ArrayList<>());
+
+                for (int i = 2; i < args.size(); i++) {
+                    list.add(args.get(i));
+                }
+
+                reply.integer(list.size());
+                break;
+            }
+            case "LRANGE": {
+                @SuppressWarnings("unchecked")
+                List<byte[]> list = _get(args.get(1), List.class);
+
+                if (list == null) {
+                    reply.array(0);
+                    break;
+                }
+
+                int start = Integer.parseInt(_string(args.get(2)));
+                int stop = Integer.parseInt(_string(args.get(3)));
+
+                if (start < 0) {
+                    start = Math.max(0, list.size() + start);
+                }
+
+                if (stop < 0) {
+                    stop = list.size() + stop;
+                }
+
+                stop = Math.min(stop, list.size() - 1);
+
+                if (start > stop) {
+                    reply.array(0);
+                    break;
+                }
+
+                reply.array(stop - start + 1);
+
+                for (int i = start; i <= stop; i++) {
+                    reply.bulk(list.get(i));
+                }
+                break;
+            }
+            case "FLUSHALL":
+                data.clear();
+                reply.simple("OK");
+                break;
+            case "CLUSTER":
+                if (!_string(args.get(1)).equalsIgnoreCase("SLOTS")) {
+                    reply.error("ERR unknown subcommand");
+                    break;
+                }
+
+                reply.array(slotRanges.size());
+
+                for (val range : slotRanges) {
+                    val address = (InetSocketAddress) range[2];
+
+                    reply.array(3);
+                    reply.integer((Integer) range[0]);
+                    reply.integer((Integer) range[1]);
+                    reply.array(2);
+                    reply.bulk(address.getHostString().getBytes(StandardCharsets.US_ASCII));
+                    reply.integer(address.getPort());
+                }
+                break;
+            default:
+                reply.error("ERR unknown command '" + name + "'");
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T _get(final byte[] key, final Class<?> type) {
+        val value = data.get(_key(key));
+
+        if (value == null) {
+            return null;
+        }
+
+        if (!type.isInstance(value)) {
+            throw new WrongTypeException();
+        }
+
+        return (T) value;
+    }
+
+    private static final class WrongTypeException extends RuntimeException {
+        WrongTypeException() {
+            super("WRONGTYPE Operation against a key holding the wrong kind of value", null, false, false);
+        }
+    }
+
+    private static final class Reply {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        private void _ensure(final int length) {
+            if (buffer.remaining() < length) {
+                val newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+                buffer.flip();
+                newBuffer.put(buffer);
+
+                buffer = newBuffer;
+            }
+        }
+
+        private void _line(final char prefix, final String line) {
+            val bytes = line.getBytes(StandardCharsets.UTF_8);
+            _ensure(bytes.length + 3);
+
+            buffer.put((byte) prefix).put(bytes).put(CRLF);
+        }
+
+        void simple(final String value) {
+            _line('+', value);
+        }
+
+        void error(final String message) {
+            _line('-', message);
+        }
+
+        void integer(final long value) {
+            _line(':', Long.toString(value));
+        }
+
+        void array(final int size) {
+            _line('*', Integer.toString(size));
+        }
+
+        void bulk(final byte[] value) {
+            if (value == null) {
+                _line('$', "-1");
+                return;
+            }
+
+            _line('$', Integer.toString(value.length));
+            _ensure(value.length + 2);
+
+            buffer.put(value).put(CRLF);
+        }
+
+    }
+
+    private final class Connection {
+
+        final SocketChannel channel;
+
+        final SelectionKey key;
+
+        ByteBuffer input = ByteBuffer.allocate(8192);
+
+        final Reply output = new Reply();
+
+        // предыдущей командой был ASKING
+        boolean asking;
+
+        Connection(final SocketChannel channel, final SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (!input.hasRemaining()) {
+                val newInput = ByteBuffer.allocate(input.capacity() * 2);
+                input.flip();
+                newInput.put(input);
+
+                input = newInput;
+            }
+
+            if (channel.read(input) < 0) {
+                close();
+                return;
+            }
+
+            input.flip();
+
+            List<byte[]> args;
+
+            while ((args = _parse()) != null) {
+                try {
+                    if (!_redirect(args, this)) {
+                        _execute(args, output);
+                    }
+                } catch (final WrongTypeException e) {
+                    output.error(e.getMessage());
+                } catch (final RuntimeException e) {
+                    output.error("ERR " + e);
+                }
+            }
+
+            input.compact();
+
+            write();
+        }
+
+        // разобрать одну команду или вернуть null, если она пришла не целиком
+        private List<byte[]> _parse() {
+            val start = input.position();
+
+            if (!input.hasRemaining()) {
+                return null;
+            }
+
+            if (input.get() != '*') {
+                throw new IllegalStateException("Inline commands are not supported");
+            }
+
+            val count = _readLength();
+
+            if (count < 0) {
+                input.position(start);
+                return null;
+            }
+
+            val args = new ArrayList<byte[]>(count);
+
+            for (int i = 0; i < count; i++) {
+                if (!input.hasRemaining()) {
+                    input.position(start);
+                    return null;
+                }
+
+                if (input.get() != '$') {
+                    throw new IllegalStateException("Expected bulk string");
+                }
+
+                val length = _readLength();
+
+                if (length < 0 || input.remaining() < length + 2) {
+                    input.position(start);
+                    return null;
+                }
+
+                val arg = new byte[length];
+                input.get(arg);
+                input.position(input.position() + 2);
+
+                args.add(arg);
+            }
+
+            return args;
+        }
+
+        // прочитать число до \r\n или вернуть -1, если строка пришла не целиком
+        private int _readLength() {
+            int value = 0;
+
+            while (input.remaining() >= 2) {
+                val b = input.get();
+
+                if (b == '\r') {
+                    input.get();
+                    return value;
+                }
+
+                value = value * 10 + (b - '0');
+            }
+
+            return -1;
+        }
+
+        void write() throws IOException {
+            val buffer = output.buffer;
+            buffer.flip();
+
+            channel.write(buffer);
+
+            // не всё поместилось в сокет, допишем, когда он освободится
+            key.interestOps(buffer.hasRemaining()
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+
+            buffer.compact();
+        }
+
+        void close() {
+            key.cancel();
+
+            try {
+                channel.close();
+            } catch (final IOException ignored) {
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ *    Copyright 2022 Whilein
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package w.redis;
+
+import lombok.val;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Тесты клиента против {@link RespServer}, которые не требуют запущенного Redis сервера.
+ *
+ * @author whilein
+ */
+final class RespServerTests {
+
+    static RespServer server;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        server = RespServer.start();
+    }
+
+    @AfterAll
+    static void shutdown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void commands() throws IOException {
+        try (val redis = new Redis(server.config().build())) {
+            redis.writeCommand("SET", 2).writeAscii("RESP_KEY").writeAscii("value");
+            redis.writeCommand("GET", 1).writeAscii("RESP_KEY");
+            redis.writeCommand("INCRBY", 2).writeAscii("RESP_COUNTER").writeInt(-5);
+            redis.writeCommand("SADD", 3).writeAscii("RESP_SET").writeAscii("a").writeAscii("b");
+            redis.writeCommand("RPUSH", 3).writeAscii("RESP_LIST").writeAscii("1").writeAscii("2");
+            redis.writeCommand("MGET", 2).writeAscii("RESP_KEY").writeAscii("RESP_MISSING");
+            redis.flushAndRead();
+
+            assertEquals("OK", redis.nextString());
+            assertEquals("value", redis.nextString());
+            assertEquals(-5, redis.nextInt());
+            assertEquals(2, redis.nextInt());
+            assertEquals(2, redis.nextInt());
+
+            assertEquals(2, redis.nextArray());
+            assertEquals("value", redis.nextString());
+            assertNull(redis.nextString());
+
+            redis.writeCommand("SMEMBERS", 1).writeAscii("RESP_SET");
+            redis.writeCommand("LRANGE", 3).writeAscii("RESP_LIST").writeInt(0).writeInt(-1);
+            redis.flushAndRead();
+
+            val members = new HashSet<String>();
+
+            for (int i = redis.nextArray(); i > 0; i--) {
+                members.add(redis.nextString());
+            }
+
+            assertEquals(new HashSet<>(Arrays.asList("a", "b")), members);
+
+            assertEquals(2, redis.nextArray());
+            assertEquals("1", redis.nextString());
+            assertEquals("2", redis.nextString());
+        }
+    }
+
+    @Test
+    void largePipeline() throws IOException {
+        val value = new byte[65536];
+        Arrays.fill(value, (byte) 'x');
+
+        for (val transport : Redis.Transport.values()) {
+            try (val redis = new Redis(server.config().transport(transport).build())) {
+                for (int i = 0; i < 100; i++) {
+                    redis.writeCommand("SET", 2).writeAscii("RESP_LARGE_" + i).writeBytes(value);
+                    redis.writeCommand("GET", 1).writeAscii("RESP_LARGE_" + i);
+                }
+
+                redis.flushAndRead();
+
+                for (int i = 0; i < 100; i++) {
+                    assertEquals("OK", redis.nextString());
+                    assertArrayEquals(value, redis.nextBytes());
+                }
+            }
+        }
+    }
+
+    @Test
+    void multiplexer() throws IOException {
+        try (val multiplexer = new RedisMultiplexer(server.config().build())) {
+            val futures = new ArrayList<CompletableFuture<Long>>();
+
+            for (int i = 0; i < 1000; i++) {
+                futures.add(multiplexer.send(redis -> redis.writeCommand("INCR", 1).writeAscii("RESP_MUX_COUNTER"),
+                        Redis::nextLong));
+            }
+
+            val results = new HashSet<Long>();
+
+            for (val future : futures) {
+                results.add(future.join());
+            }
+
+            assertEquals(1000, results.size());
+            assertTrue(results.contains(1000L));
+        }
+    }
+
+    @Test
+    void closeMultiplexerFromCallback() throws IOException {
+        val multiplexer = new RedisMultiplexer(server.config().build());
+
+        // ошибка записи завершает запрос в потоке комбайнера, пока тот держит wip
+        val closed = new CompletableFuture<Boolean>();
+
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+            multiplexer.send(redis -> {
+                throw new IllegalStateException("Can't write command");
+            }, Redis::nextString).whenComplete((result, e) -> {
+                multiplexer.close();
+                closed.complete(true);
+            });
+
+            assertTrue(closed.join());
+        });
+
+        assertThrows(IllegalStateException.class, () -> multiplexer.execute(redis -> redis.writeCommand("PING", 0),
+                Redis::nextString));
+    }
+
+    @Test
+    void directBuffersMultiplexer() throws IOException {
+        val value = new byte[20000];
+
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) ('a' + i % 26);
+        }
+
+        // транспорт на сокете копирует буфферы вне кучи через свои массивы, пока другой поток читает ответы
+        try (val multiplexer = new RedisMultiplexer(server.config().directBuffers(true).build())) {
+            val futures = new ArrayList<CompletableFuture<byte[]>>();
+
+            for (int i = 0; i < 200; i++) {
+                val key = "RESP_DIRECT_" + i;
+
+                multiplexer.send(redis -> redis.writeCommand("SET", 2).writeAscii(key).writeBytes(value),
+                        Redis::nextString);
+                futures.add(multiplexer.send(redis -> redis.writeCommand("GET", 1).writeAscii(key),
+                        Redis::nextBytes));
+            }
+
+            for (val future : futures) {
+                assertArrayEquals(value, future.join());
+            }
+        }
+    }
+
+}